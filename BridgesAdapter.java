@@ -0,0 +1,83 @@
+import bridges.base.Color;
+import bridges.base.ColorGrid;
+import bridges.base.KdTreeElement;
+
+import kdt.KdTree;
+import kdt.Metrics;
+import kdt.PixelBuffer;
+
+/**
+ * Converts between the compressor's primitive buffers and Bridges
+ * data structures. Only needed when a result is to be visualized.
+ */
+public class BridgesAdapter {
+
+    /**
+     * Color-grid tutorial
+     * http://bridgesuncc.github.io/tutorials/ColorGrid.html
+     *
+     * @param pb pixels to export
+     * @return pixels as color-grid
+     */
+    public static ColorGrid toColorGrid(PixelBuffer pb) {
+        ColorGrid cg = new ColorGrid(pb.getHeight(), pb.getWidth());
+        int[] pixels = pb.getPixels();
+
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.COLOR_GRID)) {
+            span.pixels((long) pb.getWidth() * pb.getHeight());
+            // one Color per pixel is unavoidable here, but neighbouring
+            // pixels of a compressed image usually share their color
+            Color last = null;
+            int lastRgb = -1;
+            for (int row = 0, p = 0; row < pb.getHeight(); row++) {
+                for (int col = 0; col < pb.getWidth(); col++, p++) {
+                    int rgb = pixels[p];
+                    if (rgb != lastRgb) {
+                        last = new Color(PixelBuffer.red(rgb), PixelBuffer.green(rgb),
+                                PixelBuffer.blue(rgb));
+                        lastRgb = rgb;
+                    }
+                    cg.set(row, col, last);
+                }
+            }
+        }
+        return cg;
+    }
+
+    /**
+     * @param cg color-grid to import
+     * @return grid as a packed pixel buffer
+     */
+    public static PixelBuffer toPixelBuffer(ColorGrid cg) {
+        PixelBuffer pb = new PixelBuffer(cg.getWidth(), cg.getHeight());
+        for (int row = 0; row < cg.getHeight(); row++) {
+            for (int col = 0; col < cg.getWidth(); col++) {
+                Color c = cg.get(row, col);
+                pb.set(row, col, PixelBuffer.pack(c.getRed(), c.getGreen(), c.getBlue()));
+            }
+        }
+        return pb;
+    }
+
+    /**
+     * Convert a tree to Bridges elements for visualization. As in the
+     * original builder, internal nodes carry their partitioner and
+     * dimension, and leaves are null children.
+     *
+     * @param tree tree to convert
+     * @return root element, null if the root is a leaf
+     */
+    public static KdTreeElement<Integer, String> toElement(KdTree tree) {
+        return toElement(tree, 0);
+    }
+
+    private static KdTreeElement<Integer, String> toElement(KdTree tree, int node) {
+        if (tree.isLeaf(node)) return null;
+
+        KdTreeElement<Integer, String> e = new KdTreeElement<Integer, String>(0, tree.axis(node));
+        e.setPartitioner(tree.split(node));
+        e.setLeft(toElement(tree, tree.left(node)));
+        e.setRight(toElement(tree, tree.right(node)));
+        return e;
+    }
+}
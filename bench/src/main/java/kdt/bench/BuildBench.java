@@ -0,0 +1,67 @@
+package kdt.bench;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import kdt.KdTree;
+import kdt.PixelBuffer;
+import kdt.RegionStats;
+import kdt.TreeBuilder;
+
+/**
+ * Tree construction at several depth limits, thresholds and split
+ * strategies. build
+ * includes taking the summed-area tables; buildFromTables does not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuildBench {
+    @Param({"square.ppm", "cat.ppm", "cuomo.ppm", "forest.ppm", "synthetic-3840x2160"})
+    public String image;
+
+    @Param({"12", "16", "20"})
+    public int maxLevel;
+
+    @Param({"1.0", "2000"})
+    public float thresh;
+
+    @Param({"RANDOM", "VARIANCE"})
+    public TreeBuilder.Split split;
+
+    private PixelBuffer pb;
+    private RegionStats stats;
+    private TreeBuilder serial, parallel;
+
+    @Setup
+    public void setup() throws IOException {
+        pb = Images.load(image);
+        stats = new RegionStats(pb);
+        serial = new TreeBuilder(maxLevel, thresh, 1);
+        parallel = new TreeBuilder(maxLevel, thresh, 1);
+        serial.setSplit(split);
+        parallel.setSplit(split);
+        parallel.setParallel(ForkJoinPool.commonPool(), TreeBuilder.DEFAULT_PARALLEL_CUTOFF);
+    }
+
+    @Benchmark
+    public KdTree build() {
+        return serial.build(pb);
+    }
+
+    @Benchmark
+    public KdTree buildFromTables() {
+        return serial.build(stats);
+    }
+
+    @Benchmark
+    public KdTree buildParallel() {
+        return parallel.build(stats);
+    }
+}
@@ -0,0 +1,88 @@
+package kdt.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import kdt.ChannelInput;
+import kdt.ChannelOutput;
+import kdt.KdTree;
+import kdt.PixelBuffer;
+import kdt.TreeBuilder;
+import kdt.TreeCodec;
+import kdt.TreeDecoder;
+
+/**
+ * Tree serialization and decoding, in memory so disk speed does not
+ * blur the numbers. coding compares raw and entropy-coded containers;
+ * readAndDecode is the end-to-end decode throughput of each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBench {
+    @Param({"cat.ppm", "forest.ppm", "synthetic-3840x2160"})
+    public String image;
+
+    @Param({"16", "20"})
+    public int maxLevel;
+
+    @Param({"RAW", "ENTROPY"})
+    public TreeCodec.Coding coding;
+
+    private KdTree tree;
+    private TreeCodec.Header header;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        PixelBuffer pb = Images.load(image);
+        tree = new TreeBuilder(maxLevel, 100f, 1).build(pb);
+        header = new TreeCodec.Header(tree.getWidth(), tree.getHeight(), maxLevel, 100f, 1);
+        bytes = write();
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(bytes == null ? 1 << 16 : bytes.length);
+        ChannelOutput out = new ChannelOutput(Channels.newChannel(bos));
+        TreeCodec.write(out, header, tree, coding);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    @Benchmark
+    public KdTree read() throws IOException {
+        return TreeCodec.read(new ChannelInput(Channels.newChannel(new ByteArrayInputStream(bytes)))).tree;
+    }
+
+    @Benchmark
+    public PixelBuffer decode() {
+        return TreeDecoder.decode(tree);
+    }
+
+    @Benchmark
+    public PixelBuffer decodeWindow() {
+        // one 256x256 viewer tile from the middle of the image
+        int x = Math.max(0, tree.getWidth() / 2 - 128), y = Math.max(0, tree.getHeight() / 2 - 128);
+        return TreeDecoder.decode(tree, new int[]{x, y, Math.min(tree.getWidth(), x + 256),
+                Math.min(tree.getHeight(), y + 256)}, 1);
+    }
+
+    @Benchmark
+    public PixelBuffer decodeScaled() {
+        return TreeDecoder.decode(tree, new int[]{0, 0, tree.getWidth(), tree.getHeight()}, 8);
+    }
+
+    @Benchmark
+    public PixelBuffer readAndDecode() throws IOException {
+        return TreeDecoder.decode(read());
+    }
+}
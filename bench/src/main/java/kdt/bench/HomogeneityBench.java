@@ -0,0 +1,81 @@
+package kdt.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import kdt.Image;
+import kdt.PixelBuffer;
+import kdt.RegionStats;
+
+/**
+ * avgColor and IsRegionHomogeneous over a fixed set of random regions,
+ * by scanning the pixels and by summed-area table lookups, plus the
+ * cost of building the tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HomogeneityBench {
+    private static final int REGIONS = 256;
+
+    @Param({"cat.ppm", "forest.ppm", "synthetic-3840x2160"})
+    public String image;
+
+    @Param({"2000"})
+    public double thresh;
+
+    private PixelBuffer pb;
+    private RegionStats stats;
+    private int[][] regions;
+
+    @Setup
+    public void setup() throws IOException {
+        pb = Images.load(image);
+        stats = new RegionStats(pb);
+
+        // region sizes spread like a tree's: a few big, most small
+        Random r = new Random(42);
+        regions = new int[REGIONS][];
+        for (int i = 0; i < REGIONS; i++) {
+            int w = Math.max(1, pb.getWidth() >> r.nextInt(8)), h = Math.max(1, pb.getHeight() >> r.nextInt(8));
+            int x = r.nextInt(pb.getWidth() - w + 1), y = r.nextInt(pb.getHeight() - h + 1);
+            regions[i] = new int[]{x, y, x + w, y + h};
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGIONS)
+    public void avgColorScan(Blackhole bh) {
+        for (int[] region : regions) bh.consume(Image.avgColor(pb, region));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGIONS)
+    public void avgColorTables(Blackhole bh) {
+        for (int[] region : regions) bh.consume(Image.avgColor(stats, region));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGIONS)
+    public void homogeneousScan(Blackhole bh) {
+        for (int[] region : regions) bh.consume(Image.IsRegionHomogeneous(pb, region, thresh));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGIONS)
+    public void homogeneousTables(Blackhole bh) {
+        for (int[] region : regions) bh.consume(Image.IsRegionHomogeneous(stats, region, thresh));
+    }
+
+    @Benchmark
+    public RegionStats buildTables() {
+        return new RegionStats(pb);
+    }
+}
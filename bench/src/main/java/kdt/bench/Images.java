@@ -0,0 +1,77 @@
+package kdt.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import kdt.Image;
+import kdt.PixelBuffer;
+import kdt.PpmFile;
+
+/**
+ * Benchmark inputs: the sample images bundled with the repository and
+ * synthetic large rasters. Samples are looked up in the directory given
+ * by -Dkdt.images (default: the repository root, "..", when run from
+ * bench/). Synthetic images are named synthetic-WxH and are written to
+ * a temporary PPM the first time they are needed.
+ */
+final class Images {
+    private static final String DIR = System.getProperty("kdt.images", "..");
+
+    private Images() {
+    }
+
+    /**
+     * @param name sample file name or synthetic-WxH
+     * @return PPM file of that image
+     */
+    static synchronized Path path(String name) throws IOException {
+        if (!name.startsWith("synthetic-")) return Paths.get(DIR, name);
+
+        Path p = Paths.get(System.getProperty("java.io.tmpdir"), "kdt-bench-" + name + ".ppm");
+        if (!Files.exists(p)) {
+            String[] wh = name.substring("synthetic-".length()).split("x");
+            Path tmp = Files.createTempFile(p.getParent(), "kdt-bench", ".ppm");
+            PpmFile.write(tmp, synthetic(Integer.parseInt(wh[0]), Integer.parseInt(wh[1])));
+            Files.move(tmp, p);
+        }
+        return p;
+    }
+
+    static PixelBuffer load(String name) throws IOException {
+        return new Image(path(name).toString()).toPixelBuffer();
+    }
+
+    /**
+     * Deterministic photo-like raster: smooth gradients, flat
+     * rectangles, and noisy texture patches.
+     */
+    static PixelBuffer synthetic(int width, int height) {
+        PixelBuffer pb = new PixelBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pb.set(y, x, PixelBuffer.pack(x * 255 / width, y * 255 / height,
+                        (x + y) * 255 / (width + height)));
+            }
+        }
+
+        Random r = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            int x0 = r.nextInt(width), y0 = r.nextInt(height);
+            int x1 = Math.min(width, x0 + 1 + r.nextInt(width / 8)),
+                    y1 = Math.min(height, y0 + 1 + r.nextInt(height / 8));
+            if (i % 4 == 0) {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        pb.set(y, x, r.nextInt(1 << 24));
+                    }
+                }
+            } else {
+                pb.fill(x0, y0, x1, y1, r.nextInt(1 << 24));
+            }
+        }
+        return pb;
+    }
+}
@@ -0,0 +1,77 @@
+package kdt.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import kdt.PixelBuffer;
+import kdt.RegionKernels;
+
+/**
+ * The region kernels behind avgColor and IsRegionHomogeneous, scalar
+ * against the Vector API, over the same random regions as
+ * HomogeneityBench. Builds do not run these kernels (see
+ * RegionKernels), so BuildBench does not change with them. The vector kernels need --add-modules
+ * jdk.incubator.vector, which RunBenchmarks passes to the forks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBench {
+    private static final int REGIONS = 256;
+
+    @Param({"cat.ppm", "forest.ppm", "synthetic-3840x2160"})
+    public String image;
+
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    private RegionKernels k;
+    private int[] pixels;
+    private int width;
+    private int[][] regions;
+    private final long[] rgb = new long[3];
+
+    @Setup
+    public void setup() throws IOException {
+        k = kernels.equals("vector") ? RegionKernels.vector() : RegionKernels.scalar();
+        if (k == null) throw new IllegalStateException("Vector API kernels not available in this JVM");
+
+        PixelBuffer pb = Images.load(image);
+        pixels = pb.getPixels();
+        width = pb.getWidth();
+
+        // same regions as HomogeneityBench
+        Random r = new Random(42);
+        regions = new int[REGIONS][];
+        for (int i = 0; i < REGIONS; i++) {
+            int w = Math.max(1, pb.getWidth() >> r.nextInt(8)), h = Math.max(1, pb.getHeight() >> r.nextInt(8));
+            int x = r.nextInt(pb.getWidth() - w + 1), y = r.nextInt(pb.getHeight() - h + 1);
+            regions[i] = new int[]{x, y, x + w, y + h};
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGIONS)
+    public long sums() {
+        long h = 0;
+        for (int[] region : regions) {
+            k.sums(pixels, width, region, rgb);
+            h += rgb[0] + rgb[1] + rgb[2];
+        }
+        return h;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REGIONS)
+    public long squaredError() {
+        long h = 0;
+        for (int[] region : regions) h += k.squaredError(pixels, width, region, 0x808080);
+        return h;
+    }
+}
@@ -0,0 +1,43 @@
+package kdt.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import kdt.Image;
+import kdt.PixelBuffer;
+import kdt.RegionStats;
+
+/**
+ * Image(String) parsing: map the file, parse the header, and read the
+ * raster into the structures the compressor uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PpmLoadBench {
+    @Param({"square.ppm", "cat.ppm", "cuomo.ppm", "forest.ppm", "synthetic-3840x2160"})
+    public String image;
+
+    private String file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Images.path(image).toString();
+    }
+
+    @Benchmark
+    public PixelBuffer loadPixelBuffer() throws IOException {
+        return new Image(file).toPixelBuffer();
+    }
+
+    @Benchmark
+    public RegionStats loadRegionStats() throws IOException {
+        Image im = new Image(file);
+        return new RegionStats(im.getRaster(), im.getWidth(), im.getHeight());
+    }
+}
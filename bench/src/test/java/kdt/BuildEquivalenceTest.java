@@ -0,0 +1,130 @@
+package kdt;
+
+import static kdt.TestImages.assertSameTree;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Different routes to a tree that are documented to give the same one.
+ */
+class BuildEquivalenceTest {
+    private static TreeBuilder builder(int depth, float thresh, TreeBuilder.Split split) {
+        TreeBuilder b = new TreeBuilder(depth, thresh, 11);
+        b.setSplit(split);
+        return b;
+    }
+
+    @ParameterizedTest
+    @EnumSource(TreeBuilder.Split.class)
+    void parallelEqualsSerial(TreeBuilder.Split split) throws IOException {
+        PixelBuffer pb = TestImages.sample("cat.ppm");
+        RegionStats stats = new RegionStats(pb);
+        KdTree serial = builder(20, 20, split).build(stats);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int cutoff : new int[]{64, 4096, TreeBuilder.DEFAULT_PARALLEL_CUTOFF}) {
+                TreeBuilder b = builder(20, 20, split);
+                b.setParallel(pool, cutoff);
+                assertSameTree(serial, b.build(stats));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(TreeBuilder.Split.class)
+    void pruneEqualsDirectBuild(TreeBuilder.Split split) {
+        RegionStats stats = new RegionStats(TestImages.synthetic(311, 233, 4));
+        KdTree deep = builder(24, 5, split).build(stats);
+        for (int[] tier : new int[][]{{4, 5}, {10, 400}, {16, 100}, {24, 5}}) {
+            KdTree direct = builder(tier[0], tier[1], split).build(stats);
+            assertSameTree(direct, deep.prune(tier[0], tier[1]));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(TreeBuilder.Split.class)
+    void pruneEqualsDirectBuildWithPinnedChromaDepth(TreeBuilder.Split split) {
+        RegionStats stats = new RegionStats(TestImages.synthetic(311, 233, 4), true);
+        TreeBuilder deepBuilder = builder(24, 5, split);
+        deepBuilder.setMetric(TreeBuilder.Metric.YCBCR, 12);
+        KdTree deep = deepBuilder.build(stats);
+        for (int[] tier : new int[][]{{8, 200}, {16, 50}, {24, 5}}) {
+            TreeBuilder b = builder(tier[0], tier[1], split);
+            b.setMetric(TreeBuilder.Metric.YCBCR, 12);
+            assertSameTree(b.build(stats), deep.prune(tier[0], tier[1]));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(TreeBuilder.Split.class)
+    void grayEqualsRgb(TreeBuilder.Split split) throws IOException {
+        PixelBuffer gray = TestImages.gray(TestImages.synthetic(257, 190, 6));
+        for (boolean wide : new boolean[]{false, true}) {
+            RegionStats rgb = TestImages.stats(TestImages.ppm(gray, 3, wide), false);
+            RegionStats pgm = TestImages.stats(TestImages.ppm(gray, 1, wide), false);
+            assertSameTree(builder(20, 10, split).build(rgb), builder(20, 10, split).build(pgm));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(TreeBuilder.Metric.class)
+    void sixteenBitEqualsEightBit(TreeBuilder.Metric metric) throws IOException {
+        PixelBuffer pb = TestImages.synthetic(257, 190, 7);
+        boolean lumaChroma = metric == TreeBuilder.Metric.YCBCR;
+        TreeBuilder b = builder(20, 10, TreeBuilder.Split.VARIANCE);
+        b.setMetric(metric);
+        KdTree narrow = b.build(TestImages.stats(TestImages.ppm(pb, 3, false), lumaChroma));
+        KdTree wide = b.build(TestImages.stats(TestImages.ppm(pb, 3, true), lumaChroma));
+        assertSameTree(narrow, wide);
+        assertSameTree(narrow, b.build(pb));
+    }
+
+    @Test
+    void tablesEqualScans() {
+        // the homogeneity test on summed-area tables and on the pixels
+        PixelBuffer pb = TestImages.synthetic(211, 173, 8);
+        RegionStats stats = new RegionStats(pb);
+        Random r = new Random(5);
+        for (int i = 0; i < 500; i++) {
+            int x0 = r.nextInt(210), y0 = r.nextInt(172);
+            int[] region = {x0, y0, x0 + 1 + r.nextInt(211 - x0), y0 + 1 + r.nextInt(173 - y0)};
+            assertEquals(Image.avgColor(pb, region), Image.avgColor(stats, region));
+            double thresh = r.nextInt(3000);
+            assertEquals(Image.IsRegionHomogeneous(pb, region, thresh),
+                    Image.IsRegionHomogeneous(stats, region, thresh));
+        }
+    }
+
+    @Test
+    void vectorKernelsEqualScalar() {
+        RegionKernels vector = RegionKernels.vector(), scalar = RegionKernels.scalar();
+        if (vector == null) return; // no jdk.incubator.vector in this JVM
+        PixelBuffer pb = TestImages.synthetic(301, 97, 9);
+        Random r = new Random(6);
+        long[] a = new long[3], b = new long[3];
+        for (int i = 0; i < 500; i++) {
+            int x0 = r.nextInt(300), y0 = r.nextInt(96);
+            int[] region = {x0, y0, x0 + 1 + r.nextInt(301 - x0), y0 + 1 + r.nextInt(97 - y0)};
+            vector.sums(pb.getPixels(), pb.getWidth(), region, a);
+            scalar.sums(pb.getPixels(), pb.getWidth(), region, b);
+            assertEquals(b[0], a[0]);
+            assertEquals(b[1], a[1]);
+            assertEquals(b[2], a[2]);
+            int about = r.nextInt(1 << 24);
+            assertEquals(scalar.squaredError(pb.getPixels(), pb.getWidth(), region, about),
+                    vector.squaredError(pb.getPixels(), pb.getWidth(), region, about));
+        }
+        assertTrue(vector.name().startsWith("vector"));
+    }
+}
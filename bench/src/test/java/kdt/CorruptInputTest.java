@@ -0,0 +1,237 @@
+package kdt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Damaged or hostile input must fail with an IOException (or decode to
+ * some image), never with a runtime exception, a stack overflow or an
+ * allocation sized by the input.
+ */
+class CorruptInputTest {
+    private static final int ROUNDS = 400;
+
+    // a valid raw container header for a width x height image
+    private static byte[] header(int version, int width, int height) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ChannelOutput out = TestImages.out(buf);
+        out.writeInt(TreeCodec.MAGIC);
+        out.writeByte(version);
+        out.writeVarint(width);
+        out.writeVarint(height);
+        out.writeVarint(12);
+        out.writeFloat(1f);
+        out.writeLong(0);
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    // a tiled container header with no tiles after it
+    private static byte[] tiledHeader(int width, int height, int tileSize) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ChannelOutput out = TestImages.out(buf);
+        out.writeInt(TiledCompressor.MAGIC);
+        out.writeByte(TiledCompressor.VERSION);
+        out.writeVarint(width);
+        out.writeVarint(height);
+        out.writeVarint(tileSize);
+        out.writeVarint(12);
+        out.writeFloat(1f);
+        out.writeLong(0);
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    // flip some bytes after the magic, and sometimes cut the tail off
+    private static byte[] damage(byte[] valid, Random r) {
+        byte[] d = valid.clone();
+        for (int f = 1 + r.nextInt(8); f > 0; f--) d[5 + r.nextInt(d.length - 5)] = (byte) r.nextInt(256);
+        return r.nextInt(4) == 0 ? Arrays.copyOf(d, r.nextInt(d.length)) : d;
+    }
+
+    private static byte[] container(TreeBuilder.Split split, TreeCodec.Coding coding, int palette) throws IOException {
+        TreeBuilder b = new TreeBuilder(20, 30, 1);
+        b.setSplit(split);
+        KdTree tree = b.build(TestImages.synthetic(97, 83, 2));
+        if (palette > 0) tree = Palette.quantize(tree, palette);
+        return TestImages.write(TestImages.header(tree, b), tree, coding);
+    }
+
+    @Test
+    void damagedContainers() throws IOException {
+        byte[][] valid = {
+                container(TreeBuilder.Split.VARIANCE, TreeCodec.Coding.RAW, 0),
+                container(TreeBuilder.Split.RANDOM, TreeCodec.Coding.RAW, 0),
+                container(TreeBuilder.Split.VARIANCE, TreeCodec.Coding.ENTROPY, 0),
+                container(TreeBuilder.Split.RANDOM, TreeCodec.Coding.ENTROPY, 0),
+                container(TreeBuilder.Split.VARIANCE, TreeCodec.Coding.ENTROPY, 16),
+        };
+        Random r = new Random(1);
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] d = damage(valid[i % valid.length], r);
+            try {
+                TreeCodec.Saved saved = TreeCodec.read(TestImages.in(d));
+                if (saved.hasColors()) TreeDecoder.decode(saved.tree);
+            } catch (IOException expected) {
+                // rejected
+            } catch (RuntimeException | StackOverflowError e) {
+                fail("round " + i + ": " + e, e);
+            }
+        }
+    }
+
+    @Test
+    void damagedTiledContainers(@TempDir Path dir) throws IOException {
+        PixelBuffer pb = TestImages.synthetic(150, 130, 4);
+        ByteArrayOutputStream ppm = new ByteArrayOutputStream();
+        ppm.writeBytes(("P6\n150 130\n255\n").getBytes(StandardCharsets.US_ASCII));
+        for (int rgb : pb.getPixels()) {
+            ppm.write(PixelBuffer.red(rgb));
+            ppm.write(PixelBuffer.green(rgb));
+            ppm.write(PixelBuffer.blue(rgb));
+        }
+        Path src = dir.resolve("in.ppm"), tiled = dir.resolve("in.kdtt"), dst = dir.resolve("out.ppm");
+        Files.write(src, ppm.toByteArray());
+        TiledCompressor tc = new TiledCompressor(16, 30, 1);
+        tc.setTileSize(64);
+        tc.compress(src, tiled);
+        byte[] valid = Files.readAllBytes(tiled);
+
+        Random r = new Random(4);
+        for (int i = 0; i < ROUNDS; i++) {
+            Files.write(tiled, damage(valid, r));
+            try {
+                TiledCompressor.decompress(tiled, dst);
+            } catch (IOException expected) {
+                // rejected
+            } catch (RuntimeException | StackOverflowError e) {
+                fail("round " + i + ": " + e, e);
+            }
+        }
+
+        // header fields that would divide by zero or size a band past any array
+        for (byte[] header : new byte[][]{tiledHeader(150, 130, 0), tiledHeader(2_000_000_000, 130, 64),
+                tiledHeader(0, 130, 64), tiledHeader(150, -1, 64)}) {
+            Files.write(tiled, header);
+            assertThrows(IOException.class, () -> TiledCompressor.decompress(tiled, dst));
+        }
+    }
+
+    @Test
+    void damagedProgressiveStreams() throws IOException {
+        TreeBuilder b = new TreeBuilder(20, 30, 1);
+        KdTree tree = b.build(TestImages.synthetic(97, 83, 2));
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ChannelOutput out = TestImages.out(buf);
+        ProgressiveCodec.write(out, TestImages.header(tree, b), tree);
+        out.flush();
+
+        Random r = new Random(2);
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] d = damage(buf.toByteArray(), r);
+            try {
+                ProgressiveDecoder.decode(Channels.newChannel(new ByteArrayInputStream(d)),
+                        Long.MAX_VALUE, Integer.MAX_VALUE);
+            } catch (IOException expected) {
+                // rejected
+            } catch (RuntimeException | StackOverflowError e) {
+                fail("round " + i + ": " + e, e);
+            }
+        }
+    }
+
+    @Test
+    void damagedSequences() throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ChannelOutput out = TestImages.out(buf);
+        SequenceEncoder enc = new SequenceEncoder(out, new TreeBuilder(16, 40, 7), 97, 83, 2);
+        PixelBuffer frame = TestImages.synthetic(97, 83, 3);
+        for (int f = 0; f < 4; f++) {
+            frame.fill(f * 10, f * 5, f * 10 + 20, f * 5 + 20, PixelBuffer.pack(255, f * 60, 0));
+            enc.encode(frame);
+        }
+        enc.flush();
+
+        Random r = new Random(3);
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] d = damage(buf.toByteArray(), r);
+            try {
+                SequenceDecoder dec = new SequenceDecoder(TestImages.in(d));
+                for (KdTree t; (t = dec.readFrame()) != null; ) TreeDecoder.decode(t);
+            } catch (IOException expected) {
+                // rejected
+            } catch (RuntimeException | StackOverflowError e) {
+                fail("round " + i + ": " + e, e);
+            }
+        }
+    }
+
+    @Test
+    void imageLargerThanTheLimit() throws IOException {
+        byte[] huge = header(TreeCodec.RAW_VERSION, 50000, 50000);
+        assertThrows(IOException.class, () -> TreeCodec.read(TestImages.in(huge)));
+        byte[] small = header(TreeCodec.RAW_VERSION, 1000, 1000);
+        IOException e = assertThrows(IOException.class, () -> TreeCodec.read(TestImages.in(small), 999_999));
+        assertEquals("image 1000x1000 has more than 999999 pixels", e.getMessage());
+        assertThrows(IOException.class, () -> TreeCodec.read(TestImages.in(header(TreeCodec.RAW_VERSION, 0, 7))));
+    }
+
+    @Test
+    void partitionOnTheRegionEdge() throws IOException {
+        // internal node at offset 0 of 100 columns: an empty left child
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        buf.writeBytes(header(TreeCodec.RAW_VERSION, 100, 100));
+        buf.write(0b001); // node flags: internal, leaf, leaf
+        buf.write(0);     // X at offset 0
+        buf.writeBytes(new byte[]{1, 2, 3, 4, 5, 6});
+        IOException e = assertThrows(IOException.class, () -> TreeCodec.read(TestImages.in(buf.toByteArray())));
+        assertEquals("corrupt partition 0 in [0, 100)", e.getMessage());
+    }
+
+    @Test
+    void deepTreeDecodes() throws IOException {
+        // a chain of width - 1 splits, each one column in: as deep as
+        // a tree of this image can be, far past any thread stack
+        int width = 200_000, nodes = 2 * width - 1;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        buf.writeBytes(header(TreeCodec.RAW_VERSION, width, 1));
+        for (int i = 0; i < nodes; i += 8) {
+            int flags = 0;
+            ByteArrayOutputStream group = new ByteArrayOutputStream();
+            for (int k = i; k < Math.min(nodes, i + 8); k++) {
+                boolean internal = k % 2 == 0 && k < nodes - 1;
+                if (internal) {
+                    flags |= 1 << (k - i);
+                    group.write(1 << 1); // X at offset 1
+                } else {
+                    group.writeBytes(new byte[]{9, 9, 9});
+                }
+            }
+            buf.write(flags);
+            buf.writeBytes(group.toByteArray());
+        }
+
+        KdTree tree = TreeCodec.read(TestImages.in(buf.toByteArray())).tree;
+        assertEquals(nodes, tree.size());
+        assertEquals(width - 1, tree.maxDepth());
+        PixelBuffer pb = TreeDecoder.decode(tree);
+        assertEquals(PixelBuffer.pack(9, 9, 9), pb.get(0, width - 1));
+        PixelBuffer lines = new PixelBuffer(width, 1);
+        TreeRenderer.render(tree, lines, true);
+        TreeDecoder.decode(tree, new int[]{0, 0, width, 1}, 7);
+    }
+}
@@ -0,0 +1,60 @@
+package kdt;
+
+import static kdt.TestImages.assertSamePixels;
+import static kdt.TestImages.assertSameTree;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Off-heap builds and paints against TreeBuilder and TreeRenderer. Only
+ * compiled on JDK 21 (see the jdk21 profile in pom.xml).
+ */
+class SegmentRasterTest {
+    private static SegmentRaster copy(PixelBuffer pb, Arena arena) {
+        SegmentRaster raster = SegmentRaster.allocate(arena, pb.getWidth(), pb.getHeight());
+        for (int y = 0; y < pb.getHeight(); y++) {
+            for (int x = 0; x < pb.getWidth(); x++) {
+                raster.set(y, x, pb.get(y, x));
+            }
+        }
+        return raster;
+    }
+
+    @ParameterizedTest
+    @EnumSource(TreeBuilder.Split.class)
+    void buildEqualsTreeBuilder(TreeBuilder.Split split) throws IOException {
+        for (PixelBuffer pb : new PixelBuffer[]{TestImages.synthetic(263, 181, 10), TestImages.sample("cat.ppm")}) {
+            try (Arena arena = Arena.ofConfined()) {
+                SegmentRaster raster = copy(pb, arena);
+                for (int depth : new int[]{6, 16, 24}) {
+                    TreeBuilder b = new TreeBuilder(depth, 30, 3);
+                    b.setSplit(split);
+                    KdTree expected = b.build(pb);
+                    KdTree tree = raster.build(b);
+                    assertSameTree(expected, tree);
+
+                    SegmentRaster painted = SegmentRaster.allocate(arena, pb.getWidth(), pb.getHeight());
+                    painted.paint(tree);
+                    int[] all = {0, 0, pb.getWidth(), pb.getHeight()};
+                    assertSamePixels(TreeDecoder.decode(expected), painted.toPixelBuffer(all));
+                }
+            }
+        }
+    }
+
+    @Test
+    void refusesYcbcr() {
+        try (Arena arena = Arena.ofConfined()) {
+            SegmentRaster raster = copy(TestImages.synthetic(40, 30, 1), arena);
+            TreeBuilder b = new TreeBuilder();
+            b.setMetric(TreeBuilder.Metric.YCBCR);
+            assertThrows(IllegalArgumentException.class, () -> raster.build(b));
+        }
+    }
+}
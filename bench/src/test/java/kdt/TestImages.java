@@ -0,0 +1,157 @@
+package kdt;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Inputs and checks shared by the tests: deterministic synthetic
+ * rasters (so no test depends on the sample files), the bundled
+ * samples, PPM/PGM encodings of a raster, and in-memory containers.
+ */
+final class TestImages {
+    // the repository root, where the samples are, when run from bench/
+    private static final String DIR = System.getProperty("kdt.images", "..");
+
+    private TestImages() {
+    }
+
+    /**
+     * Photo-like raster: gradients, flat rectangles and noisy patches.
+     */
+    static PixelBuffer synthetic(int width, int height, long seed) {
+        PixelBuffer pb = new PixelBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pb.set(y, x, PixelBuffer.pack(x * 255 / width, y * 255 / height,
+                        (x + y) * 255 / (width + height)));
+            }
+        }
+        Random r = new Random(seed);
+        for (int i = 0; i < 40; i++) {
+            int x0 = r.nextInt(width), y0 = r.nextInt(height);
+            int x1 = Math.min(width, x0 + 1 + r.nextInt(width / 4)),
+                    y1 = Math.min(height, y0 + 1 + r.nextInt(height / 4));
+            if (i % 3 == 0) {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        pb.set(y, x, r.nextInt(1 << 24));
+                    }
+                }
+            } else {
+                pb.fill(x0, y0, x1, y1, r.nextInt(1 << 24));
+            }
+        }
+        return pb;
+    }
+
+    /**
+     * The same raster with every pixel gray, r = g = b = its red.
+     */
+    static PixelBuffer gray(PixelBuffer pb) {
+        PixelBuffer g = new PixelBuffer(pb.getWidth(), pb.getHeight());
+        int[] src = pb.getPixels(), dst = g.getPixels();
+        for (int i = 0; i < src.length; i++) {
+            int v = PixelBuffer.red(src[i]);
+            dst[i] = PixelBuffer.pack(v, v, v);
+        }
+        return g;
+    }
+
+    static PixelBuffer sample(String name) throws IOException {
+        return new Image(Paths.get(DIR, name).toString()).toPixelBuffer();
+    }
+
+    /**
+     * Encode a raster as a binary PPM (channels 3) or PGM of its red
+     * channel (channels 1), with 8-bit or 16-bit samples. 16-bit samples
+     * are v * 257, which scale back to exactly v.
+     */
+    static PpmFile ppm(PixelBuffer pb, int channels, boolean wide) throws IOException {
+        int maxVal = wide ? 65535 : 255;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        buf.writeBytes(((channels == 3 ? "P6" : "P5") + "\n" + pb.getWidth() + " " + pb.getHeight()
+                + "\n" + maxVal + "\n").getBytes(StandardCharsets.US_ASCII));
+        for (int rgb : pb.getPixels()) {
+            int[] samples = channels == 3
+                    ? new int[]{PixelBuffer.red(rgb), PixelBuffer.green(rgb), PixelBuffer.blue(rgb)}
+                    : new int[]{PixelBuffer.red(rgb)};
+            for (int v : samples) {
+                if (wide) {
+                    buf.write(v); // high byte of v * 257
+                    buf.write(v);
+                } else {
+                    buf.write(v);
+                }
+            }
+        }
+        return PpmFile.parse(ByteBuffer.wrap(buf.toByteArray()), "test");
+    }
+
+    static RegionStats stats(PpmFile ppm, boolean lumaChroma) {
+        return new RegionStats(ppm.getRaster(), ppm.getWidth(), ppm.getHeight(), ppm.getChannels(),
+                ppm.getMaxVal(), lumaChroma);
+    }
+
+    static TreeCodec.Header header(KdTree tree, TreeBuilder builder) {
+        return new TreeCodec.Header(tree.getWidth(), tree.getHeight(), builder.getMaxLevel(),
+                builder.getHomogeneityThresh(), builder.getSeed());
+    }
+
+    static byte[] write(TreeCodec.Header header, KdTree tree, TreeCodec.Coding coding) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ChannelOutput out = new ChannelOutput(Channels.newChannel(buf));
+        TreeCodec.write(out, header, tree, coding);
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    static ChannelInput in(byte[] bytes) {
+        return new ChannelInput(Channels.newChannel(new ByteArrayInputStream(bytes)));
+    }
+
+    static ChannelOutput out(ByteArrayOutputStream buf) {
+        return new ChannelOutput(Channels.newChannel(buf));
+    }
+
+    /**
+     * Same shape, partitions and leaf colors. Internal colors are not
+     * compared: readers of leaf-only formats merge them from the leaves.
+     */
+    static void assertSameLeaves(KdTree expected, KdTree actual) {
+        assertEquals(expected.size(), actual.size(), "nodes");
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.axis(i), actual.axis(i), "axis of node " + i);
+            if (expected.isLeaf(i)) {
+                assertEquals(expected.color(i), actual.color(i), "color of leaf " + i);
+            } else {
+                assertEquals(expected.split(i), actual.split(i), "split of node " + i);
+                assertEquals(expected.right(i), actual.right(i), "right child of node " + i);
+            }
+        }
+    }
+
+    /**
+     * Same shape, partitions and colors at every node.
+     */
+    static void assertSameTree(KdTree expected, KdTree actual) {
+        assertSameLeaves(expected, actual);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.color(i), actual.color(i), "color of node " + i);
+        }
+    }
+
+    static void assertSamePixels(PixelBuffer expected, PixelBuffer actual) {
+        assertEquals(expected.getWidth(), actual.getWidth(), "width");
+        assertEquals(expected.getHeight(), actual.getHeight(), "height");
+        assertArrayEquals(expected.getPixels(), actual.getPixels(), "pixels");
+    }
+}
@@ -0,0 +1,155 @@
+package kdt;
+
+import static kdt.TestImages.assertSameLeaves;
+import static kdt.TestImages.assertSamePixels;
+import static kdt.TestImages.assertSameTree;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Every container format reads back the tree that was written.
+ */
+class TreeCodecTest {
+    private static KdTree build(PixelBuffer pb, TreeBuilder.Split split, int depth, float thresh) {
+        TreeBuilder b = new TreeBuilder(depth, thresh, 42);
+        b.setSplit(split);
+        return b.build(pb);
+    }
+
+    @ParameterizedTest
+    @EnumSource(TreeBuilder.Split.class)
+    void rawRoundTrip(TreeBuilder.Split split) throws IOException {
+        for (int depth : new int[]{1, 8, 20}) {
+            KdTree tree = build(TestImages.synthetic(203, 157, depth), split, depth, 50);
+            TreeCodec.Header header = new TreeCodec.Header(203, 157, depth, 50, 42);
+            TreeCodec.Saved saved = TreeCodec.read(TestImages.in(
+                    TestImages.write(header, tree, TreeCodec.Coding.RAW)));
+
+            assertEquals(TreeCodec.RAW_VERSION, saved.version);
+            assertEquals(depth, saved.header.maxLevel);
+            assertEquals(42, saved.header.seed);
+            assertSameLeaves(tree, saved.tree);
+            assertSamePixels(TreeDecoder.decode(tree), TreeDecoder.decode(saved.tree));
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(TreeBuilder.Split.class)
+    void entropyRoundTrip(TreeBuilder.Split split) throws IOException {
+        for (int depth : new int[]{1, 8, 20}) {
+            KdTree tree = build(TestImages.synthetic(203, 157, depth), split, depth, 50);
+            byte[] raw = TestImages.write(new TreeCodec.Header(203, 157, depth, 50, 42), tree,
+                    TreeCodec.Coding.RAW);
+            byte[] entropy = TestImages.write(new TreeCodec.Header(203, 157, depth, 50, 42), tree,
+                    TreeCodec.Coding.ENTROPY);
+            TreeCodec.Saved saved = TreeCodec.read(TestImages.in(entropy));
+
+            assertEquals(TreeCodec.VERSION, saved.version);
+            assertSameLeaves(tree, saved.tree);
+            // both readers merge internal colors the same way
+            assertSameTree(TreeCodec.read(TestImages.in(raw)).tree, saved.tree);
+        }
+    }
+
+    @Test
+    void paletteRoundTrip() throws IOException {
+        KdTree tree = build(TestImages.sample("cat.ppm"), TreeBuilder.Split.VARIANCE, 16, 100);
+        KdTree quantized = Palette.quantize(tree, 32);
+        TreeCodec.Header header = new TreeCodec.Header(tree.getWidth(), tree.getHeight(), 16, 100, 42);
+        for (TreeCodec.Coding coding : TreeCodec.Coding.values()) {
+            TreeCodec.Saved saved = TreeCodec.read(TestImages.in(TestImages.write(header, quantized, coding)));
+            assertSameLeaves(quantized, saved.tree);
+        }
+    }
+
+    @Test
+    void sampleImagesRoundTrip() throws IOException {
+        for (String name : new String[]{"cat.ppm", "square.ppm", "RBYMondrian.ppm"}) {
+            PixelBuffer pb = TestImages.sample(name);
+            KdTree tree = build(pb, TreeBuilder.Split.RANDOM, 24, 20);
+            TreeCodec.Header header = new TreeCodec.Header(pb.getWidth(), pb.getHeight(), 24, 20, 42);
+            for (TreeCodec.Coding coding : TreeCodec.Coding.values()) {
+                KdTree read = TreeCodec.read(TestImages.in(TestImages.write(header, tree, coding))).tree;
+                assertSamePixels(TreeDecoder.decode(tree), TreeDecoder.decode(read));
+            }
+        }
+    }
+
+    @Test
+    void windowDecodeMatchesFullDecode() {
+        KdTree tree = build(TestImages.synthetic(200, 120, 3), TreeBuilder.Split.VARIANCE, 16, 30);
+        PixelBuffer full = TreeDecoder.decode(tree);
+        int[] roi = {17, 9, 150, 101};
+        PixelBuffer window = TreeDecoder.decode(tree, roi, 1);
+        for (int y = roi[1]; y < roi[3]; y++) {
+            for (int x = roi[0]; x < roi[2]; x++) {
+                assertEquals(full.get(y, x), window.get(y - roi[1], x - roi[0]));
+            }
+        }
+    }
+
+    @Test
+    void progressiveRoundTrip() throws IOException {
+        PixelBuffer pb = TestImages.synthetic(181, 140, 5);
+        KdTree tree = build(pb, TreeBuilder.Split.VARIANCE, 18, 40);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ChannelOutput out = TestImages.out(buf);
+        ProgressiveCodec.write(out, new TreeCodec.Header(181, 140, 18, 40, 42), tree);
+        out.flush();
+
+        PixelBuffer decoded = ProgressiveDecoder.decode(
+                Channels.newChannel(new ByteArrayInputStream(buf.toByteArray())), Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertSamePixels(TreeDecoder.decode(tree), decoded);
+        // a prefix decodes to a preview of the same size
+        PixelBuffer preview = ProgressiveDecoder.decode(
+                Channels.newChannel(new ByteArrayInputStream(buf.toByteArray())), buf.size() / 3, Integer.MAX_VALUE);
+        assertEquals(181, preview.getWidth());
+        assertEquals(140, preview.getHeight());
+    }
+
+    @Test
+    void sequenceRoundTrip() throws IOException {
+        List<PixelBuffer> frames = new ArrayList<>();
+        PixelBuffer frame = TestImages.synthetic(160, 120, 9);
+        for (int f = 0; f < 7; f++) {
+            frame = new PixelBuffer(160, 120, frame.getPixels().clone());
+            frame.fill(10 * f, 5 * f, 10 * f + 30, 5 * f + 20, PixelBuffer.pack(f * 30, 200, 255 - f * 30));
+            frames.add(frame);
+        }
+
+        TreeBuilder builder = new TreeBuilder(16, 40, 7);
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ChannelOutput out = TestImages.out(buf);
+        SequenceEncoder enc = new SequenceEncoder(out, builder, 160, 120, 3);
+        List<KdTree> trees = new ArrayList<>();
+        for (PixelBuffer f : frames) trees.add(enc.encode(f));
+        enc.flush();
+
+        SequenceDecoder dec = new SequenceDecoder(TestImages.in(buf.toByteArray()));
+        for (KdTree expected : trees) {
+            KdTree tree = dec.readFrame();
+            assertSameLeaves(expected, tree);
+            assertSamePixels(TreeDecoder.decode(expected), TreeDecoder.decode(tree));
+        }
+        assertNull(dec.readFrame());
+    }
+
+    @Test
+    void sequenceRejectsKeyIntervalBelowOne() {
+        ChannelOutput out = TestImages.out(new ByteArrayOutputStream());
+        assertThrows(IllegalArgumentException.class,
+                () -> new SequenceEncoder(out, new TreeBuilder(), 10, 10, 0));
+    }
+}
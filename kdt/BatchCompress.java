@@ -0,0 +1,380 @@
+package kdt;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless batch compressor. Compresses many PPM files concurrently on
+ * a bounded pool of worker threads and reports throughput per file and
+ * for the whole run. Needs no Bridges account or network.
+ *
+ * Inputs are PPM files, directories (their *.ppm and *.pgm files) or
+ * @list files holding one path per line. Each input x.ppm is written
+ * to outdir/x.kdt; files too large to map go through TiledCompressor
+ * and are written to outdir/x.kdtt instead.
+ *
+ * With -tiers, each (mapped) image is built once, at the largest depth
+ * and smallest threshold of the tiers, and that tree is pruned to every
+ * tier: outdir/x-q1.kdt, x-q2.kdt, ... in the order given. With the
+ * ycbcr metric the chroma depth must then be given (ycbcr:N), since
+ * its default follows the depth limit and would differ per tier.
+ *
+ * With -target, each (mapped) image is encoded by TargetEncoder to a
+ * byte budget (size:BYTES) or quality (psnr:DB or mse:F) instead of by
+ * threshold, and the PSNR reached is reported per file. The depth
+ * limit is then TargetEncoder's unless -depth is given. Target
+ * encoding tests RGB only, so it does not combine with -metric ycbcr,
+ * and neither do tiled files.
+ *
+ * Inputs may also be gray PGM (P5) files, built on one-channel tables,
+ * and PPM or PGM files with 16-bit samples (maxval over 255), scaled
+ * to 8 bits. -metric ycbcr tests homogeneity on luma and chroma
+ * instead of RGB (see TreeBuilder.Metric); ycbcr:N makes chroma stop
+ * counting at level N.
+ *
+ * -entropy writes version 4 containers (TreeCodec.Coding.ENTROPY), and
+ * -palette N first quantizes each tree's leaves to N colors (Palette),
+ * which is lossy but shrinks the entropy-coded output several times.
+ * A size target is met by the raw size; the entropy-coded container
+ * is then usually smaller still. Tiled .kdtt output is not affected.
+ *
+ * Usage:
+ *   java kdt.BatchCompress [-threads N] [-out DIR] [-depth N] [-thresh F]
+ *                          [-seed N] [-split random|variance] [-metric rgb|ycbcr[:N]]
+ *                          [-tiers depth:thresh,...] [-target size:N|psnr:DB|mse:F]
+ *                          [-entropy] [-palette N] [-metrics] input...
+ *
+ * -metrics counts nodes, pixels and per-phase and per-level times (see
+ * Metrics), prints them after the run and keeps them readable over JMX
+ * while it lasts.
+ */
+public class BatchCompress {
+    private final int threads;
+    private final Path outDir;
+    private final int MaxLevel;
+    private final float HomogeneityThresh;
+    private final long seed;
+    private TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+    private TreeBuilder.Metric metric = TreeBuilder.Metric.RGB;
+    private int chromaDepth = -1; // -1: the builder's default
+    private int[] tierDepths; // null: one output per image
+    private float[] tierThresh;
+    private long targetBytes; // 0 and targetMse 0: build by threshold
+    private double targetMse;
+    private TreeCodec.Coding coding = TreeCodec.Coding.RAW;
+    private int paletteColors; // 0: no quantization
+
+    // aggregate counters, updated by the workers
+    private final AtomicInteger done = new AtomicInteger(), failed = new AtomicInteger();
+    private final AtomicLong rawBytes = new AtomicLong(), outBytes = new AtomicLong(),
+            nodes = new AtomicLong();
+
+    public BatchCompress(int threads, Path outDir, int maxLevel, float homogeneityThresh, long seed) {
+        this.threads = threads;
+        this.outDir = outDir;
+        MaxLevel = maxLevel;
+        HomogeneityThresh = homogeneityThresh;
+        this.seed = seed;
+    }
+
+    /**
+     * @param split split strategy of the trees
+     */
+    public void setSplit(TreeBuilder.Split split) {
+        this.split = split;
+    }
+
+    /**
+     * @param metric homogeneity metric of the trees
+     * @param chromaDepth see TreeBuilder.setMetric; -1 for the default
+     */
+    public void setMetric(TreeBuilder.Metric metric, int chromaDepth) {
+        this.metric = metric;
+        this.chromaDepth = chromaDepth;
+    }
+
+    /**
+     * @param coding how the containers store their trees
+     * @param paletteColors quantize leaf colors to this many (see
+     *     Palette) before writing; 0 to keep them
+     */
+    public void setCoding(TreeCodec.Coding coding, int paletteColors) {
+        if (paletteColors < 0) throw new IllegalArgumentException("negative palette size");
+        this.coding = coding;
+        this.paletteColors = paletteColors;
+    }
+
+    /**
+     * Write several quality tiers per image, pruned from one build.
+     *
+     * @param depths depth limit of each tier
+     * @param thresh homogeneity threshold of each tier
+     */
+    public void setTiers(int[] depths, float[] thresh) {
+        if (depths.length != thresh.length) throw new IllegalArgumentException("tier lists differ in length");
+        this.tierDepths = depths;
+        this.tierThresh = thresh;
+    }
+
+    /**
+     * Encode to a size or quality target instead of by threshold (see
+     * TargetEncoder); the depth limit still applies.
+     *
+     * @param maxBytes container size limit, Long.MAX_VALUE for none
+     * @param maxMse mean squared error to reach, 0 for none
+     */
+    public void setTarget(long maxBytes, double maxMse) {
+        this.targetBytes = maxBytes;
+        this.targetMse = maxMse;
+    }
+
+    private boolean hasTarget() {
+        return targetBytes > 0 || targetMse > 0;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the options set do not go
+     *     together (see the class comment)
+     */
+    public void checkOptions() {
+        if (tierDepths != null && hasTarget())
+            throw new IllegalArgumentException("tiers and a target exclude each other");
+        if (metric != TreeBuilder.Metric.RGB && hasTarget())
+            throw new IllegalArgumentException("target encoding tests RGB only, not " + metric);
+        if (metric == TreeBuilder.Metric.YCBCR && tierDepths != null && chromaDepth < 0)
+            throw new IllegalArgumentException("tiers with ycbcr need a chroma depth (ycbcr:N)");
+    }
+
+    /**
+     * Expand inputs to the list of PPM files to compress.
+     *
+     * @param inputs files, directories and @list files
+     */
+    public static List<Path> collect(List<String> inputs) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String in : inputs) {
+            if (in.startsWith("@")) {
+                for (String line : Files.readAllLines(Paths.get(in.substring(1)))) {
+                    if (!line.isBlank()) files.add(Paths.get(line.trim()));
+                }
+            } else if (Files.isDirectory(Paths.get(in))) {
+                List<Path> dir = new ArrayList<>();
+                try (DirectoryStream<Path> ds = Files.newDirectoryStream(Paths.get(in), "*.{ppm,pgm}")) {
+                    for (Path p : ds) dir.add(p);
+                }
+                Collections.sort(dir);
+                files.addAll(dir);
+            } else {
+                files.add(Paths.get(in));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Compress every file and print one line per file plus a summary.
+     *
+     * @return number of files that failed
+     */
+    public int run(List<Path> files) throws InterruptedException, IOException {
+        checkOptions();
+        Files.createDirectories(outDir);
+        // bounded queue: the submitting thread runs a task itself when
+        // the workers are all busy and the queue is full
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        System.out.printf("%-40s %12s %12s %9s %9s %10s %8s%s%n",
+                "file", "raw bytes", "out bytes", "ms", "MB/s", "nodes", "ratio", hasTarget() ? "  PSNR dB" : "");
+        long start = System.nanoTime();
+        for (Path f : files) {
+            pool.execute(() -> compressOne(f));
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d compressed, %d failed, %.2f s, %.2f MB/s, %.2f images/s, %d nodes, ratio %.2f%n",
+                done.get(), failed.get(), secs, rawBytes.get() / 1e6 / secs, done.get() / secs,
+                nodes.get(), outBytes.get() == 0 ? 0.0 : (double) rawBytes.get() / outBytes.get());
+        return failed.get();
+    }
+
+    private void compressOne(Path in) {
+        String name = in.getFileName().toString();
+        String base = name.endsWith(".ppm") || name.endsWith(".pgm") ? name.substring(0, name.length() - 4) : name;
+        long t0 = System.nanoTime();
+        try {
+            long raw, written, n;
+            String quality = "";
+            if (Files.size(in) > Integer.MAX_VALUE) {
+                if (hasTarget()) throw new IOException("too large to map, no target encoding");
+                if (metric != TreeBuilder.Metric.RGB) throw new IOException("too large to map, no " + metric + " metric");
+                TiledCompressor tc = new TiledCompressor(MaxLevel, HomogeneityThresh, seed);
+                tc.setSplit(split);
+                written = tc.compress(in, outDir.resolve(base + ".kdtt"));
+                n = tc.getNodeCount();
+                raw = Files.size(in);
+            } else {
+                Image image = new Image(in.toString());
+                int depth = MaxLevel;
+                float thresh = HomogeneityThresh;
+                if (tierDepths != null) {
+                    // deep enough and fine enough for every tier
+                    depth = Arrays.stream(tierDepths).max().getAsInt();
+                    for (float t : tierThresh) thresh = Math.min(thresh, t);
+                }
+                // straight from the mapped raster; no PixelBuffer needed
+                RegionStats stats = image.toRegionStats(metric == TreeBuilder.Metric.YCBCR);
+
+                if (hasTarget()) {
+                    TargetEncoder.Result res = new TargetEncoder(MaxLevel).encode(stats, targetBytes, targetMse);
+                    KdTree tree = quantize(res.tree);
+                    written = TreeCodec.write(outDir.resolve(base + ".kdt"), res.header, tree, coding);
+                    n = tree.size();
+                    quality = String.format(" %8.2f", res.psnr());
+                } else {
+                    TreeBuilder builder = new TreeBuilder(depth, thresh, seed);
+                    builder.setSplit(split);
+                    if (chromaDepth < 0) {
+                        builder.setMetric(metric);
+                    } else {
+                        builder.setMetric(metric, chromaDepth);
+                    }
+                    KdTree tree = builder.build(stats);
+                    if (tierDepths == null) {
+                        tree = quantize(tree);
+                        written = TreeCodec.write(outDir.resolve(base + ".kdt"),
+                                new TreeCodec.Header(tree.getWidth(), tree.getHeight(), MaxLevel,
+                                        HomogeneityThresh, seed), tree, coding);
+                        n = tree.size();
+                    } else {
+                        written = n = 0;
+                        for (int q = 0; q < tierDepths.length; q++) {
+                            KdTree tier = quantize(tree.prune(tierDepths[q], tierThresh[q]));
+                            written += TreeCodec.write(outDir.resolve(base + "-q" + (q + 1) + ".kdt"),
+                                    new TreeCodec.Header(tier.getWidth(), tier.getHeight(), tierDepths[q],
+                                            tierThresh[q], seed), tier, coding);
+                            n += tier.size();
+                        }
+                    }
+                }
+                raw = (long) image.getWidth() * image.getHeight() * image.getChannels()
+                        * PpmFile.sampleBytes(image.getMaxVal());
+            }
+            double ms = (System.nanoTime() - t0) / 1e6;
+
+            done.incrementAndGet();
+            rawBytes.addAndGet(raw);
+            outBytes.addAndGet(written);
+            nodes.addAndGet(n);
+            System.out.printf("%-40s %12d %12d %9.1f %9.2f %10d %8.2f%s%n",
+                    name, raw, written, ms, raw / 1e3 / ms, n, (double) raw / written, quality);
+        } catch (IOException | RuntimeException e) {
+            failed.incrementAndGet();
+            System.out.printf("%-40s FAILED: %s%n", name, e);
+        }
+    }
+
+    private KdTree quantize(KdTree tree) {
+        return paletteColors > 0 ? Palette.quantize(tree, paletteColors) : tree;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int depth = -1;
+        float thresh = TreeBuilder.DEFAULT_HOMOGENEITY_THRESH;
+        long seed = new Random().nextLong();
+        Path out = Paths.get(".");
+        TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+        String tiers = null, target = null, metric = "rgb";
+        boolean metrics = false;
+        TreeCodec.Coding coding = TreeCodec.Coding.RAW;
+        int palette = 0;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                case "-out": out = Paths.get(args[++i]); break;
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-thresh": thresh = Float.parseFloat(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-split": split = TreeBuilder.Split.valueOf(args[++i].toUpperCase()); break;
+                case "-metric": metric = args[++i]; break;
+                case "-tiers": tiers = args[++i]; break;
+                case "-target": target = args[++i]; break;
+                case "-entropy": coding = TreeCodec.Coding.ENTROPY; break;
+                case "-palette": palette = Integer.parseInt(args[++i]); break;
+                case "-metrics": metrics = true; break;
+                default: usage();
+            }
+        }
+        if (i == args.length || (tiers != null && target != null)) usage();
+        if (depth < 0) depth = target != null ? TargetEncoder.DEFAULT_MAX_LEVEL : TreeBuilder.DEFAULT_MAX_LEVEL;
+
+        List<Path> files = collect(List.of(args).subList(i, args.length));
+        BatchCompress batch = new BatchCompress(threads, out, depth, thresh, seed);
+        batch.setSplit(split);
+        batch.setCoding(coding, palette);
+        String[] mc = metric.split(":");
+        if (mc.length > 2) usage();
+        batch.setMetric(TreeBuilder.Metric.valueOf(mc[0].toUpperCase()), mc.length == 2 ? Integer.parseInt(mc[1]) : -1);
+        if (tiers != null) {
+            String[] list = tiers.split(",");
+            int[] depths = new int[list.length];
+            float[] threshs = new float[list.length];
+            for (int q = 0; q < list.length; q++) {
+                String[] dt = list[q].split(":");
+                if (dt.length != 2) usage();
+                depths[q] = Integer.parseInt(dt[0]);
+                threshs[q] = Float.parseFloat(dt[1]);
+            }
+            batch.setTiers(depths, threshs);
+        }
+        if (target != null) {
+            String[] kv = target.split(":");
+            if (kv.length != 2) usage();
+            switch (kv[0]) {
+                case "size": batch.setTarget(Long.parseLong(kv[1]), 0); break;
+                case "psnr": batch.setTarget(Long.MAX_VALUE, TargetEncoder.mse(Double.parseDouble(kv[1]))); break;
+                case "mse": batch.setTarget(Long.MAX_VALUE, Double.parseDouble(kv[1])); break;
+                default: usage();
+            }
+        }
+        try {
+            batch.checkOptions();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+        }
+        if (metrics) {
+            Metrics.setEnabled(true);
+            Metrics.registerMBean();
+        }
+        int failed = batch.run(files);
+        if (metrics) System.out.print(Metrics.summary());
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.BatchCompress [-threads N] [-out DIR] [-depth N] [-thresh F]"
+                + " [-seed N] [-split random|variance] [-metric rgb|ycbcr[:N]] [-tiers depth:thresh,...]"
+                + " [-target size:N|psnr:DB|mse:F] [-entropy] [-palette N] [-metrics] input...");
+        System.err.println("  input: a .ppm or .pgm file, a directory of them, or @list of paths");
+        System.exit(2);
+    }
+}
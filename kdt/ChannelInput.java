@@ -0,0 +1,103 @@
+package kdt;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Buffered big-endian reader over a channel; counterpart of
+ * ChannelOutput.
+ */
+public class ChannelInput implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel ch;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long consumed; // bytes read from the channel before buf
+
+    public ChannelInput(ReadableByteChannel ch) {
+        this.ch = ch;
+        buf.flip(); // start empty
+    }
+
+    /**
+     * Make at least n bytes available.
+     *
+     * @throws EOFException if the channel ends first
+     */
+    private void require(int n) throws IOException {
+        if (buf.remaining() >= n) return;
+        consumed += buf.position();
+        buf.compact();
+        while (buf.position() < n) {
+            if (ch.read(buf) < 0) {
+                buf.flip();
+                throw new EOFException("unexpected end of stream");
+            }
+        }
+        buf.flip();
+    }
+
+    public int readByte() throws IOException {
+        require(1);
+        return buf.get() & 0xFF;
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        return buf.getInt();
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        return buf.getLong();
+    }
+
+    public float readFloat() throws IOException {
+        require(4);
+        return buf.getFloat();
+    }
+
+    public long readVarint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * Varint that must fit in an int.
+     */
+    public int readVarint32() throws IOException {
+        long v = readVarint();
+        if (v > Integer.MAX_VALUE) throw new IOException("varint out of range: " + v);
+        return (int) v;
+    }
+
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            require(1);
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return bytes consumed so far
+     */
+    public long position() {
+        return consumed + buf.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+}
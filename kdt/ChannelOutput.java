@@ -0,0 +1,98 @@
+package kdt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered big-endian writer over a channel, with LEB128 varints.
+ */
+public class ChannelOutput implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel ch;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long written; // bytes flushed to the channel
+
+    public ChannelOutput(WritableByteChannel ch) {
+        this.ch = ch;
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buf.remaining() < n) flush();
+    }
+
+    public void writeByte(int b) throws IOException {
+        ensure(1);
+        buf.put((byte) b);
+    }
+
+    public void writeInt(int v) throws IOException {
+        ensure(4);
+        buf.putInt(v);
+    }
+
+    public void writeLong(long v) throws IOException {
+        ensure(8);
+        buf.putLong(v);
+    }
+
+    public void writeFloat(float v) throws IOException {
+        ensure(4);
+        buf.putFloat(v);
+    }
+
+    /**
+     * Unsigned LEB128: 7 bits per byte, high bit set on all but the last.
+     */
+    public void writeVarint(long v) throws IOException {
+        ensure(10);
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    /**
+     * @return bytes writeVarint takes for v
+     */
+    public static int varintSize(long v) {
+        int n = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            n++;
+        }
+        return n;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensure(1);
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return total bytes written so far, including buffered ones
+     */
+    public long size() {
+        return written + buf.position();
+    }
+
+    public void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) written += ch.write(buf);
+        buf.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        ch.close();
+    }
+}
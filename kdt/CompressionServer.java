@@ -0,0 +1,657 @@
+package kdt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP front-end to the compressor, on the JDK's built-in
+ * server. Runs entirely locally; no Bridges account is involved.
+ *
+ *   POST /compress   body: a binary PPM (or PGM, or either with 16-bit
+ *                    samples). Returns the KDTI container, or with
+ *                    out=ppm (or roi/scale) the image decoded back
+ *                    from it. Query parameters override the server's
+ *                    defaults: depth, thresh, seed, split=random|variance,
+ *                    metric=rgb|ycbcr[:N] (see TreeBuilder.Metric),
+ *                    target=size:N|psnr:DB|mse:F (see TargetEncoder;
+ *                    RGB only, so not with metric),
+ *                    roi=xmin,ymin,xmax,ymax and scale=N (see TreeDecoder),
+ *                    coding=raw|entropy (see TreeCodec.Coding) and
+ *                    palette=N to quantize the leaf colors (see Palette).
+ *   POST /decode     body: a KDTI container. Returns the image as a PPM,
+ *                    optionally a window (roi) and downsampled (scale).
+ *   GET  /stats      request counts, queue state, latency percentiles
+ *                    and throughput, as "name value" lines.
+ *
+ * Every request is handled on its own virtual thread (JDK 21 on; a
+ * plain thread per request before that), which reads the upload and
+ * writes the response. The compressing and decoding itself is CPU
+ * bound and runs on a fixed pool of maxActive workers with a bounded
+ * queue: a request finding the queue full is turned away at once with
+ * 503 and Retry-After, so a burst cannot pile up work or memory, and
+ * the virtual threads never hold their carriers through a long build.
+ * Uploads over maxUpload bytes get 413, bad input 400.
+ *
+ * Images are bounded by pixels as well as bytes (setMaxPixels; a build
+ * keeps tables of about 48 bytes a pixel): an upload with more pixels
+ * gets 413 before any table is built, a container declaring more is
+ * rejected by TreeCodec.read with 400, as is any other malformed
+ * container, and so is a roi/scale whose output would have more.
+ *
+ * With a TreeCache (-cache MB), containers are kept under a hash of the
+ * uploaded raster and the encode parameters, and rendered rasters under
+ * that plus roi and scale (or, for /decode, a hash of the container):
+ * a repeated request is answered from the cache, and a new rendering of
+ * a cached container skips the build. Responses carry X-Kdt-Cache: hit
+ * or miss, and /stats reports the cache's counters.
+ *
+ * Usage:
+ *   java kdt.CompressionServer [-bind ADDR] [-port N] [-active N] [-queue N]
+ *                              [-max-upload MB] [-max-pixels N] [-depth N] [-thresh F]
+ *                              [-split random|variance] [-cache MB [-off-heap]]
+ */
+public class CompressionServer {
+    private static final String PPM_TYPE = "image/x-portable-pixmap";
+    private static final String KDT_TYPE = "application/octet-stream";
+    private static final int BUCKETS = 40; // latency histogram, bucket b: [2^b, 2^(b+1)) us
+    public static final long DEFAULT_MAX_PIXELS = 32L << 20;
+    // largest raster a PPM response body (3 bytes a pixel) can hold
+    private static final long MAX_OUTPUT_PIXELS = (Integer.MAX_VALUE - 64) / 3;
+
+    private final HttpServer server;
+    private final ExecutorService requestThreads;
+    private final ThreadPoolExecutor workers; // bounded queue, rejects when full
+    private final long maxUpload;
+    private volatile long maxPixels = DEFAULT_MAX_PIXELS;
+    private TreeCache cache; // null: none
+
+    // defaults for requests that do not override them
+    private int MaxLevel = TreeBuilder.DEFAULT_MAX_LEVEL;
+    private float HomogeneityThresh = TreeBuilder.DEFAULT_HOMOGENEITY_THRESH;
+    private TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+
+    // stats since start
+    private final long started = System.nanoTime();
+    private final LongAdder requests = new LongAdder(), succeeded = new LongAdder(),
+            rejected = new LongAdder(), failed = new LongAdder(),
+            bytesIn = new LongAdder(), bytesOut = new LongAdder(), pixels = new LongAdder();
+    private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Bind the server; call start() to serve.
+     *
+     * @param address address and port to listen on
+     * @param maxActive requests processed at once
+     * @param queue requests allowed to wait for a slot
+     * @param maxUpload largest request body accepted, in bytes
+     */
+    public CompressionServer(InetSocketAddress address, int maxActive, int queue, long maxUpload)
+            throws IOException {
+        if (maxActive < 1 || queue < 1) throw new IllegalArgumentException("need maxActive >= 1, queue >= 1");
+        this.maxUpload = maxUpload;
+        workers = new ThreadPoolExecutor(maxActive, maxActive, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queue), new ThreadPoolExecutor.AbortPolicy());
+        requestThreads = newRequestExecutor();
+
+        server = HttpServer.create(address, 0);
+        server.setExecutor(requestThreads);
+        server.createContext("/compress", admitted(this::compress));
+        server.createContext("/decode", admitted(this::decode));
+        server.createContext("/stats", this::stats);
+    }
+
+    /**
+     * Defaults for requests that do not set depth, thresh or split.
+     */
+    public void setDefaults(int maxLevel, float homogeneityThresh, TreeBuilder.Split split) {
+        MaxLevel = maxLevel;
+        HomogeneityThresh = homogeneityThresh;
+        this.split = split;
+    }
+
+    /**
+     * Largest image accepted, in pixels: uploads, containers and rendered
+     * output alike. Default DEFAULT_MAX_PIXELS.
+     */
+    public void setMaxPixels(long maxPixels) {
+        if (maxPixels < 1) throw new IllegalArgumentException("need maxPixels >= 1");
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * Cache results in c, or with null, not at all.
+     */
+    public void setCache(TreeCache c) {
+        cache = c;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop accepting requests, give running ones up to delay seconds
+     * to finish, then release the threads.
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        requestThreads.shutdown();
+        workers.shutdown();
+    }
+
+    /**
+     * @return the bound address (resolves port 0)
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    // one virtual thread per request where the JDK has them (21 on);
+    // looked up by name so the class still loads on older JDKs
+    private static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Thrown by handlers to answer with an HTTP error status.
+     */
+    private static class HttpError extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * What a worker hands back to the request thread to send.
+     */
+    private static class Response {
+        final String type;
+        final byte[] body;
+        final Map<String, String> headers = new HashMap<>();
+
+        Response(String type, byte[] body) {
+            this.type = type;
+            this.body = body;
+        }
+
+        // type, headers and body as one cache entry
+        byte[] pack() throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(body.length + 128);
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeUTF(type);
+            out.writeShort(headers.size());
+            for (Map.Entry<String, String> h : headers.entrySet()) {
+                out.writeUTF(h.getKey());
+                out.writeUTF(h.getValue());
+            }
+            out.write(body);
+            return buf.toByteArray();
+        }
+
+        static Response unpack(byte[] packed) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+            String type = in.readUTF();
+            Map<String, String> headers = new HashMap<>();
+            for (int n = in.readUnsignedShort(); n > 0; n--) headers.put(in.readUTF(), in.readUTF());
+            Response res = new Response(type, in.readAllBytes());
+            res.headers.putAll(headers);
+            return res;
+        }
+    }
+
+    /**
+     * The CPU-bound part of a request, run on a worker.
+     */
+    private interface Job {
+        Response run(Map<String, String> query, byte[] body) throws IOException, HttpError;
+    }
+
+    /**
+     * Wrap a job with admission control, error mapping and stats. The
+     * upload is read and the response written on the request thread.
+     */
+    private HttpHandler admitted(Job job) {
+        return ex -> {
+            long t0 = System.nanoTime();
+            requests.increment();
+            try {
+                if (!"POST".equals(ex.getRequestMethod())) throw new HttpError(405, "POST only");
+                Map<String, String> query = query(ex);
+                byte[] body = body(ex);
+
+                Future<Response> f;
+                try {
+                    f = workers.submit(() -> job.run(query, body));
+                } catch (RejectedExecutionException e) {
+                    rejected.increment();
+                    ex.getResponseHeaders().set("Retry-After", "1");
+                    throw new HttpError(503, "overloaded, try again later");
+                }
+                Response res = await(f);
+                res.headers.forEach(ex.getResponseHeaders()::set);
+                send(ex, 200, res.type, res.body);
+                succeeded.increment();
+            } catch (HttpError e) {
+                if (e.status != 503) failed.increment();
+                sendText(ex, e.status, e.getMessage());
+            } catch (IOException | RuntimeException e) {
+                failed.increment();
+                sendText(ex, 500, e.toString());
+            } finally {
+                ex.close();
+                long us = (System.nanoTime() - t0) / 1000;
+                latency.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(1, us))));
+            }
+        };
+    }
+
+    private static Response await(Future<Response> f) throws IOException, HttpError {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new HttpError(503, "interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof HttpError) throw (HttpError) cause;
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private Response compress(Map<String, String> q, byte[] body) throws IOException, HttpError {
+        PpmFile ppm;
+        try {
+            ppm = PpmFile.parse(ByteBuffer.wrap(body), "upload");
+        } catch (IOException e) {
+            throw new HttpError(400, e.getMessage());
+        }
+        int width = ppm.getWidth(), height = ppm.getHeight();
+        long limit = maxPixels;
+        if ((long) width * height > limit)
+            throw new HttpError(413, "image " + width + "x" + height + " has more than " + limit + " pixels");
+        pixels.add((long) width * height);
+        boolean image = "ppm".equals(q.get("out")) || q.containsKey("roi") || q.containsKey("scale");
+
+        String target = q.get("target"), params;
+        int depth;
+        float thresh = 0;
+        long seed = 0;
+        TreeBuilder.Split sp = null;
+        TreeBuilder.Metric metric = TreeBuilder.Metric.RGB;
+        int chromaDepth = -1;
+        TreeCodec.Coding coding;
+        int palette;
+        try {
+            coding = q.containsKey("coding") ? TreeCodec.Coding.valueOf(q.get("coding").toUpperCase())
+                    : TreeCodec.Coding.RAW;
+            palette = intParam(q, "palette", 0);
+            if (palette < 0) throw new IllegalArgumentException("palette " + palette);
+            if (target != null) {
+                if (q.containsKey("metric")) throw new IllegalArgumentException("target encoding takes no metric");
+                depth = intParam(q, "depth", TargetEncoder.DEFAULT_MAX_LEVEL);
+                params = width + "x" + height + " depth=" + depth + " target=" + target;
+            } else {
+                depth = intParam(q, "depth", MaxLevel);
+                thresh = q.containsKey("thresh") ? Float.parseFloat(q.get("thresh")) : HomogeneityThresh;
+                seed = q.containsKey("seed") ? Long.parseLong(q.get("seed")) : 0L;
+                sp = q.containsKey("split") ? TreeBuilder.Split.valueOf(q.get("split").toUpperCase()) : split;
+                if (q.containsKey("metric")) {
+                    String[] mc = q.get("metric").split(":");
+                    if (mc.length > 2) throw new IllegalArgumentException("metric " + q.get("metric"));
+                    metric = TreeBuilder.Metric.valueOf(mc[0].toUpperCase());
+                    if (mc.length == 2) chromaDepth = Integer.parseInt(mc[1]);
+                }
+                params = width + "x" + height + " depth=" + depth + " thresh=" + thresh + " seed=" + seed
+                        + " split=" + sp + " metric=" + metric + ":" + chromaDepth;
+            }
+            params += " channels=" + ppm.getChannels() + " maxval=" + ppm.getMaxVal()
+                    + " coding=" + coding + " palette=" + palette;
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "bad parameter: " + e.getMessage());
+        }
+
+        // the container for this raster and these parameters, if cached
+        String hash = cache == null ? null : TreeCache.hash(ppm.getRaster());
+        String kdtKey = "kdt:" + hash + ":" + params, imageKey = "ppm:" + hash + ":" + params + view(q);
+        Response container = null;
+        if (hash != null) {
+            byte[] hit = cache.get(image ? imageKey : kdtKey);
+            if (hit != null) return cached(hit);
+            if (image && (hit = cache.get(kdtKey)) != null) container = Response.unpack(hit);
+        }
+
+        KdTree tree;
+        if (container != null) {
+            tree = TreeCodec.read(new ChannelInput(Channels.newChannel(new ByteArrayInputStream(container.body))),
+                    limit).tree;
+        } else {
+            TreeCodec.Header header;
+            String psnr = null;
+            try {
+                if (target != null) {
+                    TargetEncoder.Result res = targetEncoder(depth, target, new RegionStats(ppm.getRaster(),
+                            width, height, ppm.getChannels(), ppm.getMaxVal(), false));
+                    tree = res.tree;
+                    header = res.header;
+                    psnr = String.format("%.2f", res.psnr());
+                } else {
+                    TreeBuilder builder = new TreeBuilder(depth, thresh, seed);
+                    builder.setSplit(sp);
+                    if (chromaDepth < 0) {
+                        builder.setMetric(metric);
+                    } else {
+                        builder.setMetric(metric, chromaDepth);
+                    }
+                    tree = builder.build(new RegionStats(ppm.getRaster(), width, height, ppm.getChannels(),
+                            ppm.getMaxVal(), metric == TreeBuilder.Metric.YCBCR));
+                    header = new TreeCodec.Header(width, height, depth, thresh, seed);
+                }
+                if (palette > 0) {
+                    tree = Palette.quantize(tree, palette);
+                    psnr = null; // that of the tree before quantizing
+                }
+            } catch (IllegalArgumentException e) {
+                throw new HttpError(400, "bad parameter: " + e.getMessage());
+            }
+            if (!image || hash != null) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                ChannelOutput out = new ChannelOutput(Channels.newChannel(buf));
+                TreeCodec.write(out, header, tree, coding);
+                out.flush();
+                container = new Response(KDT_TYPE, buf.toByteArray());
+            } else {
+                container = new Response(KDT_TYPE, null);
+            }
+            container.headers.put("X-Kdt-Nodes", Integer.toString(tree.size()));
+            if (psnr != null) container.headers.put("X-Kdt-Psnr", psnr);
+            if (hash != null) cache.put(kdtKey, container.pack());
+        }
+        if (!image) return miss(container);
+
+        Response res;
+        try {
+            res = image(render(tree, q, limit));
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "bad parameter: " + e.getMessage());
+        }
+        res.headers.putAll(container.headers);
+        if (hash != null) cache.put(imageKey, res.pack());
+        return miss(res);
+    }
+
+    // the part of a cache key that selects the rendering
+    private static String view(Map<String, String> q) {
+        return " roi=" + q.getOrDefault("roi", "all") + " scale=" + q.getOrDefault("scale", "1");
+    }
+
+    private static Response cached(byte[] packed) throws IOException {
+        Response res = Response.unpack(packed);
+        res.headers.put("X-Kdt-Cache", "hit");
+        return res;
+    }
+
+    private Response miss(Response res) {
+        if (cache != null) res.headers.put("X-Kdt-Cache", "miss");
+        return res;
+    }
+
+    private static TargetEncoder.Result targetEncoder(int depth, String target, RegionStats stats) {
+        String[] kv = target.split(":");
+        if (kv.length != 2) throw new IllegalArgumentException("target " + target);
+        TargetEncoder enc = new TargetEncoder(depth);
+        switch (kv[0]) {
+            case "size": return enc.encodeToSize(stats, Long.parseLong(kv[1]));
+            case "psnr": return enc.encodeToPsnr(stats, Double.parseDouble(kv[1]));
+            case "mse": return enc.encodeToMse(stats, Double.parseDouble(kv[1]));
+            default: throw new IllegalArgumentException("target " + target);
+        }
+    }
+
+    private Response decode(Map<String, String> q, byte[] body) throws IOException, HttpError {
+        String key = cache == null ? null : "ppm:" + TreeCache.hash(ByteBuffer.wrap(body)) + ":" + view(q);
+        if (key != null) {
+            byte[] hit = cache.get(key);
+            if (hit != null) return cached(hit);
+        }
+
+        // a container too large, too deep or malformed fails validation
+        // here, before anything is allocated for its pixels
+        long limit = maxPixels;
+        TreeCodec.Saved saved;
+        try {
+            saved = TreeCodec.read(new ChannelInput(Channels.newChannel(new ByteArrayInputStream(body))), limit);
+        } catch (IOException e) {
+            throw new HttpError(400, e.getMessage());
+        }
+        if (!saved.hasColors()) throw new HttpError(400, "version 1 container has no leaf colors");
+        pixels.add((long) saved.tree.getWidth() * saved.tree.getHeight());
+        Response res;
+        try {
+            res = image(render(saved.tree, q, limit));
+        } catch (IllegalArgumentException e) {
+            throw new HttpError(400, "bad parameter: " + e.getMessage());
+        }
+        if (key != null) cache.put(key, res.pack());
+        return miss(res);
+    }
+
+    // the whole image, or the window and scale asked for, of at most limit pixels
+    private static PixelBuffer render(KdTree tree, Map<String, String> q, long limit) {
+        int factor = intParam(q, "scale", 1);
+        int[] roi = {0, 0, tree.getWidth(), tree.getHeight()};
+        if (q.containsKey("roi")) {
+            roi = Arrays.stream(q.get("roi").split(",")).mapToInt(Integer::parseInt).toArray();
+            if (roi.length != 4) throw new IllegalArgumentException("roi needs xmin,ymin,xmax,ymax");
+        }
+        if (factor >= 1) {
+            // TreeDecoder checks the window itself; this only bounds the output
+            long w = ((long) roi[2] - roi[0] + factor - 1) / factor,
+                    h = ((long) roi[3] - roi[1] + factor - 1) / factor;
+            if (w > 0 && h > 0 && w * h > Math.min(limit, MAX_OUTPUT_PIXELS))
+                throw new IllegalArgumentException("output " + w + "x" + h + " has more than "
+                        + Math.min(limit, MAX_OUTPUT_PIXELS) + " pixels");
+        }
+        if (factor == 1 && !q.containsKey("roi")) return TreeDecoder.decode(tree);
+        return TreeDecoder.decode(tree, roi, factor);
+    }
+
+    private void stats(HttpExchange ex) throws IOException {
+        try {
+            double secs = (System.nanoTime() - started) / 1e9;
+            StringBuilder sb = new StringBuilder();
+            line(sb, "uptime_seconds", String.format("%.1f", secs));
+            line(sb, "requests", requests.sum());
+            line(sb, "succeeded", succeeded.sum());
+            line(sb, "rejected", rejected.sum());
+            line(sb, "failed", failed.sum());
+            line(sb, "active", workers.getActiveCount());
+            line(sb, "waiting", workers.getQueue().size());
+            line(sb, "max_active", workers.getMaximumPoolSize());
+            line(sb, "max_waiting", workers.getQueue().size() + workers.getQueue().remainingCapacity());
+            line(sb, "bytes_in", bytesIn.sum());
+            line(sb, "bytes_out", bytesOut.sum());
+            line(sb, "requests_per_second", String.format("%.2f", succeeded.sum() / secs));
+            line(sb, "megapixels_per_second", String.format("%.2f", pixels.sum() / 1e6 / secs));
+            line(sb, "latency_p50_ms", String.format("%.3f", percentile(0.5) / 1e3));
+            line(sb, "latency_p90_ms", String.format("%.3f", percentile(0.9) / 1e3));
+            line(sb, "latency_p99_ms", String.format("%.3f", percentile(0.99) / 1e3));
+            TreeCache c = cache;
+            if (c != null) {
+                long hits = c.getHits(), lookups = hits + c.getMisses();
+                line(sb, "cache_hits", hits);
+                line(sb, "cache_misses", c.getMisses());
+                line(sb, "cache_hit_ratio", String.format("%.3f", lookups == 0 ? 0.0 : (double) hits / lookups));
+                line(sb, "cache_evictions", c.getEvictions());
+                line(sb, "cache_entries", c.getEntries());
+                line(sb, "cache_bytes", c.getBytes());
+                line(sb, "cache_max_bytes", c.getMaxBytes());
+                line(sb, "cache_off_heap", c.isOffHeap());
+            }
+            sendText(ex, 200, sb.toString());
+        } finally {
+            ex.close();
+        }
+    }
+
+    private static void line(StringBuilder sb, String name, Object value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Smallest latency (upper bucket bound, us) that at least a
+     * fraction q of all requests stayed within.
+     */
+    private long percentile(double q) {
+        long total = 0;
+        for (int b = 0; b < BUCKETS; b++) total += latency.get(b);
+        if (total == 0) return 0;
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += latency.get(b);
+            if (seen >= q * total) return 1L << (b + 1);
+        }
+        return 1L << BUCKETS;
+    }
+
+    private byte[] body(HttpExchange ex) throws IOException, HttpError {
+        String length = ex.getRequestHeaders().getFirst("Content-Length");
+        if (length != null) {
+            long declared;
+            try {
+                declared = Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                throw new HttpError(400, "bad Content-Length: " + length);
+            }
+            if (declared > maxUpload) throw new HttpError(413, "upload larger than " + maxUpload + " bytes");
+        }
+        try (InputStream in = ex.getRequestBody()) {
+            byte[] b = in.readNBytes((int) Math.min(Integer.MAX_VALUE, maxUpload + 1));
+            if (b.length > maxUpload) throw new HttpError(413, "upload larger than " + maxUpload + " bytes");
+            bytesIn.add(b.length);
+            return b;
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange ex) {
+        Map<String, String> q = new HashMap<>();
+        String raw = ex.getRequestURI().getRawQuery();
+        if (raw == null) return q;
+        for (String pair : raw.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq), value = eq < 0 ? "" : pair.substring(eq + 1);
+            q.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return q;
+    }
+
+    private static int intParam(Map<String, String> q, String name, int def) {
+        return q.containsKey(name) ? Integer.parseInt(q.get(name)) : def;
+    }
+
+    private static Response image(PixelBuffer pb) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(pb.getWidth() * pb.getHeight() * 3 + 32);
+        WritableByteChannel ch = Channels.newChannel(buf);
+        PpmFile.writeHeader(ch, pb.getWidth(), pb.getHeight());
+        PpmFile.writeRows(ch, pb, pb.getHeight());
+        return new Response(PPM_TYPE, buf.toByteArray());
+    }
+
+    private void sendText(HttpExchange ex, int status, String text) throws IOException {
+        send(ex, status, "text/plain; charset=utf-8", (text + (text.endsWith("\n") ? "" : "\n"))
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void send(HttpExchange ex, int status, String type, byte[] body) throws IOException {
+        ex.getResponseHeaders().set("Content-Type", type);
+        ex.sendResponseHeaders(status, body.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(body);
+        }
+        bytesOut.add(body.length);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String bind = "127.0.0.1";
+        int port = 8080, maxActive = Runtime.getRuntime().availableProcessors(), queue = 64;
+        long maxUpload = 256L << 20, maxPixels = DEFAULT_MAX_PIXELS;
+        int depth = TreeBuilder.DEFAULT_MAX_LEVEL;
+        float thresh = TreeBuilder.DEFAULT_HOMOGENEITY_THRESH;
+        TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+        long cacheBytes = 0;
+        boolean offHeap = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-bind": bind = args[++i]; break;
+                case "-port": port = Integer.parseInt(args[++i]); break;
+                case "-active": maxActive = Integer.parseInt(args[++i]); break;
+                case "-queue": queue = Integer.parseInt(args[++i]); break;
+                case "-max-upload": maxUpload = Long.parseLong(args[++i]) << 20; break;
+                case "-max-pixels": maxPixels = Long.parseLong(args[++i]); break;
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-thresh": thresh = Float.parseFloat(args[++i]); break;
+                case "-split": split = TreeBuilder.Split.valueOf(args[++i].toUpperCase()); break;
+                case "-cache": cacheBytes = Long.parseLong(args[++i]) << 20; break;
+                case "-off-heap": offHeap = true; break;
+                default: usage();
+            }
+        }
+
+        CompressionServer s = new CompressionServer(new InetSocketAddress(bind, port), maxActive, queue, maxUpload);
+        s.setDefaults(depth, thresh, split);
+        s.setMaxPixels(maxPixels);
+        if (cacheBytes > 0) s.setCache(new TreeCache(cacheBytes, offHeap));
+        s.start();
+        System.out.println("listening on http://" + bind + ":" + s.getAddress().getPort()
+                + " (" + maxActive + " active, " + queue + " waiting"
+                + (cacheBytes > 0 ? ", " + (cacheBytes >> 20) + " MB cache" + (offHeap ? " off-heap" : "") : "") + ")");
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.CompressionServer [-bind ADDR] [-port N] [-active N] [-queue N]"
+                + " [-max-upload MB] [-max-pixels N] [-depth N] [-thresh F] [-split random|variance]"
+                + " [-cache MB [-off-heap]]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,373 @@
+package kdt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Body of a version 4 tree container (see TreeCodec): the nodes in
+ * pre-order, coded with RangeCoder instead of as raw bytes.
+ *
+ * Layout: a mode byte, then for INDEXED a varint palette size and the
+ * palette's r,g,b bytes, then one range-coded stream holding
+ *   - per node, an internal/leaf bit, in a context per depth;
+ *   - per internal node, its axis bit, in a context of the parent's
+ *     axis and the region's shape, and its partition as the signed
+ *     distance from the middle of the region, in a model per size
+ *     class of the region;
+ *   - COLORS: leaf colors as an integer lifting transform over the
+ *     tree. Every node gets a value, its leaf color or the area-weighted
+ *     average of its children's values rounded down; the stream holds
+ *     the root's value and, at every internal node, the difference d of
+ *     its children's values. From the parent's value P the reader gets
+ *     left = P + ceil(d * right area / area) and right = left - d,
+ *     exactly, so a leaf costs one difference and nothing is spent on
+ *     rounding. Differences are coded for green, and for red and blue
+ *     less green's, as they mostly move together.
+ *   - INDEXED: at every leaf, whether its palette index repeats the
+ *     previous leaf's, and if not the index.
+ * Internal colors are those TreeCodec.read derives for every version
+ * (area-weighted averages of the children, rounded), so the tree read
+ * back is the same whichever way it was stored.
+ *
+ * The writer uses INDEXED when the leaves have at most MAX_PALETTE
+ * colors (see Palette) and it codes smaller than COLORS.
+ */
+class EntropyCodec {
+    static final int MAX_PALETTE = 256;
+    private static final int COLORS = 0, INDEXED = 1;
+
+    private static final int DEPTHS = 32;     // structure contexts
+    private static final int SIZE_CLASSES = 32;
+    private static final int BANDS = 8;       // color contexts: depth / 4, capped
+
+    /**
+     * Adaptive state; the writer and reader must evolve it identically.
+     */
+    private static class Models {
+        final short[] structure = RangeCoder.contexts(DEPTHS);
+        final short[] axis = RangeCoder.contexts(9);
+        final short[][] offset = new short[SIZE_CLASSES][];
+        final short[][][] color = new short[BANDS][3][];
+        final short[] repeat = RangeCoder.contexts(BANDS);
+        final short[] index = RangeCoder.contexts(MAX_PALETTE);
+
+        Models() {
+            for (int i = 0; i < SIZE_CLASSES; i++) offset[i] = RangeCoder.uintContexts();
+            for (short[][] band : color) {
+                for (int c = 0; c < 3; c++) band[c] = RangeCoder.uintContexts();
+            }
+        }
+    }
+
+    static void write(ChannelOutput out, KdTree tree) throws IOException {
+        int[] colors = new int[tree.size()];
+        lift(tree, 0, 0, 0, tree.getWidth(), tree.getHeight(), colors);
+        int[] palette = palette(tree);
+
+        if (palette == null) {
+            out.writeByte(COLORS);
+            new Writer(out, tree, colors, null).run();
+            return;
+        }
+        byte[] direct = encode(tree, colors, null), indexed = encode(tree, colors, palette);
+        if (direct.length <= indexed.length) {
+            out.writeByte(COLORS);
+            out.write(direct, 0, direct.length);
+        } else {
+            out.writeByte(INDEXED);
+            out.writeVarint(palette.length);
+            for (int rgb : palette) {
+                out.writeByte(PixelBuffer.red(rgb));
+                out.writeByte(PixelBuffer.green(rgb));
+                out.writeByte(PixelBuffer.blue(rgb));
+            }
+            out.write(indexed, 0, indexed.length);
+        }
+    }
+
+    private static byte[] encode(KdTree tree, int[] colors, int[] palette) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ChannelOutput out = new ChannelOutput(Channels.newChannel(buf));
+        new Writer(out, tree, colors, palette).run();
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    /**
+     * Append the coded tree to tree, which must be empty.
+     *
+     * @param maxNodes most nodes to accept (see TreeCodec.read)
+     */
+    static void read(ChannelInput in, KdTree tree, int maxNodes) throws IOException {
+        int mode = in.readByte();
+        int[] palette = null;
+        if (mode == INDEXED) {
+            int n = in.readVarint32();
+            if (n < 1 || n > MAX_PALETTE) throw new IOException("bad palette size " + n);
+            palette = new int[n];
+            for (int i = 0; i < n; i++) palette[i] = PixelBuffer.pack(in.readByte(), in.readByte(), in.readByte());
+        } else if (mode != COLORS) {
+            throw new IOException("unknown coding mode " + mode);
+        }
+        new Reader(in, tree, palette).run(maxNodes);
+    }
+
+    // distinct leaf colors in order of appearance, null if too many
+    private static int[] palette(KdTree tree) {
+        Map<Integer, Integer> seen = new HashMap<>();
+        for (int t = 0; t < tree.size(); t++) {
+            if (!tree.isLeaf(t)) continue;
+            seen.putIfAbsent(tree.color(t), seen.size());
+            if (seen.size() > MAX_PALETTE) return null;
+        }
+        int[] palette = new int[seen.size()];
+        seen.forEach((rgb, i) -> palette[i] = rgb);
+        return palette;
+    }
+
+    // every node's lifted value: leaf colors, floored averages above
+    private static int lift(KdTree tree, int t, int xmin, int ymin, int xmax, int ymax, int[] colors) {
+        if (tree.isLeaf(t)) return colors[t] = tree.color(t);
+        int p = tree.split(t);
+        int a, b;
+        long first;
+        if (tree.axis(t) == KdTree.X) {
+            a = lift(tree, tree.left(t), xmin, ymin, p, ymax, colors);
+            b = lift(tree, tree.right(t), p, ymin, xmax, ymax, colors);
+            first = (long) (p - xmin) * (ymax - ymin);
+        } else {
+            a = lift(tree, tree.left(t), xmin, ymin, xmax, p, colors);
+            b = lift(tree, tree.right(t), xmin, p, xmax, ymax, colors);
+            first = (long) (xmax - xmin) * (p - ymin);
+        }
+        long total = (long) (xmax - xmin) * (ymax - ymin), second = total - first;
+        int rgb = 0;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            long l = (a >> shift) & 0xFF, r = (b >> shift) & 0xFF;
+            rgb |= (int) Math.floorDiv(l * first + r * second, total) << shift;
+        }
+        return colors[t] = rgb;
+    }
+
+    private static int axisContext(int parentAxis, int w, int h) {
+        return (parentAxis + 1) * 3 + (w > h ? 0 : w < h ? 1 : 2);
+    }
+
+    private static int sizeClass(int extent) {
+        return 31 - Integer.numberOfLeadingZeros(Math.max(1, extent));
+    }
+
+    private static int band(int level) {
+        return Math.min(BANDS - 1, level / 4);
+    }
+
+    private static int bits(int n) {
+        return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    /**
+     * Inverse lifting step: one channel of the left child's value.
+     */
+    private static int unlift(int parent, int d, long second, long total) {
+        return parent - (int) Math.floorDiv(-d * second, total);
+    }
+
+    /**
+     * Pre-order writer.
+     */
+    private static class Writer {
+        private final RangeCoder.Encoder enc;
+        private final KdTree tree;
+        private final int[] colors;
+        private final Models m = new Models();
+        private final Map<Integer, Integer> index; // palette color to index; null for COLORS
+        private final int indexBits;
+        private int previous;
+
+        Writer(ChannelOutput out, KdTree tree, int[] colors, int[] palette) {
+            enc = new RangeCoder.Encoder(out);
+            this.tree = tree;
+            this.colors = colors;
+            if (palette == null) {
+                index = null;
+                indexBits = 0;
+            } else {
+                index = new HashMap<>();
+                for (int i = 0; i < palette.length; i++) index.put(palette[i], i);
+                indexBits = bits(palette.length);
+            }
+        }
+
+        void run() throws IOException {
+            if (index == null) enc.direct(colors[0], 24);
+            node(0, 0, 0, tree.getWidth(), tree.getHeight(), 0, -1);
+            enc.finish();
+        }
+
+        private void node(int t, int xmin, int ymin, int xmax, int ymax, int level, int parentAxis)
+                throws IOException {
+            boolean leaf = tree.isLeaf(t);
+            enc.bit(m.structure, Math.min(level, DEPTHS - 1), leaf ? 0 : 1);
+            if (leaf) {
+                if (index != null) leafIndex(index.get(tree.color(t)), level);
+                return;
+            }
+
+            int w = xmax - xmin, h = ymax - ymin, a = tree.axis(t), p = tree.split(t);
+            enc.bit(m.axis, axisContext(parentAxis, w, h), a);
+            int lo = a == KdTree.X ? xmin : ymin, extent = a == KdTree.X ? w : h;
+            enc.sint(m.offset[sizeClass(extent)], p - lo - extent / 2);
+
+            int left = tree.left(t), right = tree.right(t);
+            if (index == null) difference(level, colors[left], colors[right]);
+            if (a == KdTree.X) {
+                node(left, xmin, ymin, p, ymax, level + 1, a);
+                node(right, p, ymin, xmax, ymax, level + 1, a);
+            } else {
+                node(left, xmin, ymin, xmax, p, level + 1, a);
+                node(right, xmin, p, xmax, ymax, level + 1, a);
+            }
+        }
+
+        private void difference(int level, int left, int right) throws IOException {
+            short[][] models = m.color[band(level)];
+            int dg = PixelBuffer.green(left) - PixelBuffer.green(right);
+            enc.sint(models[1], dg);
+            enc.sint(models[0], PixelBuffer.red(left) - PixelBuffer.red(right) - dg);
+            enc.sint(models[2], PixelBuffer.blue(left) - PixelBuffer.blue(right) - dg);
+        }
+
+        private void leafIndex(int i, int level) throws IOException {
+            enc.bit(m.repeat, band(level), i == previous ? 1 : 0);
+            if (i != previous) {
+                // binary tree of contexts over the index bits, high bit first
+                for (int b = indexBits - 1, node = 1; b >= 0; b--) {
+                    int bit = (i >>> b) & 1;
+                    enc.bit(m.index, node, bit);
+                    node = node << 1 | bit;
+                }
+            }
+            previous = i;
+        }
+    }
+
+    /**
+     * Pre-order reader, mirror of Writer. Appends to the tree.
+     */
+    private static class Reader {
+        // right children still to read: xmin, ymin, xmax, ymax, level,
+        // parent's axis, lifted value, parent node
+        private static final int INTS = 8;
+
+        private final RangeCoder.Decoder dec;
+        private final KdTree tree;
+        private final Models m = new Models();
+        private final int[] palette; // null for COLORS
+        private final int indexBits;
+        private final int[] lr = new int[2]; // children's values, see children
+        private int previous;
+
+        Reader(ChannelInput in, KdTree tree, int[] palette) throws IOException {
+            dec = new RangeCoder.Decoder(in);
+            this.tree = tree;
+            this.palette = palette;
+            indexBits = palette == null ? 0 : bits(palette.length);
+        }
+
+        /**
+         * Iterative, as TreeBuilder builds: the left child of a split
+         * is read next and its right sibling waits on an explicit
+         * stack. Partitions and size are checked as TreeCodec.read
+         * checks them.
+         */
+        void run(int maxNodes) throws IOException {
+            int[] pending = new int[32 * INTS];
+            int top = 0;
+            int xmin = 0, ymin = 0, xmax = tree.getWidth(), ymax = tree.getHeight();
+            int level = 0, parentAxis = -1;
+            int rgb = palette == null ? dec.direct(24) : 0; // the node's lifted value; 0 when INDEXED
+            while (true) {
+                if (dec.bit(m.structure, Math.min(level, DEPTHS - 1)) == 0) {
+                    tree.addLeaf(palette == null ? rgb : palette[leafIndex(level)]);
+                    TreeCodec.checkSize(tree, maxNodes);
+                    // continue with the right child of the deepest open split
+                    if (top == 0) break;
+                    top -= INTS;
+                    xmin = pending[top];
+                    ymin = pending[top + 1];
+                    xmax = pending[top + 2];
+                    ymax = pending[top + 3];
+                    level = pending[top + 4];
+                    parentAxis = pending[top + 5];
+                    rgb = pending[top + 6];
+                    tree.setRight(pending[top + 7], tree.size());
+                    continue;
+                }
+
+                int w = xmax - xmin, h = ymax - ymin;
+                int a = dec.bit(m.axis, axisContext(parentAxis, w, h));
+                int extent = a == KdTree.X ? w : h;
+                int p = TreeCodec.partition(xmin, ymin, xmax, ymax, a,
+                        (long) dec.sint(m.offset[sizeClass(extent)]) + extent / 2);
+
+                int t = tree.addInternal(a, p, 0);
+                TreeCodec.checkSize(tree, maxNodes);
+                int left = 0, right = 0;
+                if (palette == null) {
+                    long total = (long) w * h, first = a == KdTree.X ? (long) (p - xmin) * h : (long) w * (p - ymin);
+                    int[] lr = children(level, rgb, total - first, total);
+                    left = lr[0];
+                    right = lr[1];
+                }
+                if (top == pending.length) pending = Arrays.copyOf(pending, 2 * top);
+                pending[top] = a == KdTree.X ? p : xmin;
+                pending[top + 1] = a == KdTree.X ? ymin : p;
+                pending[top + 2] = xmax;
+                pending[top + 3] = ymax;
+                pending[top + 4] = level + 1;
+                pending[top + 5] = a;
+                pending[top + 6] = right;
+                pending[top + 7] = t;
+                top += INTS;
+                if (a == KdTree.X) {
+                    xmax = p;
+                } else {
+                    ymax = p;
+                }
+                level++;
+                parentAxis = a;
+                rgb = left;
+            }
+            tree.mergeColors();
+        }
+
+        // left and right values from the parent's and their difference
+        private int[] children(int level, int parent, long second, long total) throws IOException {
+            short[][] models = m.color[band(level)];
+            int dg = dec.sint(models[1]);
+            int dr = dec.sint(models[0]) + dg, db = dec.sint(models[2]) + dg;
+            int r = unlift(PixelBuffer.red(parent), dr, second, total);
+            int g = unlift(PixelBuffer.green(parent), dg, second, total);
+            int b = unlift(PixelBuffer.blue(parent), db, second, total);
+            if ((r | g | b | (r - dr) | (g - dg) | (b - db)) >>> 8 != 0) throw new IOException("corrupt color");
+            lr[0] = PixelBuffer.pack(r, g, b);
+            lr[1] = PixelBuffer.pack(r - dr, g - dg, b - db);
+            return lr;
+        }
+
+        private int leafIndex(int level) throws IOException {
+            if (dec.bit(m.repeat, band(level)) == 0) {
+                int node = 1;
+                for (int b = 0; b < indexBits; b++) node = node << 1 | dec.bit(m.index, node);
+                int i = node - (1 << indexBits);
+                if (i >= palette.length) throw new IOException("corrupt palette index " + i);
+                previous = i;
+            }
+            return previous;
+        }
+    }
+}
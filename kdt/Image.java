@@ -0,0 +1,268 @@
+package kdt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Read and store image.
+ * Converts to a PixelBuffer for compression; see BridgesAdapter for
+ * conversion to a Bridges ColorGrid for display.
+ * @author HENRY WANDOVER
+ */
+public class Image {
+    private int width, height, maxVal; // image dimensions
+    private int channels = 3; // 1 for a PGM
+    private ByteBuffer raster; // read-only samples, mapped from the file
+
+
+    public Image() {
+        width = height = maxVal = 0;
+        raster = null;
+    }
+
+    /**
+     * creates an image object by mapping the input image in
+     * binary PPM (or PGM, gray)
+     *  All IO exceptions are thrown and must be
+     *  dealt with by caller.
+     *
+     * @param input_file name of PPM file (binary,not ascii)
+     */
+
+    public Image(String input_file) throws IOException, FileNotFoundException {
+        File f = new File(input_file); // Creates File obj
+        if (!f.isFile()) throw new FileNotFoundException(input_file);
+
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.PPM_LOAD)) {
+            PpmFile ppm = PpmFile.open(f.toPath());
+            width = ppm.getWidth();
+            height = ppm.getHeight();
+            maxVal = ppm.getMaxVal();
+            channels = ppm.getChannels();
+            raster = ppm.getRaster();
+            span.pixels((long) width * height);
+        }
+    }
+
+    /**
+     * Read-only, zero-copy view of the pixel data, row-major: for an
+     * 8-bit PPM interleaved r,g,b bytes, width * height * 3 long; else
+     * see PpmFile.getRaster.
+     *
+     * @return raster view, positioned at its first byte
+     */
+    public ByteBuffer getRaster() {
+        return raster.duplicate();
+    }
+
+
+    /**
+     * Pack the raster straight into a primitive pixel buffer,
+     * one int per pixel.
+     *
+     * @return raster as pixel buffer
+     */
+    public PixelBuffer toPixelBuffer() {
+        return PixelBuffer.fromRaster(getRaster(), width, height, channels, maxVal);
+    }
+
+    /**
+     * Summed-area tables straight from the raster, with no PixelBuffer
+     * in between; one channel for a gray image.
+     *
+     * @param lumaChroma also keep luma and chroma sums (see
+     *     RegionStats.lumaChromaVariance)
+     */
+    public RegionStats toRegionStats(boolean lumaChroma) {
+        return new RegionStats(getRaster(), width, height, channels, maxVal, lumaChroma);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMaxVal() {
+        return maxVal;
+    }
+
+    /**
+     * @return 3, or 1 for a gray (PGM) image
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * Return avg RGB in PixelBuffer for entire region
+     * @param pb pixels to process
+     * @param region {xmin,ymin,xmax,ymax}
+     * @return avg RGB, packed 0xRRGGBB
+     */
+    public static int avgColor(PixelBuffer pb, int[] region) {
+        long[] rgb = {0,0,0}; // red, green, and blue
+        int size = regionSize(region); // XX if zero??
+        Metrics.scanned(size);
+
+        RegionKernels.get().sums(pb.getPixels(), pb.getWidth(), region, rgb);
+
+        return PixelBuffer.pack((int) (rgb[0] / size), (int) (rgb[1] / size), (int) (rgb[2] / size));
+    }
+
+    /**
+     * Return avg RGB for region using precomputed summed-area tables.
+     * Same (truncated) result as avgColor(pb, region), in O(1).
+     * @param stats tables of the unpainted buffer
+     * @param region {xmin,ymin,xmax,ymax}
+     * @return avg RGB, packed 0xRRGGBB
+     */
+    public static int avgColor(RegionStats stats, int[] region) {
+        int[] rgb = avgRGB(stats, region);
+        return PixelBuffer.pack(rgb[0], rgb[1], rgb[2]);
+    }
+
+    private static int[] avgRGB(RegionStats stats, int[] region) {
+        int size = regionSize(region);
+        long[] sums = stats.sums(region);
+
+        return new int[]{(int) (sums[0] / size), (int) (sums[1] / size),
+                (int) (sums[2] / size)};
+    }
+
+    /**
+     *  Color the region with an average color
+     * @param pb  pixels to set
+     * @param region used to set pixels.
+     */
+    public static void ColorRegion(PixelBuffer pb, int[] region) {
+        ColorRegion(pb,region,avgColor(pb,region));
+    }
+
+    /**
+     *  Color the region with its average color, taken from the tables
+     * @param pb  pixels to set
+     * @param region used to set pixels.
+     * @param stats tables of the unpainted buffer
+     */
+    public static void ColorRegion(PixelBuffer pb, int[] region, RegionStats stats) {
+        ColorRegion(pb,region,avgColor(stats,region));
+    }
+
+
+    /**
+     Color the provided region with the provided color.
+     There are two versions of this function, depending on whether a
+     constant or average color is used.  The average color is the average
+     r,g,b of all pixels in the region.
+     Use function overloading to implement the functions
+     *
+     * @param pb  the pixels
+     * @param region the region to use
+     * @param rgb the color, packed 0xRRGGBB
+     */
+    public static void ColorRegion(PixelBuffer pb, int[] region, int rgb) {
+        pb.fill(region, rgb);
+    }
+
+    /**
+     * Color a partitioning line. The region is degenerate in one
+     * dimension: {x,ymin,x,ymax} for an X partition, {xmin,y,xmax,y}
+     * for a Y partition.
+     *
+     * @param pb  the pixels
+     * @param region line to draw
+     * @param rgb the color, packed 0xRRGGBB
+     */
+    public static void ColorLine(PixelBuffer pb, int[] region, int rgb) {
+        if (region[0] == region[2]) {
+            if (region[0] >= pb.getWidth()) return;
+            for (int row = region[1]; row < region[3]; row++) {
+                pb.set(row, region[0], rgb);
+            }
+        } else if (region[1] == region[3]) {
+            if (region[1] >= pb.getHeight()) return;
+            pb.fill(new int[]{region[0], region[1], region[2], region[1] + 1}, rgb);
+        }
+    }
+
+
+    /**
+     * Test a given region for homogeneity, i.e.,
+     * if the region is within a threshold for approximation
+     *
+     * @param pb pixels
+     * @param region
+     * @return true iff homogenous
+     */
+    public static boolean IsRegionHomogeneous(PixelBuffer pb, int[] region, double thresh) {
+        int size = regionSize(region);
+
+        // Minimum is 4 pixels (return true if < 4)
+        if (size < 4) return true;
+
+        int avg = avgColor(pb, region); // XX good re-use
+        Metrics.scanned(size);
+
+        // need to compute variance here for RGB (each color separately);
+        // summed exactly, then divided, as RegionStats.variance does
+        double VAR = (double) RegionKernels.get().squaredError(pb.getPixels(), pb.getWidth(), region, avg) / size;
+
+        // If variance of the sum of the three is less than some small
+        // value, return true, else false.  ????
+        if (VAR < thresh) return true;
+        else return false;
+    }
+
+    /**
+     * Same test as IsRegionHomogeneous(pb, region, thresh), but the
+     * mean and variance come from the summed-area tables instead of
+     * two scans of the region.
+     *
+     * @param stats tables of the unpainted buffer
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param thresh homogeneity threshold
+     * @return true iff homogenous
+     */
+    public static boolean IsRegionHomogeneous(RegionStats stats, int[] region, double thresh) {
+        int size = regionSize(region);
+
+        // Minimum is 4 pixels (return true if < 4)
+        if (size < 4) return true;
+
+        return stats.variance(region, size, avgRGB(stats, region)) < thresh;
+    }
+
+    /**
+     * The variance IsRegionHomogeneous tests against the threshold,
+     * from the summed-area tables. Regions under 4 pixels, which always
+     * count as homogeneous, report 0.
+     *
+     * @param stats tables of the unpainted buffer
+     * @param region {xmin,ymin,xmax,ymax}
+     * @return summed RGB variance of the region
+     */
+    public static double regionVariance(RegionStats stats, int[] region) {
+        int size = regionSize(region);
+        if (size < 4) return 0;
+        return stats.variance(region, size, avgRGB(stats, region));
+    }
+
+    public static int regionSize(int region[]) {
+        return regionSize(region[0], region[1], region[2], region[3]);
+    }
+
+    public static int regionSize(int xmin, int ymin, int xmax, int ymax) {
+        int totalX = xmax - xmin;
+        int totalY = ymax - ymin;
+
+        if (totalX == 0) totalX = 1;
+        if (totalY == 0) totalY = 1;
+
+        return totalX * totalY;
+    }
+}
+
@@ -0,0 +1,353 @@
+package kdt;
+
+import java.util.Arrays;
+
+/**
+ * KD tree of an image stored as parallel primitive arrays, one slot per
+ * node, in pre-order. The left child of an internal node i is i + 1 and
+ * its right child is right(i), so a subtree occupies one contiguous
+ * index range. The root (index 0) covers {0,0,width,height}; a node's
+ * region follows from the splits on the path to it.
+ *
+ * Trees made by TreeBuilder also record each node's variance (the
+ * value tested against the homogeneity threshold), so a deep tree can
+ * be pruned to lower quality levels without the pixels; see prune.
+ */
+public class KdTree {
+    public static final byte LEAF = -1;
+    public static final byte X = 0; // split on columns
+    public static final byte Y = 1; // split on rows
+
+    private final int width, height;
+    private int size;
+    private byte[] axis;  // LEAF, X or Y
+    private int[] split;  // partition position, internal nodes only
+    private int[] right;  // index of the right child, internal nodes only
+    private int[] color;  // average color of the node's region, packed 0xRRGGBB
+    private float[] variance; // region variance per node, null if not recorded
+
+    public KdTree(int width, int height) {
+        this(width, height, 64);
+    }
+
+    /**
+     * @param capacity expected number of nodes
+     */
+    public KdTree(int width, int height, int capacity) {
+        this.width = width;
+        this.height = height;
+        capacity = Math.max(capacity, 1);
+        axis = new byte[capacity];
+        split = new int[capacity];
+        right = new int[capacity];
+        color = new int[capacity];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return number of nodes
+     */
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int n) {
+        if (n <= axis.length) return;
+        int cap = Math.max(n, axis.length * 2);
+        axis = Arrays.copyOf(axis, cap);
+        split = Arrays.copyOf(split, cap);
+        right = Arrays.copyOf(right, cap);
+        color = Arrays.copyOf(color, cap);
+        if (variance != null) variance = Arrays.copyOf(variance, cap);
+    }
+
+    /**
+     * Append a leaf in pre-order.
+     *
+     * @param rgb color of the leaf's region
+     * @return its index
+     */
+    public int addLeaf(int rgb) {
+        ensureCapacity(size + 1);
+        axis[size] = LEAF;
+        color[size] = rgb;
+        return size++;
+    }
+
+    /**
+     * Append an internal node in pre-order. Its left subtree must be
+     * appended next, then setRight called before the right subtree.
+     *
+     * @param dim X or Y
+     * @param partition split position on that axis
+     * @param rgb average color of the node's region
+     * @return its index
+     */
+    public int addInternal(int dim, int partition, int rgb) {
+        ensureCapacity(size + 1);
+        axis[size] = (byte) dim;
+        split[size] = partition;
+        color[size] = rgb;
+        return size++;
+    }
+
+    public void setRight(int node, int child) {
+        right[node] = child;
+    }
+
+    /**
+     * Append a whole tree (e.g. a subtree built by another thread) in
+     * pre-order, shifting its child indices.
+     */
+    public void append(KdTree sub) {
+        append(sub, 0, sub.size);
+    }
+
+    /**
+     * Append one subtree of another tree, nodes from to subtreeEnd(from)
+     * (or several consecutive whole subtrees), shifting child indices.
+     *
+     * @param from first index to copy
+     * @param to one past the last index to copy
+     */
+    public void append(KdTree src, int from, int to) {
+        int n = to - from, shift = size - from;
+        ensureCapacity(size + n);
+        System.arraycopy(src.axis, from, axis, size, n);
+        System.arraycopy(src.split, from, split, size, n);
+        System.arraycopy(src.color, from, color, size, n);
+        if (src.variance != null) {
+            if (variance == null) variance = new float[axis.length];
+            System.arraycopy(src.variance, from, variance, size, n);
+        } else if (variance != null) {
+            Arrays.fill(variance, size, size + n, 0f);
+        }
+        for (int i = 0; i < n; i++) {
+            right[size + i] = src.axis[from + i] == LEAF ? 0 : src.right[from + i] + shift;
+        }
+        size += n;
+    }
+
+    public boolean isLeaf(int node) {
+        return axis[node] == LEAF;
+    }
+
+    public int axis(int node) {
+        return axis[node];
+    }
+
+    public int split(int node) {
+        return split[node];
+    }
+
+    public int left(int node) {
+        return node + 1;
+    }
+
+    public int right(int node) {
+        return right[node];
+    }
+
+    public int color(int node) {
+        return color[node];
+    }
+
+    public void setColor(int node, int rgb) {
+        color[node] = rgb;
+    }
+
+    /**
+     * @return true if node variances were recorded (see setVariance)
+     */
+    public boolean hasVariance() {
+        return variance != null;
+    }
+
+    /**
+     * @return variance of the node's region, 0 if not recorded
+     */
+    public float variance(int node) {
+        return variance == null ? 0f : variance[node];
+    }
+
+    public void setVariance(int node, float v) {
+        if (variance == null) variance = new float[axis.length];
+        variance[node] = v;
+    }
+
+    /**
+     * Cut the tree down to a lower quality level: every node at depth
+     * maxDepth, or whose variance is below thresh, becomes a leaf with
+     * its average color. For a tree built with depth limit D and
+     * threshold T, pruning to d <= D and t >= T gives the tree a build
+     * with d and t would have (same seed, split strategy, metric and,
+     * for YCBCR, chroma depth), up to the float rounding of the
+     * recorded variances. TreeBuilder's default chroma depth follows
+     * the depth limit, so pin it with setMetric(YCBCR, n) on both sides.
+     *
+     * @param maxDepth depth limit, the root being at depth 0
+     * @param thresh homogeneity threshold; 0 to prune by depth only
+     * @return the pruned tree; this tree is unchanged
+     * @throws IllegalStateException if thresh > 0 and no variances were
+     *     recorded (e.g. a tree read back from a file)
+     */
+    public KdTree prune(int maxDepth, float thresh) {
+        if (thresh > 0 && variance == null)
+            throw new IllegalStateException("tree has no variances to prune by threshold");
+        KdTree t = new KdTree(width, height, size);
+        prune(t, 0, 0, maxDepth, thresh);
+        t.trim();
+        return t;
+    }
+
+    private void prune(KdTree t, int node, int depth, int maxDepth, float thresh) {
+        int n;
+        if (axis[node] == LEAF || depth >= maxDepth || (thresh > 0 && variance[node] < thresh)) {
+            n = t.addLeaf(color[node]);
+        } else {
+            n = t.addInternal(axis[node], split[node], color[node]);
+            prune(t, node + 1, depth + 1, maxDepth, thresh);
+            t.setRight(n, t.size());
+            prune(t, right[node], depth + 1, maxDepth, thresh);
+        }
+        if (variance != null) t.setVariance(n, variance[node]);
+    }
+
+    /**
+     * Color of a region from the colors of its two parts, weighted by
+     * area and rounded, so repeated merging up the tree does not drift.
+     *
+     * @param first area of the part colored a
+     * @param total area of the whole region
+     */
+    static int mergeColor(int a, int b, long first, long total) {
+        return PixelBuffer.pack(merge(PixelBuffer.red(a), PixelBuffer.red(b), first, total),
+                merge(PixelBuffer.green(a), PixelBuffer.green(b), first, total),
+                merge(PixelBuffer.blue(a), PixelBuffer.blue(b), first, total));
+    }
+
+    private static int merge(int a, int b, long first, long total) {
+        return (int) ((a * first + b * (total - first) + total / 2) / total);
+    }
+
+    /**
+     * Give every internal node the area-weighted average of its
+     * children's colors (mergeColor), from the leaves up. For readers of
+     * formats that store leaf colors only; call once the tree is whole.
+     */
+    void mergeColors() {
+        long[] area = new long[size];
+        // regions of the nodes still to come, in pre-order, 4 ints each
+        int[] pending = new int[64 * 4];
+        int top = 0;
+        pending[top++] = 0;
+        pending[top++] = 0;
+        pending[top++] = width;
+        pending[top++] = height;
+        for (int i = 0; i < size; i++) {
+            top -= 4;
+            int xmin = pending[top], ymin = pending[top + 1], xmax = pending[top + 2], ymax = pending[top + 3];
+            area[i] = (long) (xmax - xmin) * (ymax - ymin);
+            if (axis[i] == LEAF) continue;
+            if (top + 8 > pending.length) pending = Arrays.copyOf(pending, pending.length * 2);
+            int p = split[i];
+            // right, then left on top
+            if (axis[i] == X) {
+                top = push(pending, top, p, ymin, xmax, ymax);
+                top = push(pending, top, xmin, ymin, p, ymax);
+            } else {
+                top = push(pending, top, xmin, p, xmax, ymax);
+                top = push(pending, top, xmin, ymin, xmax, p);
+            }
+        }
+        // children follow their parent, so they are done first
+        for (int i = size - 1; i >= 0; i--) {
+            if (axis[i] != LEAF) color[i] = mergeColor(color[i + 1], color[right[i]], area[i + 1], area[i]);
+        }
+    }
+
+    private static int push(int[] pending, int top, int xmin, int ymin, int xmax, int ymax) {
+        pending[top] = xmin;
+        pending[top + 1] = ymin;
+        pending[top + 2] = xmax;
+        pending[top + 3] = ymax;
+        return top + 4;
+    }
+
+    /**
+     * @return true if the subtree at node has the same shape, partitions
+     *     and colors as the subtree at otherNode of another tree
+     */
+    public boolean sameSubtree(int node, KdTree other, int otherNode) {
+        int end = subtreeEnd(node);
+        if (end - node != other.subtreeEnd(otherNode) - otherNode) return false;
+        for (int i = node, j = otherNode; i < end; i++, j++) {
+            if (axis[i] != other.axis[j] || color[i] != other.color[j]) return false;
+            if (axis[i] != LEAF && split[i] != other.split[j]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return one past the last index of the node's subtree
+     */
+    public int subtreeEnd(int node) {
+        while (axis[node] != LEAF) node = right[node];
+        return node + 1;
+    }
+
+    /**
+     * @return number of leaves
+     */
+    public int leafCount() {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (axis[i] == LEAF) n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return depth of the deepest node, the root being at depth 0
+     */
+    public int maxDepth() {
+        // depths of the nodes still to come, in pre-order
+        int[] pending = new int[64];
+        int top = 0, max = 0;
+        pending[top++] = 0;
+        for (int i = 0; i < size; i++) {
+            int depth = pending[--top];
+            max = Math.max(max, depth);
+            if (axis[i] != LEAF) {
+                if (top + 2 > pending.length) pending = Arrays.copyOf(pending, pending.length * 2);
+                pending[top++] = depth + 1; // right
+                pending[top++] = depth + 1; // left
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Release unused capacity.
+     */
+    public void trim() {
+        axis = Arrays.copyOf(axis, Math.max(size, 1));
+        split = Arrays.copyOf(split, Math.max(size, 1));
+        right = Arrays.copyOf(right, Math.max(size, 1));
+        color = Arrays.copyOf(color, Math.max(size, 1));
+        if (variance != null) variance = Arrays.copyOf(variance, Math.max(size, 1));
+    }
+
+    public KdTree copy() {
+        KdTree t = new KdTree(width, height, size);
+        t.append(this);
+        return t;
+    }
+}
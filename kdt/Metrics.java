@@ -0,0 +1,324 @@
+package kdt;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Process-wide counters and timers for the compressor's hot paths:
+ * nodes and leaves created, deepest level reached, pixels scanned
+ * (tables and scans) and painted, time per phase, and per tree level
+ * a histogram of the time spent on each node.
+ *
+ * Counting is off by default and costs one static field read per
+ * node then; turn it on with setEnabled, -Dkdt.metrics=true, a CLI
+ * -metrics flag or over JMX (registerMBean). Independently of that,
+ * every phase is also a JFR event (kdt.Phase), which JFR itself keeps
+ * free when no recording asks for it.
+ */
+public class Metrics {
+    /**
+     * Phases timed as a whole. Phases may nest (BUILD from pixels
+     * includes TABLES), so their times are inclusive.
+     */
+    public enum Phase {
+        PPM_LOAD, TABLES, BUILD, RENDER, ENCODE, DECODE, COLOR_GRID, UPLOAD
+    }
+
+    static final int MAX_LEVELS = 64;
+    static final int BUCKETS = 32; // per-node time histogram, bucket b: [2^b, 2^(b+1)) ns
+
+    static volatile boolean enabled = Boolean.getBoolean("kdt.metrics");
+
+    private static final LongAdder nodes = new LongAdder(), leaves = new LongAdder(),
+            pixelsScanned = new LongAdder(), pixelsPainted = new LongAdder();
+    private static final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private static final LongAdder[] phaseNanos = adders(Phase.values().length),
+            phaseCounts = adders(Phase.values().length);
+    private static final AtomicLongArray levelNanos = new AtomicLongArray(MAX_LEVELS),
+            levelCounts = new AtomicLongArray(MAX_LEVELS),
+            levelHistogram = new AtomicLongArray(MAX_LEVELS * BUCKETS);
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int n) {
+        LongAdder[] a = new LongAdder[n];
+        for (int i = 0; i < n; i++) a[i] = new LongAdder();
+        return a;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn counting on or off; set before the work to be measured starts.
+     * Safe from any thread (e.g. over JMX): workers see the change on
+     * their next node.
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * JFR event around one phase.
+     */
+    @Name("kdt.Phase")
+    @Label("KD Tree Phase")
+    @Category("KD Tree")
+    @Description("One phase of compressing or decoding an image")
+    @StackTrace(false)
+    public static class PhaseEvent extends Event {
+        @Label("Phase")
+        public String phase;
+
+        @Label("Pixels")
+        public long pixels;
+
+        @Label("Nodes")
+        public long nodes;
+    }
+
+    /**
+     * Start timing a phase; close the span when it ends.
+     */
+    public static Span span(Phase phase) {
+        return new Span(phase);
+    }
+
+    /**
+     * One timed run of a phase, for try-with-resources.
+     */
+    public static final class Span implements AutoCloseable {
+        private final Phase phase;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long start;
+        private long pixels, nodes;
+
+        private Span(Phase phase) {
+            this.phase = phase;
+            event.begin();
+            start = enabled ? System.nanoTime() : 0;
+        }
+
+        /**
+         * @param n pixels the phase covered, reported with the JFR event
+         */
+        public Span pixels(long n) {
+            pixels = n;
+            return this;
+        }
+
+        /**
+         * @param n nodes the phase produced or read
+         */
+        public Span nodes(long n) {
+            nodes = n;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (enabled) {
+                phaseNanos[phase.ordinal()].add(System.nanoTime() - start);
+                phaseCounts[phase.ordinal()].increment();
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase.name();
+                event.pixels = pixels;
+                event.nodes = nodes;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * @return a start time for node(), 0 when counting is off
+     */
+    static long nodeStart() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Count one tree node built at a level.
+     *
+     * @param start value of nodeStart() when work on the node began
+     */
+    static void node(int level, boolean leaf, long start) {
+        if (!enabled) return;
+        long ns = System.nanoTime() - start;
+        nodes.increment();
+        if (leaf) leaves.increment();
+        maxDepth.accumulate(level);
+
+        int l = Math.min(level, MAX_LEVELS - 1);
+        levelNanos.addAndGet(l, ns);
+        levelCounts.incrementAndGet(l);
+        int b = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(Math.max(ns, 1)));
+        levelHistogram.incrementAndGet(l * BUCKETS + b);
+    }
+
+    static void scanned(long pixels) {
+        if (enabled) pixelsScanned.add(pixels);
+    }
+
+    static void painted(long pixels) {
+        if (enabled) pixelsPainted.add(pixels);
+    }
+
+    public static void reset() {
+        nodes.reset();
+        leaves.reset();
+        pixelsScanned.reset();
+        pixelsPainted.reset();
+        maxDepth.reset();
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i].reset();
+            phaseCounts[i].reset();
+        }
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            levelNanos.set(i, 0);
+            levelCounts.set(i, 0);
+        }
+        for (int i = 0; i < levelHistogram.length(); i++) levelHistogram.set(i, 0);
+    }
+
+    /**
+     * Smallest per-node time (upper bucket bound, ns) that at least
+     * fraction q of a level's nodes stay under.
+     */
+    private static long percentile(int level, double q) {
+        long count = levelCounts.get(level), seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += levelHistogram.get(level * BUCKETS + b);
+            if (seen >= q * count) return 2L << b;
+        }
+        return 2L << (BUCKETS - 1);
+    }
+
+    /**
+     * @return multi-line report of everything counted so far
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("nodes %d (leaves %d), max depth %d, pixels scanned %d, painted %d%n",
+                nodes.sum(), leaves.sum(), maxDepth.get(), pixelsScanned.sum(), pixelsPainted.sum()));
+
+        sb.append(String.format("%-12s %8s %12s %10s%n", "phase", "runs", "total ms", "mean ms"));
+        for (Phase p : Phase.values()) {
+            long n = phaseCounts[p.ordinal()].sum();
+            if (n == 0) continue;
+            double ms = phaseNanos[p.ordinal()].sum() / 1e6;
+            sb.append(String.format("%-12s %8d %12.2f %10.3f%n", p.name().toLowerCase(), n, ms, ms / n));
+        }
+
+        sb.append(String.format("%-6s %10s %12s %10s %10s %10s%n",
+                "level", "nodes", "total ms", "p50 ns", "p90 ns", "p99 ns"));
+        for (int l = 0; l < MAX_LEVELS; l++) {
+            long n = levelCounts.get(l);
+            if (n == 0) continue;
+            sb.append(String.format("%-6d %10d %12.2f %10d %10d %10d%n", l, n, levelNanos.get(l) / 1e6,
+                    percentile(l, 0.5), percentile(l, 0.9), percentile(l, 0.99)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Register the JMX view as kdt:type=Metrics, once.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("kdt:type=Metrics");
+            if (!server.isRegistered(name)) server.registerMBean(new Bean(), name);
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register metrics MBean", e);
+        }
+    }
+
+    private static class Bean implements MetricsMXBean {
+        @Override
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        @Override
+        public void setEnabled(boolean on) {
+            Metrics.setEnabled(on);
+        }
+
+        @Override
+        public long getNodes() {
+            return nodes.sum();
+        }
+
+        @Override
+        public long getLeaves() {
+            return leaves.sum();
+        }
+
+        @Override
+        public int getMaxDepth() {
+            return (int) maxDepth.get();
+        }
+
+        @Override
+        public long getPixelsScanned() {
+            return pixelsScanned.sum();
+        }
+
+        @Override
+        public long getPixelsPainted() {
+            return pixelsPainted.sum();
+        }
+
+        @Override
+        public Map<String, Double> getPhaseMillis() {
+            Map<String, Double> m = new LinkedHashMap<>();
+            for (Phase p : Phase.values()) m.put(p.name(), phaseNanos[p.ordinal()].sum() / 1e6);
+            return m;
+        }
+
+        @Override
+        public Map<String, Long> getPhaseCounts() {
+            Map<String, Long> m = new LinkedHashMap<>();
+            for (Phase p : Phase.values()) m.put(p.name(), phaseCounts[p.ordinal()].sum());
+            return m;
+        }
+
+        @Override
+        public Map<Integer, Double> getLevelMillis() {
+            Map<Integer, Double> m = new LinkedHashMap<>();
+            for (int l = 0; l < MAX_LEVELS; l++) {
+                if (levelCounts.get(l) > 0) m.put(l, levelNanos.get(l) / 1e6);
+            }
+            return m;
+        }
+
+        @Override
+        public String getSummary() {
+            return summary();
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
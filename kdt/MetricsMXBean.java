@@ -0,0 +1,41 @@
+package kdt;
+
+import java.util.Map;
+
+/**
+ * JMX view of Metrics, registered as kdt:type=Metrics.
+ */
+public interface MetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getNodes();
+
+    long getLeaves();
+
+    int getMaxDepth();
+
+    long getPixelsScanned();
+
+    long getPixelsPainted();
+
+    /**
+     * @return total milliseconds per phase
+     */
+    Map<String, Double> getPhaseMillis();
+
+    /**
+     * @return number of runs per phase
+     */
+    Map<String, Long> getPhaseCounts();
+
+    /**
+     * @return total milliseconds spent on the nodes of each tree level
+     */
+    Map<Integer, Double> getLevelMillis();
+
+    String getSummary();
+
+    void reset();
+}
@@ -0,0 +1,175 @@
+package kdt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Palette quantization of a tree's leaf colors (lossy). The palette is
+ * chosen by median cut over the leaf colors, each weighted by the area
+ * of its leaf: the box of colors with the widest channel range is split
+ * at its weighted median on that channel, until there are enough boxes;
+ * each box becomes the weighted mean of its colors.
+ *
+ * Leaves take the color of their box, and sibling subtrees left all one
+ * color collapse into single leaves, so the tree shrinks too. With at
+ * most EntropyCodec.MAX_PALETTE colors, TreeCodec's ENTROPY coding
+ * stores leaves as palette indices.
+ */
+public class Palette {
+
+    /**
+     * @param tree tree to quantize; unchanged
+     * @param colors palette size, at least 1
+     * @return a tree whose leaves use at most that many colors
+     */
+    public static KdTree quantize(KdTree tree, int colors) {
+        if (colors < 1) throw new IllegalArgumentException("need at least one color");
+
+        // area of every leaf color
+        Map<Integer, Long> weights = new HashMap<>();
+        leafAreas(tree, 0, 0, 0, tree.getWidth(), tree.getHeight(), weights);
+        int n = weights.size();
+        int[] rgb = new int[n];
+        long[] weight = new long[n];
+        int k = 0;
+        for (Map.Entry<Integer, Long> e : weights.entrySet()) {
+            rgb[k] = e.getKey();
+            weight[k++] = Math.max(1, e.getValue()); // empty leaves still need a color
+        }
+
+        // median cut; a box is the range [from, to) of the arrays
+        List<int[]> boxes = new ArrayList<>();
+        boxes.add(new int[]{0, n});
+        while (boxes.size() < colors) {
+            int best = -1, bestRange = 0, bestShift = 0;
+            for (int b = 0; b < boxes.size(); b++) {
+                int[] box = boxes.get(b);
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int range = range(rgb, box[0], box[1], shift);
+                    if (range > bestRange) {
+                        best = b;
+                        bestRange = range;
+                        bestShift = shift;
+                    }
+                }
+            }
+            if (best < 0) break; // every box holds a single color
+            int[] box = boxes.get(best);
+            int cut = split(rgb, weight, box[0], box[1], bestShift);
+            boxes.set(best, new int[]{box[0], cut});
+            boxes.add(new int[]{cut, box[1]});
+        }
+
+        Map<Integer, Integer> map = new HashMap<>();
+        for (int[] box : boxes) {
+            long w = 0, r = 0, g = 0, bl = 0;
+            for (int i = box[0]; i < box[1]; i++) {
+                w += weight[i];
+                r += PixelBuffer.red(rgb[i]) * weight[i];
+                g += PixelBuffer.green(rgb[i]) * weight[i];
+                bl += PixelBuffer.blue(rgb[i]) * weight[i];
+            }
+            int mean = PixelBuffer.pack((int) ((r + w / 2) / w), (int) ((g + w / 2) / w), (int) ((bl + w / 2) / w));
+            for (int i = box[0]; i < box[1]; i++) map.put(rgb[i], mean);
+        }
+
+        int[] uniform = new int[tree.size()];
+        uniform(tree, 0, map, uniform);
+        KdTree out = new KdTree(tree.getWidth(), tree.getHeight(), tree.size());
+        emit(tree, 0, 0, 0, tree.getWidth(), tree.getHeight(), uniform, out);
+        out.trim();
+        return out;
+    }
+
+    private static void leafAreas(KdTree tree, int t, int xmin, int ymin, int xmax, int ymax,
+                                  Map<Integer, Long> weights) {
+        if (tree.isLeaf(t)) {
+            weights.merge(tree.color(t), (long) (xmax - xmin) * (ymax - ymin), Long::sum);
+        } else if (tree.axis(t) == KdTree.X) {
+            leafAreas(tree, tree.left(t), xmin, ymin, tree.split(t), ymax, weights);
+            leafAreas(tree, tree.right(t), tree.split(t), ymin, xmax, ymax, weights);
+        } else {
+            leafAreas(tree, tree.left(t), xmin, ymin, xmax, tree.split(t), weights);
+            leafAreas(tree, tree.right(t), xmin, tree.split(t), xmax, ymax, weights);
+        }
+    }
+
+    private static int range(int[] rgb, int from, int to, int shift) {
+        int min = 255, max = 0;
+        for (int i = from; i < to; i++) {
+            int v = (rgb[i] >> shift) & 0xFF;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        return max - min;
+    }
+
+    /**
+     * Sort a box by one channel and find its weighted median.
+     *
+     * @return first index of the upper half, strictly inside the box
+     */
+    private static int split(int[] rgb, long[] weight, int from, int to, int shift) {
+        // sort (channel, index) keys, then permute both arrays
+        long[] keys = new long[to - from];
+        long total = 0;
+        for (int i = from; i < to; i++) {
+            keys[i - from] = (long) ((rgb[i] >> shift) & 0xFF) << 32 | i;
+            total += weight[i];
+        }
+        Arrays.sort(keys);
+        int[] c = new int[keys.length];
+        long[] w = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            c[i] = rgb[(int) keys[i]];
+            w[i] = weight[(int) keys[i]];
+        }
+        System.arraycopy(c, 0, rgb, from, c.length);
+        System.arraycopy(w, 0, weight, from, w.length);
+
+        long seen = 0;
+        int cut = from + 1;
+        for (int i = from; i < to - 1; i++) {
+            seen += weight[i];
+            cut = i + 1;
+            if (2 * seen >= total) break;
+        }
+        return cut;
+    }
+
+    // the palette color of a subtree all of one color, else -1
+    private static int uniform(KdTree tree, int t, Map<Integer, Integer> map, int[] uniform) {
+        if (tree.isLeaf(t)) return uniform[t] = map.get(tree.color(t));
+        int a = uniform(tree, tree.left(t), map, uniform), b = uniform(tree, tree.right(t), map, uniform);
+        return uniform[t] = a == b ? a : -1;
+    }
+
+    private static void emit(KdTree tree, int t, int xmin, int ymin, int xmax, int ymax, int[] uniform,
+                             KdTree out) {
+        int n;
+        if (uniform[t] >= 0) {
+            n = out.addLeaf(uniform[t]);
+        } else {
+            int p = tree.split(t);
+            n = out.addInternal(tree.axis(t), p, 0);
+            long first;
+            if (tree.axis(t) == KdTree.X) {
+                emit(tree, tree.left(t), xmin, ymin, p, ymax, uniform, out);
+                out.setRight(n, out.size());
+                emit(tree, tree.right(t), p, ymin, xmax, ymax, uniform, out);
+                first = (long) (p - xmin) * (ymax - ymin);
+            } else {
+                emit(tree, tree.left(t), xmin, ymin, xmax, p, uniform, out);
+                out.setRight(n, out.size());
+                emit(tree, tree.right(t), xmin, p, xmax, ymax, uniform, out);
+                first = (long) (xmax - xmin) * (p - ymin);
+            }
+            out.setColor(n, KdTree.mergeColor(out.color(out.left(n)), out.color(out.right(n)),
+                    first, (long) (xmax - xmin) * (ymax - ymin)));
+        }
+        if (tree.hasVariance()) out.setVariance(n, tree.variance(t));
+    }
+}
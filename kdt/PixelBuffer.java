@@ -0,0 +1,172 @@
+package kdt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Primitive RGB raster the compressor works on.
+ * One int per pixel, packed 0xRRGGBB, stored row by row, so reading or
+ * painting a region never allocates a Color object.
+ * Use BridgesAdapter to export the result as a ColorGrid for display.
+ */
+public class PixelBuffer {
+    private final int width, height;
+    private final int[] pixels; // row-major, packed 0xRRGGBB
+
+    public PixelBuffer(int width, int height) {
+        this(width, height, new int[width * height]);
+    }
+
+    /**
+     * Wrap an existing packed array (no copy).
+     *
+     * @param pixels row-major packed 0xRRGGBB, width * height long
+     */
+    public PixelBuffer(int width, int height, int[] pixels) {
+        if (pixels.length != width * height)
+            throw new IllegalArgumentException("pixel array does not match " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Pack an interleaved r,g,b byte raster (as mapped by PpmFile) into
+     * a new buffer. The raster is read from its current position.
+     */
+    public static PixelBuffer fromRaster(ByteBuffer raster, int width, int height) {
+        int[] packed = new int[width * height];
+        byte[] row = new byte[width * 3];
+
+        for (int y = 0, i = 0; y < height; y++) {
+            raster.get(row); // one bulk copy per row
+            for (int c = 0; c < row.length; c += 3, i++) {
+                packed[i] = pack(row[c] & 0xFF, row[c + 1] & 0xFF, row[c + 2] & 0xFF);
+            }
+        }
+        return new PixelBuffer(width, height, packed);
+    }
+
+    /**
+     * Pack a raster of any format PpmFile maps: 3 or 1 (gray) samples
+     * per pixel, of one or two bytes (see PpmFile.readSamples). Gray
+     * pixels become r = g = b.
+     */
+    public static PixelBuffer fromRaster(ByteBuffer raster, int width, int height, int channels, int maxVal) {
+        if (channels == 3 && maxVal <= 255) return fromRaster(raster, width, height);
+        int[] packed = new int[width * height];
+        int[] row = new int[width * channels];
+        byte[] bytes = new byte[row.length * PpmFile.sampleBytes(maxVal)];
+
+        for (int y = 0, i = 0; y < height; y++) {
+            PpmFile.readSamples(raster, maxVal, bytes, row, row.length);
+            if (channels == 1) {
+                for (int x = 0; x < width; x++, i++) packed[i] = row[x] * 0x010101;
+            } else {
+                for (int c = 0; c < row.length; c += 3, i++) packed[i] = pack(row[c], row[c + 1], row[c + 2]);
+            }
+        }
+        return new PixelBuffer(width, height, packed);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the backing array, row-major packed 0xRRGGBB
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int get(int row, int col) {
+        return pixels[row * width + col];
+    }
+
+    public void set(int row, int col, int rgb) {
+        pixels[row * width + col] = rgb;
+    }
+
+    /**
+     * Paint every pixel of the region.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param rgb packed color
+     */
+    public void fill(int[] region, int rgb) {
+        fill(region[0], region[1], region[2], region[3], rgb);
+    }
+
+    /**
+     * Paint every pixel of {xmin,ymin,xmax,ymax}, one bulk fill per row.
+     */
+    public void fill(int xmin, int ymin, int xmax, int ymax, int rgb) {
+        for (int start = ymin * width, end = ymax * width; start < end; start += width) {
+            Arrays.fill(pixels, start + xmin, start + xmax, rgb);
+        }
+    }
+
+    /**
+     * Rectangles covering every pixel that differs from another buffer
+     * of the same size. The image is scanned in tile x tile blocks and
+     * each horizontal run of changed blocks becomes one rectangle.
+     *
+     * @param other earlier version of the image
+     * @param tile block edge in pixels
+     * @return {xmin,ymin,xmax,ymax} rectangles, empty if nothing changed
+     */
+    public List<int[]> changedRegions(PixelBuffer other, int tile) {
+        if (other.width != width || other.height != height)
+            throw new IllegalArgumentException("buffers differ in size");
+
+        List<int[]> regions = new ArrayList<>();
+        int cols = (width + tile - 1) / tile;
+        boolean[] changed = new boolean[cols];
+        for (int ymin = 0; ymin < height; ymin += tile) {
+            int ymax = Math.min(height, ymin + tile);
+            Arrays.fill(changed, false);
+            for (int row = ymin; row < ymax; row++) {
+                int start = row * width;
+                for (int c = 0; c < cols; c++) {
+                    if (changed[c]) continue;
+                    int from = start + c * tile, to = start + Math.min(width, (c + 1) * tile);
+                    changed[c] = Arrays.mismatch(pixels, from, to, other.pixels, from, to) >= 0;
+                }
+            }
+            for (int c = 0; c < cols; c++) {
+                if (!changed[c]) continue;
+                int first = c;
+                while (c + 1 < cols && changed[c + 1]) c++;
+                regions.add(new int[]{first * tile, ymin, Math.min(width, (c + 1) * tile), ymax});
+            }
+        }
+        return regions;
+    }
+
+    public PixelBuffer copy() {
+        return new PixelBuffer(width, height, pixels.clone());
+    }
+
+    public static int pack(int r, int g, int b) {
+        return (r << 16) | (g << 8) | b;
+    }
+
+    public static int red(int rgb) {
+        return (rgb >> 16) & 0xFF;
+    }
+
+    public static int green(int rgb) {
+        return (rgb >> 8) & 0xFF;
+    }
+
+    public static int blue(int rgb) {
+        return rgb & 0xFF;
+    }
+}
@@ -0,0 +1,287 @@
+package kdt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary PPM (P6) or PGM (P5) file mapped into memory.
+ * The header is parsed per the Netpbm spec: whitespace of any kind
+ * between fields and '#' comments anywhere before maxval. The raster is
+ * exposed as a read-only view of the mapping, so no pixel is copied
+ * until the compressor reads it. write() produces a P6 file from a
+ * PixelBuffer.
+ *
+ * A P5 raster has one sample per pixel, a P6 raster three (r,g,b).
+ * With maxval over 255 each sample is two bytes, most significant
+ * first; readSamples scales such samples to 0..255, the precision of
+ * the trees.
+ */
+public class PpmFile {
+    private final int width, height, maxVal, channels;
+    private final ByteBuffer raster; // samples, pixel-interleaved, row-major
+
+    private PpmFile(int width, int height, int maxVal, int channels, ByteBuffer raster) {
+        this.width = width;
+        this.height = height;
+        this.maxVal = maxVal;
+        this.channels = channels;
+        this.raster = raster;
+    }
+
+    /**
+     * Map a binary PPM file.
+     *
+     * @param path file to read
+     * @return header and raster view
+     * @throws IOException if the file cannot be read or is not a P6 or P5
+     */
+    public static PpmFile open(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(path + ": too large to map, use TiledCompressor or SegmentRaster");
+
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return parse(buf, path.toString());
+        }
+    }
+
+    /**
+     * Parse a PPM held in a buffer (position 0 = start of file).
+     *
+     * @param buf whole file
+     * @param name used in error messages
+     */
+    public static PpmFile parse(ByteBuffer buf, String name) throws IOException {
+        Header h = parseHeader(buf, name);
+        long length = h.rasterLength();
+        if (h.rasterOffset + length > buf.limit())
+            throw new IOException(name + ": truncated raster");
+
+        int start = (int) h.rasterOffset;
+        ByteBuffer raster = buf.duplicate().position(start).limit((int) (start + length))
+                .slice().asReadOnlyBuffer();
+        return new PpmFile(h.width, h.height, h.maxVal, h.channels, raster);
+    }
+
+    /**
+     * Header fields and where the raster starts. Lets very large files
+     * be read in pieces instead of mapped whole.
+     */
+    public static class Header {
+        public final int width, height, maxVal;
+        public final int channels; // 3 for P6, 1 for P5
+        public final long rasterOffset; // file offset of the first raster byte
+
+        Header(int width, int height, int maxVal, int channels, long rasterOffset) {
+            this.width = width;
+            this.height = height;
+            this.maxVal = maxVal;
+            this.channels = channels;
+            this.rasterOffset = rasterOffset;
+        }
+
+        /**
+         * @return raster size in bytes
+         */
+        public long rasterLength() {
+            return (long) width * height * channels * sampleBytes(maxVal);
+        }
+
+        /**
+         * @return true for an 8-bit P6, whose raster is r,g,b bytes as
+         *     the tiled and off-heap paths read it directly
+         */
+        public boolean isRgb8() {
+            return channels == 3 && maxVal <= 255;
+        }
+    }
+
+    /**
+     * @return bytes per sample: 1 up to maxval 255, else 2
+     */
+    public static int sampleBytes(int maxVal) {
+        return maxVal > 255 ? 2 : 1;
+    }
+
+    /**
+     * Read count samples from the raster's current position as 0..255
+     * values. Two-byte samples are scaled by 255 / maxVal, rounded;
+     * one-byte samples are taken as they are.
+     *
+     * @param bytes scratch of at least count * sampleBytes(maxVal)
+     * @param out receives the values
+     */
+    public static void readSamples(ByteBuffer raster, int maxVal, byte[] bytes, int[] out, int count) {
+        if (maxVal <= 255) {
+            raster.get(bytes, 0, count);
+            for (int i = 0; i < count; i++) out[i] = bytes[i] & 0xFF;
+        } else {
+            raster.get(bytes, 0, 2 * count);
+            for (int i = 0, j = 0; i < count; i++, j += 2) {
+                int v = (bytes[j] & 0xFF) << 8 | (bytes[j + 1] & 0xFF);
+                out[i] = (int) ((v * 255L * 2 + maxVal) / (2L * maxVal));
+            }
+        }
+    }
+
+    /**
+     * Read just the header of a PPM file.
+     *
+     * @param ch channel positioned anywhere; read with absolute positions
+     * @param name used in error messages
+     */
+    public static Header readHeader(FileChannel ch, String name) throws IOException {
+        // headers are tiny, but comments may be long
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(ch.size(), 1 << 16));
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, buf.position()) < 0) break;
+        }
+        buf.flip();
+
+        Header h = parseHeader(buf, name);
+        if (h.rasterOffset + h.rasterLength() > ch.size())
+            throw new IOException(name + ": truncated raster");
+        return h;
+    }
+
+    private static Header parseHeader(ByteBuffer buf, String name) throws IOException {
+        HeaderParser hp = new HeaderParser(buf, name);
+        int magic = hp.next() == 'P' ? hp.next() : 0;
+        if (magic != '6' && magic != '5')
+            throw new IOException(name + ": not a binary PPM (P6) or PGM (P5)");
+
+        int width = hp.nextInt();
+        int height = hp.nextInt();
+        int maxVal = hp.nextInt();
+        if (width <= 0 || height <= 0)
+            throw new IOException(name + ": bad dimensions " + width + "x" + height);
+        if (maxVal <= 0 || maxVal > 65535)
+            throw new IOException(name + ": unsupported maxval " + maxVal);
+
+        // exactly one whitespace byte separates maxval from the raster
+        return new Header(width, height, maxVal, magic == '6' ? 3 : 1, buf.position() + 1);
+    }
+
+    /**
+     * Write pixels as a binary PPM (P6, maxval 255), replacing the file.
+     *
+     * @param path file to write
+     * @param pb pixels to write
+     */
+    public static void write(Path path, PixelBuffer pb) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(ch, pb.getWidth(), pb.getHeight());
+            writeRows(ch, pb, pb.getHeight());
+        }
+    }
+
+    /**
+     * Write a P6 header (maxval 255); the raster rows must follow.
+     */
+    public static void writeHeader(WritableByteChannel ch, int width, int height) throws IOException {
+        byte[] header = ("P6\n" + width + " " + height + "\n255\n").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        while (buf.hasRemaining()) ch.write(buf);
+    }
+
+    /**
+     * Write the first rows of a buffer as raster bytes.
+     *
+     * @param rows number of rows, from the top
+     */
+    public static void writeRows(WritableByteChannel ch, PixelBuffer pb, int rows) throws IOException {
+        int width = pb.getWidth();
+        int[] pixels = pb.getPixels();
+        // whole rows per write, at least one row
+        int chunk = Math.max(1, (1 << 20) / (width * 3));
+        ByteBuffer buf = ByteBuffer.allocate(Math.min(chunk, rows) * width * 3);
+
+        for (int row = 0, p = 0; row < rows; ) {
+            buf.clear();
+            for (int end = Math.min(rows, row + chunk); row < end; row++) {
+                for (int col = 0; col < width; col++, p++) {
+                    int rgb = pixels[p];
+                    buf.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+                }
+            }
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMaxVal() {
+        return maxVal;
+    }
+
+    /**
+     * @return samples per pixel: 3 (P6) or 1 (P5)
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return read-only view of the raster, row-major, getChannels()
+     *     samples of sampleBytes(getMaxVal()) bytes per pixel
+     */
+    public ByteBuffer getRaster() {
+        return raster.duplicate();
+    }
+
+    /**
+     * Tokenizer over the header bytes. Leaves the buffer positioned on
+     * the byte following the last token read.
+     */
+    private static class HeaderParser {
+        private final ByteBuffer buf;
+        private final String name;
+
+        HeaderParser(ByteBuffer buf, String name) {
+            this.buf = buf;
+            this.name = name;
+        }
+
+        int next() throws IOException {
+            if (!buf.hasRemaining()) throw new IOException(name + ": truncated header");
+            return buf.get() & 0xFF;
+        }
+
+        int nextInt() throws IOException {
+            int c = next();
+            // skip whitespace and comments
+            while (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '#'
+                    || c == 0x0B || c == '\f') {
+                if (c == '#') {
+                    while (c != '\n' && c != '\r') c = next();
+                }
+                c = next();
+            }
+            if (c < '0' || c > '9') throw new IOException(name + ": bad header");
+
+            long value = 0;
+            while (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (value > Integer.MAX_VALUE) throw new IOException(name + ": header value too large");
+                c = next();
+            }
+            // step back onto the delimiter
+            buf.position(buf.position() - 1);
+            return (int) value;
+        }
+    }
+}
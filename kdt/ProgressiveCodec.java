@@ -0,0 +1,149 @@
+package kdt;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Breadth-first (level of detail) container for image KD trees. Every
+ * node, internal ones included, carries the average color of its
+ * region, and nodes are written level by level from the root. Any
+ * prefix of the stream therefore decodes to a valid image: regions
+ * whose nodes have not arrived yet keep their parent's color. See
+ * ProgressiveDecoder.
+ *
+ * Layout (big-endian):
+ *   magic "KDTP", version byte,
+ *   varint width, varint height, varint maxLevel,
+ *   float homogeneityThresh, long seed,
+ *   then the nodes breadth-first (each level left to right), in groups
+ *   of eight: one structure byte (bit i set = node i of the group is
+ *   internal, LSB first) followed by each node of the group in turn:
+ *   its r,g,b bytes and, for an internal node, a varint
+ *   (partition offset << 1 | axis) as in TreeCodec.
+ *
+ * Usage:
+ *   java kdt.ProgressiveCodec [-depth N] [-thresh F] [-seed N] in.ppm out.kdtp
+ *   java kdt.ProgressiveCodec in.kdt out.kdtp
+ */
+public class ProgressiveCodec {
+    public static final int MAGIC = ('K' << 24) | ('D' << 16) | ('T' << 8) | 'P';
+    public static final int VERSION = 1;
+
+    /**
+     * Write a tree to a file, replacing it.
+     *
+     * @param tree tree with colors at every node
+     * @return bytes written
+     */
+    public static long write(Path file, TreeCodec.Header header, KdTree tree) throws IOException {
+        try (ChannelOutput out = new ChannelOutput(FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            write(out, header, tree);
+            out.flush();
+            return out.size();
+        }
+    }
+
+    public static void write(ChannelOutput out, TreeCodec.Header header, KdTree tree) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeVarint(header.width);
+        out.writeVarint(header.height);
+        out.writeVarint(header.maxLevel);
+        out.writeFloat(header.homogeneityThresh);
+        out.writeLong(header.seed);
+
+        // FIFO of nodes and their regions, {xmin,ymin,xmax,ymax} each
+        int[] queue = new int[64], regions = new int[64 * 4];
+        int head = 0, tail = 0;
+        regions[2] = tree.getWidth();
+        regions[3] = tree.getHeight();
+        queue[tail++] = 0;
+
+        int[] colors = new int[8], splits = new int[8];
+        int bits = 0, count = 0;
+        while (head < tail) {
+            int t = queue[head];
+            int r = head * 4;
+            head++;
+
+            colors[count] = tree.color(t);
+            if (!tree.isLeaf(t)) {
+                bits |= 1 << count;
+                int partition = tree.split(t);
+                int[] first = {regions[r], regions[r + 1], regions[r + 2], regions[r + 3]};
+                int[] second = first.clone();
+                if (tree.axis(t) == KdTree.X) {
+                    splits[count] = (partition - first[0]) << 1;
+                    first[2] = second[0] = partition;
+                } else {
+                    splits[count] = (partition - first[1]) << 1 | 1;
+                    first[3] = second[1] = partition;
+                }
+
+                if (tail + 2 > queue.length) {
+                    queue = Arrays.copyOf(queue, queue.length * 2);
+                    regions = Arrays.copyOf(regions, queue.length * 4);
+                }
+                System.arraycopy(first, 0, regions, tail * 4, 4);
+                queue[tail++] = tree.left(t);
+                System.arraycopy(second, 0, regions, tail * 4, 4);
+                queue[tail++] = tree.right(t);
+            }
+
+            if (++count == 8 || head == tail) {
+                out.writeByte(bits);
+                for (int i = 0; i < count; i++) {
+                    out.writeByte(PixelBuffer.red(colors[i]));
+                    out.writeByte(PixelBuffer.green(colors[i]));
+                    out.writeByte(PixelBuffer.blue(colors[i]));
+                    if ((bits & (1 << i)) != 0) out.writeVarint(splits[i]);
+                }
+                bits = count = 0;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int depth = TreeBuilder.DEFAULT_MAX_LEVEL;
+        float thresh = TreeBuilder.DEFAULT_HOMOGENEITY_THRESH;
+        long seed = new Random().nextLong();
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-thresh": thresh = Float.parseFloat(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                default: usage();
+            }
+        }
+        if (args.length - i != 2) usage();
+
+        TreeCodec.Header header;
+        KdTree tree;
+        if (args[i].endsWith(".ppm")) {
+            Image image = new Image(args[i]);
+            tree = new TreeBuilder(depth, thresh, seed).build(image.toRegionStats(false));
+            header = new TreeCodec.Header(tree.getWidth(), tree.getHeight(), depth, thresh, seed);
+        } else {
+            TreeCodec.Saved saved = TreeCodec.read(Paths.get(args[i]));
+            if (!saved.hasColors()) throw new IOException(args[i] + ": version 1 container has no leaf colors");
+            tree = saved.tree;
+            header = saved.header;
+        }
+        long bytes = write(Paths.get(args[i + 1]), header, tree);
+        System.out.println(args[i + 1] + ": " + bytes + " bytes, " + tree.size() + " nodes");
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.ProgressiveCodec [-depth N] [-thresh F] [-seed N] in.ppm out.kdtp");
+        System.err.println("       java kdt.ProgressiveCodec in.kdt out.kdtp");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,221 @@
+package kdt;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Incremental decoder of ProgressiveCodec streams. The image is refined
+ * in place as nodes arrive: each node paints its region with its color,
+ * so after any number of nodes (or bytes) getPixels() holds a complete,
+ * coarser image. A stream that ends early, even mid-node, is not an
+ * error; decoding just stops at the last whole node.
+ *
+ * Usage:
+ *   java kdt.ProgressiveDecoder [-bytes N] [-levels N] in.kdtp|- out.ppm
+ * ("-" reads standard input, e.g. a download still in progress)
+ */
+public class ProgressiveDecoder {
+    private final ChannelInput in;
+    private final TreeCodec.Header header;
+    private final PixelBuffer pb;
+    private final int maxNodes; // see TreeCodec.read
+
+    // FIFO of regions still to be read, {xmin,ymin,xmax,ymax,level} each
+    private int[] queue = new int[64 * 5];
+    private int head, tail;
+    private int bits, count = 8; // structure byte of the current group
+    private long nodes;
+    private int lastLevel = -1; // level of the last node read
+    private boolean ended;
+
+    /**
+     * Read the stream header; no node is read yet.
+     *
+     * @param in stream positioned at the start of a ProgressiveCodec container
+     */
+    public ProgressiveDecoder(ChannelInput in) throws IOException {
+        this(in, TreeCodec.MAX_PIXELS);
+    }
+
+    /**
+     * @param maxPixels largest image to accept, checked before its
+     *     pixels are allocated (see TreeCodec.read)
+     */
+    public ProgressiveDecoder(ChannelInput in, long maxPixels) throws IOException {
+        this.in = in;
+        if (in.readInt() != ProgressiveCodec.MAGIC) throw new IOException("not a progressive KD tree stream");
+        int version = in.readByte();
+        if (version != ProgressiveCodec.VERSION) throw new IOException("unsupported stream version " + version);
+
+        header = TreeCodec.readHeader(in, maxPixels);
+        maxNodes = TreeCodec.maxNodes(header);
+        pb = new PixelBuffer(header.width, header.height);
+        push(0, 0, header.width, header.height, 0);
+    }
+
+    public TreeCodec.Header getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the image as decoded so far, refined in place by later reads
+     */
+    public PixelBuffer getPixels() {
+        return pb;
+    }
+
+    /**
+     * @return nodes read so far
+     */
+    public long getNodeCount() {
+        return nodes;
+    }
+
+    /**
+     * @return level of the next node to read; all shallower levels are
+     *     complete
+     */
+    public int getLevel() {
+        return head < tail ? queue[head + 4] : lastLevel + 1;
+    }
+
+    /**
+     * @return true once every node has been read or the stream ended
+     */
+    public boolean isDone() {
+        return ended || head == tail;
+    }
+
+    /**
+     * @return bytes consumed from the stream so far
+     */
+    public long getPosition() {
+        return in.position();
+    }
+
+    /**
+     * Read one node and paint its region.
+     *
+     * @return false if there was no node left to read
+     */
+    public boolean readNode() throws IOException {
+        if (isDone()) return false;
+        try {
+            if (count == 8) {
+                bits = in.readByte();
+                count = 0;
+            }
+            boolean isInternal = (bits & (1 << count)) != 0;
+            int rgb = PixelBuffer.pack(in.readByte(), in.readByte(), in.readByte());
+            long split = isInternal ? in.readVarint() : 0;
+            count++;
+
+            int xmin = queue[head], ymin = queue[head + 1], xmax = queue[head + 2],
+                    ymax = queue[head + 3], level = queue[head + 4];
+            head += 5;
+            nodes++;
+            lastLevel = level;
+            pb.fill(xmin, ymin, xmax, ymax, rgb);
+
+            if (isInternal) {
+                boolean dim_flag = (split & 1) != 0;
+                int p = TreeCodec.partition(xmin, ymin, xmax, ymax, dim_flag ? KdTree.Y : KdTree.X, split >>> 1);
+                if (nodes + (tail - head) / 5 + 2 > maxNodes) throw new IOException("more than " + maxNodes + " nodes");
+                if (!dim_flag) {  // X partition
+                    push(xmin, ymin, p, ymax, level + 1);
+                    push(p, ymin, xmax, ymax, level + 1);
+                } else {          // Y partition
+                    push(xmin, ymin, xmax, p, level + 1);
+                    push(xmin, p, xmax, ymax, level + 1);
+                }
+            }
+            return true;
+        } catch (EOFException e) {
+            // truncated stream: keep what has been painted
+            ended = true;
+            return false;
+        }
+    }
+
+    /**
+     * Read the rest of the current level.
+     *
+     * @return false if the stream has no more nodes
+     */
+    public boolean readLevel() throws IOException {
+        if (isDone()) return false;
+        int level = getLevel();
+        while (!isDone() && getLevel() == level) {
+            if (!readNode()) break;
+        }
+        return !ended;
+    }
+
+    private void push(int xmin, int ymin, int xmax, int ymax, int level) {
+        if (tail + 5 > queue.length) {
+            // drop the consumed part before growing
+            int live = tail - head;
+            int[] q = live + 5 > queue.length / 2 ? new int[queue.length * 2] : queue;
+            System.arraycopy(queue, head, q, 0, live);
+            queue = q;
+            head = 0;
+            tail = live;
+        }
+        queue[tail++] = xmin;
+        queue[tail++] = ymin;
+        queue[tail++] = xmax;
+        queue[tail++] = ymax;
+        queue[tail++] = level;
+    }
+
+    /**
+     * Decode a prefix of a stream.
+     *
+     * @param maxBytes decode only what the first maxBytes bytes hold, as
+     *     if the stream had ended there; Long.MAX_VALUE for no limit
+     * @param maxLevels stop after this many levels (1 = root only)
+     * @return the decoded image
+     */
+    public static PixelBuffer decode(ReadableByteChannel ch, long maxBytes, int maxLevels) throws IOException {
+        if (maxBytes != Long.MAX_VALUE) {
+            byte[] prefix = Channels.newInputStream(ch).readNBytes((int) Math.min(maxBytes, Integer.MAX_VALUE));
+            ch = Channels.newChannel(new ByteArrayInputStream(prefix));
+        }
+        ProgressiveDecoder d = new ProgressiveDecoder(new ChannelInput(ch));
+        while (!d.isDone() && d.getLevel() < maxLevels) {
+            d.readNode();
+        }
+        return d.getPixels();
+    }
+
+    public static void main(String[] args) throws IOException {
+        long bytes = Long.MAX_VALUE;
+        int levels = Integer.MAX_VALUE;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-") && args[i].length() > 1; i++) {
+            switch (args[i]) {
+                case "-bytes": bytes = Long.parseLong(args[++i]); break;
+                case "-levels": levels = Integer.parseInt(args[++i]); break;
+                default: usage();
+            }
+        }
+        if (args.length - i != 2) usage();
+
+        try (ReadableByteChannel ch = args[i].equals("-") ? Channels.newChannel(System.in)
+                : FileChannel.open(Paths.get(args[i]), StandardOpenOption.READ)) {
+            PpmFile.write(Paths.get(args[i + 1]), decode(ch, bytes, levels));
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.ProgressiveDecoder [-bytes N] [-levels N] in.kdtp|- out.ppm");
+        System.exit(2);
+    }
+}
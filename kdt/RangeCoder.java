@@ -0,0 +1,207 @@
+package kdt;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Adaptive binary range coder (the LZMA design): each bit is coded with
+ * a probability that adapts to the bits seen before in its context, so
+ * skewed decisions cost a fraction of a bit. Multi-bit values are coded
+ * as a sequence of such bits; see Encoder.uint.
+ *
+ * A coded stream ends on a byte boundary and the decoder consumes
+ * exactly the bytes the encoder produced, so streams can be embedded in
+ * a container with other data after them.
+ */
+public class RangeCoder {
+    private static final int BITS = 11;         // probability precision
+    private static final int ONE = 1 << BITS;
+    private static final int MOVE = 5;          // adaptation rate, 1/32
+
+    // contexts of uint: one per unary prefix bit (a value below 2^31
+    // has at most 31 bits below its leading one), then the adaptively
+    // coded mantissa bits of each length
+    private static final int PREFIX = 32, HIGH_BITS = 2;
+
+    /**
+     * @return n contexts, all at probability 1/2
+     */
+    public static short[] contexts(int n) {
+        short[] p = new short[n];
+        Arrays.fill(p, (short) (ONE / 2));
+        return p;
+    }
+
+    /**
+     * @return contexts for one model of uint values
+     */
+    public static short[] uintContexts() {
+        return contexts(PREFIX + PREFIX * (1 << HIGH_BITS));
+    }
+
+    /**
+     * Encoder writing to a ChannelOutput.
+     */
+    public static class Encoder {
+        private final ChannelOutput out;
+        private long low;
+        private int range = -1;
+        private int cache;
+        private long cacheSize = 1;
+
+        public Encoder(ChannelOutput out) {
+            this.out = out;
+        }
+
+        /**
+         * Code one bit in context p[i], and adapt it.
+         */
+        public void bit(short[] p, int i, int bit) throws IOException {
+            int prob = p[i];
+            int bound = (range >>> BITS) * prob;
+            if (bit == 0) {
+                range = bound;
+                p[i] = (short) (prob + ((ONE - prob) >>> MOVE));
+            } else {
+                low += bound & 0xFFFFFFFFL;
+                range -= bound;
+                p[i] = (short) (prob - (prob >>> MOVE));
+            }
+            while ((range & 0xFF000000) == 0) {
+                range <<= 8;
+                shiftLow();
+            }
+        }
+
+        /**
+         * Code the low count bits of value at probability 1/2 each.
+         */
+        public void direct(int value, int count) throws IOException {
+            for (int i = count - 1; i >= 0; i--) {
+                range >>>= 1;
+                if (((value >>> i) & 1) != 0) low += range;
+                while ((range & 0xFF000000) == 0) {
+                    range <<= 8;
+                    shiftLow();
+                }
+            }
+        }
+
+        /**
+         * Code a non-negative value in an Exp-Golomb style: the bit
+         * length of value + 1 in unary, each prefix bit in its own
+         * context, then the mantissa below the leading one, its top
+         * HIGH_BITS bits in contexts of their own and the rest direct.
+         * Small values cost little once the contexts have adapted.
+         *
+         * @param p contexts from uintContexts(), one set per model
+         */
+        public void uint(short[] p, int value) throws IOException {
+            long v = (long) value + 1;
+            int k = 63 - Long.numberOfLeadingZeros(v); // bits below the leading one
+            for (int i = 0; i < k; i++) bit(p, i, 1);
+            if (k < PREFIX - 1) bit(p, k, 0); // the longest needs no end
+            int high = Math.min(k, HIGH_BITS), node = 1;
+            for (int i = 1; i <= high; i++) {
+                int b = (int) (v >>> (k - i)) & 1;
+                bit(p, PREFIX + k * (1 << HIGH_BITS) + node, b);
+                node = node << 1 | b;
+            }
+            if (k > high) direct((int) v, k - high);
+        }
+
+        /**
+         * Code a signed value as uint of its zigzag form.
+         */
+        public void sint(short[] p, int value) throws IOException {
+            uint(p, (value << 1) ^ (value >> 31));
+        }
+
+        /**
+         * Flush the coder state; the stream is then complete.
+         */
+        public void finish() throws IOException {
+            for (int i = 0; i < 5; i++) shiftLow();
+        }
+
+        private void shiftLow() throws IOException {
+            int carry = (int) (low >>> 32);
+            if (carry != 0 || low < 0xFF000000L) {
+                int b = cache;
+                do {
+                    out.writeByte(b + carry);
+                    b = 0xFF;
+                } while (--cacheSize != 0);
+                cache = (int) (low >>> 24) & 0xFF;
+            }
+            cacheSize++;
+            low = (low & 0x00FFFFFF) << 8;
+        }
+    }
+
+    /**
+     * Decoder reading from a ChannelInput; mirror of Encoder.
+     */
+    public static class Decoder {
+        private final ChannelInput in;
+        private int range = -1;
+        private int code;
+
+        public Decoder(ChannelInput in) throws IOException {
+            this.in = in;
+            for (int i = 0; i < 5; i++) code = (code << 8) | in.readByte();
+        }
+
+        public int bit(short[] p, int i) throws IOException {
+            int prob = p[i];
+            int bound = (range >>> BITS) * prob;
+            int bit;
+            if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+                range = bound;
+                p[i] = (short) (prob + ((ONE - prob) >>> MOVE));
+                bit = 0;
+            } else {
+                range -= bound;
+                code -= bound;
+                p[i] = (short) (prob - (prob >>> MOVE));
+                bit = 1;
+            }
+            while ((range & 0xFF000000) == 0) {
+                code = (code << 8) | in.readByte();
+                range <<= 8;
+            }
+            return bit;
+        }
+
+        public int direct(int count) throws IOException {
+            int result = 0;
+            for (int i = 0; i < count; i++) {
+                range >>>= 1;
+                int t = (code - range) >>> 31;
+                code -= range & (t - 1);
+                result = (result << 1) | (1 - t);
+                while ((range & 0xFF000000) == 0) {
+                    code = (code << 8) | in.readByte();
+                    range <<= 8;
+                }
+            }
+            return result;
+        }
+
+        public int uint(short[] p) throws IOException {
+            int k = 0;
+            while (k < PREFIX - 1 && bit(p, k) != 0) k++;
+            int high = Math.min(k, HIGH_BITS), node = 1;
+            for (int i = 1; i <= high; i++) node = node << 1 | bit(p, PREFIX + k * (1 << HIGH_BITS) + node);
+            long v = node;
+            if (k > high) v = v << (k - high) | direct(k - high);
+            if (v - 1 > Integer.MAX_VALUE) throw new IOException("coded value out of range");
+            return (int) (v - 1);
+        }
+
+        public int sint(short[] p) throws IOException {
+            int v = uint(p);
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package kdt;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Re-saves an edited image by updating its previous tree instead of
+ * compressing it again from scratch (see TreeBuilder.update). The
+ * changed pixels are either given as rectangles or found by comparing
+ * the new image with the one the old tree was built from. Depth,
+ * threshold and seed are taken from the old container.
+ *
+ * Usage:
+ *   java kdt.Reencode [-split random|variance] old.kdt old.ppm new.ppm out.kdt
+ *   java kdt.Reencode [-split random|variance] -dirty xmin,ymin,xmax,ymax ...
+ *                     old.kdt new.ppm out.kdt
+ */
+public class Reencode {
+
+    public static void main(String[] args) throws IOException {
+        TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+        List<int[]> dirty = new ArrayList<>();
+        boolean given = false;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-split": split = TreeBuilder.Split.valueOf(args[++i].toUpperCase()); break;
+                case "-dirty":
+                    int[] d = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    if (d.length != 4) usage();
+                    dirty.add(d);
+                    given = true;
+                    break;
+                default: usage();
+            }
+        }
+        if (args.length - i != (given ? 3 : 4)) usage();
+
+        TreeCodec.Saved saved = TreeCodec.read(Paths.get(args[i]));
+        if (!saved.hasColors()) throw new IOException(args[i] + ": version 1 container has no leaf colors");
+        TreeCodec.Header h = saved.header;
+        PixelBuffer pb = new Image(args[args.length - 2]).toPixelBuffer();
+        if (pb.getWidth() != h.width || pb.getHeight() != h.height)
+            throw new IOException(args[args.length - 2] + ": size differs from " + args[i]);
+        if (!given) dirty = pb.changedRegions(new Image(args[i + 1]).toPixelBuffer(), 64);
+
+        TreeBuilder builder = new TreeBuilder(h.maxLevel, h.homogeneityThresh, h.seed);
+        builder.setSplit(split);
+        long t0 = System.nanoTime();
+        KdTree tree = builder.update(saved.tree, pb, dirty);
+        double ms = (System.nanoTime() - t0) / 1e6;
+
+        long bytes = TreeCodec.write(Paths.get(args[args.length - 1]), h, tree);
+        System.out.printf("%s: %d bytes, %d nodes, %d dirty rectangles, %.1f ms%n",
+                args[args.length - 1], bytes, tree.size(), dirty.size(), ms);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.Reencode [-split random|variance] old.kdt old.ppm new.ppm out.kdt");
+        System.err.println("       java kdt.Reencode [-split random|variance] -dirty xmin,ymin,xmax,ymax ..."
+                + " old.kdt new.ppm out.kdt");
+        System.exit(2);
+    }
+}
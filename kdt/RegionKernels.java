@@ -0,0 +1,146 @@
+package kdt;
+
+/**
+ * Inner loops over a rectangle of packed pixels: per-channel sums and
+ * summed squared error about a color. Two implementations give
+ * bit-identical results (all arithmetic is exact integer math): a
+ * scalar one, always available, and VectorKernels on the
+ * jdk.incubator.vector API. The vector kernels are used when that
+ * module is present (run with --add-modules jdk.incubator.vector), the
+ * CPU has SIMD registers of at least 128 bits and the JDK is 21 or
+ * later; earlier JDKs box the vectors in these loops and run slower
+ * than scalar code. -Dkdt.simd=true or false overrides the choice.
+ *
+ * Only the direct scans of a PixelBuffer use these kernels:
+ * Image.avgColor, IsRegionHomogeneous and ColorRegion(pb, region), the
+ * API that predates the tables. Tree builds do not. TreeBuilder (and
+ * TiledCompressor, TargetEncoder) answer each region from RegionStats
+ * in constant time, and building those tables is a running sum along
+ * each row, one dependent add after another, which lanes cannot split.
+ * SegmentRaster's scans read three separate bytes a pixel from off-heap
+ * memory and stay scalar too.
+ *
+ * Leaf fills stay on Arrays.fill, which the JIT already compiles to
+ * wide stores.
+ */
+public abstract class RegionKernels {
+    private static final RegionKernels SCALAR = new Scalar();
+    private static final RegionKernels VECTOR = loadVector();
+    private static final RegionKernels SELECTED = select();
+
+    /**
+     * @return the kernels in use
+     */
+    public static RegionKernels get() {
+        return SELECTED;
+    }
+
+    public static RegionKernels scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * @return the Vector API kernels, null if not available in this JVM
+     */
+    public static RegionKernels vector() {
+        return VECTOR;
+    }
+
+    private static RegionKernels select() {
+        String simd = System.getProperty("kdt.simd");
+        boolean vector = simd != null ? Boolean.parseBoolean(simd) : Runtime.version().feature() >= 21;
+        return vector && VECTOR != null ? VECTOR : SCALAR;
+    }
+
+    private static RegionKernels loadVector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return null;
+        try {
+            // loaded by name: this class must not link against the module
+            return (RegionKernels) Class.forName("kdt.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return short name, for logs and benchmarks
+     */
+    public abstract String name();
+
+    /**
+     * Add up each channel over a region.
+     *
+     * @param pixels row-major packed 0xRRGGBB
+     * @param width row length of pixels
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param rgb receives the sums of red, green and blue
+     */
+    public abstract void sums(int[] pixels, int width, int[] region, long[] rgb);
+
+    /**
+     * Squared distance of every pixel of a region from a color, summed
+     * over the pixels and the three channels.
+     *
+     * @param pixels row-major packed 0xRRGGBB
+     * @param width row length of pixels
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param rgb color to measure from, packed 0xRRGGBB
+     */
+    public abstract long squaredError(int[] pixels, int width, int[] region, int rgb);
+
+    @Override
+    public String toString() {
+        return name();
+    }
+
+    // tails of the vector loops run through these too
+    static void sumRow(int[] pixels, int from, int to, long[] rgb) {
+        long r = 0, g = 0, b = 0;
+        for (int p = from; p < to; p++) {
+            int pix = pixels[p];
+            r += (pix >> 16) & 0xFF;
+            g += (pix >> 8) & 0xFF;
+            b += pix & 0xFF;
+        }
+        rgb[0] += r;
+        rgb[1] += g;
+        rgb[2] += b;
+    }
+
+    static long squaredErrorRow(int[] pixels, int from, int to, int ar, int ag, int ab) {
+        long total = 0;
+        for (int p = from; p < to; p++) {
+            int pix = pixels[p];
+            int dr = ((pix >> 16) & 0xFF) - ar, dg = ((pix >> 8) & 0xFF) - ag, db = (pix & 0xFF) - ab;
+            total += dr * dr + dg * dg + db * db;
+        }
+        return total;
+    }
+
+    private static class Scalar extends RegionKernels {
+        @Override
+        public String name() {
+            return "scalar";
+        }
+
+        @Override
+        public void sums(int[] pixels, int width, int[] region, long[] rgb) {
+            rgb[0] = rgb[1] = rgb[2] = 0;
+            for (int row = region[1]; row < region[3]; row++) {
+                int p = row * width;
+                sumRow(pixels, p + region[0], p + region[2], rgb);
+            }
+        }
+
+        @Override
+        public long squaredError(int[] pixels, int width, int[] region, int rgb) {
+            int ar = PixelBuffer.red(rgb), ag = PixelBuffer.green(rgb), ab = PixelBuffer.blue(rgb);
+            long total = 0;
+            for (int row = region[1]; row < region[3]; row++) {
+                int p = row * width;
+                total += squaredErrorRow(pixels, p + region[0], p + region[2], ar, ag, ab);
+            }
+            return total;
+        }
+    }
+}
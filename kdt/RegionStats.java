@@ -0,0 +1,484 @@
+package kdt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Summed-area tables (integral images) of a PixelBuffer.
+ * Stores per-channel sums and sums of squares so the mean and
+ * variance of any rectangular region cost four lookups per value
+ * instead of a scan over the region's pixels.
+ * Build once per image, before any pixel of the buffer is repainted.
+ * Tables may also cover just a window of the image; regions are then
+ * still given in image coordinates, and must lie inside the window.
+ *
+ * Tables of a gray raster (P5) keep one channel: a third of the memory
+ * and of the work to build. Every result is what the same image
+ * stored as r = g = b would give, so the trees are the same too.
+ * Tables built with lumaChroma also keep sums of squared luma and
+ * chroma, for lumaChromaVariance.
+ *
+ * The speed costs memory: an entry per pixel of 6 longs (8 with
+ * lumaChroma, 2 for gray), 48, 64 or 16 bytes against the 4 a
+ * PixelBuffer takes, held for the whole build. Narrowing to int does
+ * not work on whole images, as a sum of squares overflows an int
+ * after about 33,000 pixels. Entries are indexed by int, so one set of
+ * tables covers at most about 2^31 / 6 pixels (358 million; 268
+ * million with lumaChroma) and the constructors throw past that.
+ * Larger images go through TiledCompressor, which builds tables one
+ * tile at a time, or SegmentRaster.build, which keeps none.
+ */
+public class RegionStats {
+    // values kept per table entry: sum R, G, B then sum R^2, G^2, B^2,
+    // then with lumaChroma sum Y^2 and sum Cb^2 + Cr^2; for gray
+    // tables just sum V and sum V^2
+    private static final int RGB_STRIDE = 6, LUMA_CHROMA_STRIDE = 8, GRAY_STRIDE = 2;
+    private static final int LUMA = 6, CHROMA = 7;
+    private static final int MAX_ENTRIES = Integer.MAX_VALUE - 8; // largest safe array length
+
+    // luma and chroma in 1/256 units (JPEG's YCbCr, rounded): Y = 77 R
+    // + 150 G + 29 B and so on. The chroma weights sum to 0.
+    private static final int YR = 77, YG = 150, YB = 29;
+    private static final int CBR = -43, CBG = -85, CBB = 128;
+    private static final int CRR = 128, CRG = -107, CRB = -21;
+
+    private final int width, height;
+    private final int x0, y0; // image position of the window, 0,0 for a whole image
+    private final int channels; // 3, or 1 for gray
+    private final int stride;   // values per table entry
+    private final long[] table; // (height + 1) x (width + 1) entries
+
+    /**
+     * Precompute the tables for the whole buffer.
+     *
+     * @param pb pixels to summarize
+     */
+    public RegionStats(PixelBuffer pb) {
+        this(pb, false);
+    }
+
+    /**
+     * @param lumaChroma also keep what lumaChromaVariance needs
+     */
+    public RegionStats(PixelBuffer pb, boolean lumaChroma) {
+        this(0, 0, pb.getWidth(), pb.getHeight(), 3, lumaChroma);
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.TABLES)) {
+            span.pixels((long) width * height);
+            for (int row = 0; row < height; row++) {
+                addRow(row, pb.getPixels(), row * width);
+            }
+        }
+        Metrics.scanned((long) width * height);
+    }
+
+    /**
+     * Precompute the tables for one window of the buffer only.
+     *
+     * @param window {xmin,ymin,xmax,ymax}
+     */
+    public RegionStats(PixelBuffer pb, int[] window) {
+        this(pb, window, false);
+    }
+
+    /**
+     * @param lumaChroma also keep what lumaChromaVariance needs
+     */
+    public RegionStats(PixelBuffer pb, int[] window, boolean lumaChroma) {
+        this(window[0], window[1], window[2] - window[0], window[3] - window[1], 3, lumaChroma);
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.TABLES)) {
+            span.pixels((long) width * height);
+            for (int row = 0; row < height; row++) {
+                addRow(row, pb.getPixels(), (y0 + row) * pb.getWidth() + x0);
+            }
+        }
+        Metrics.scanned((long) width * height);
+    }
+
+    /**
+     * Precompute the tables straight from an interleaved r,g,b raster
+     * (see Image.getRaster), without building a PixelBuffer first.
+     *
+     * @param raster bytes, read from the current position
+     */
+    public RegionStats(ByteBuffer raster, int width, int height) {
+        this(0, 0, width, height, 3, false);
+        byte[] bytes = new byte[width * 3];
+        int[] packed = new int[width];
+
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.TABLES)) {
+            span.pixels((long) width * height);
+            for (int row = 0; row < height; row++) {
+                raster.get(bytes);
+                for (int col = 0, c = 0; col < width; col++, c += 3) {
+                    packed[col] = PixelBuffer.pack(bytes[c] & 0xFF, bytes[c + 1] & 0xFF, bytes[c + 2] & 0xFF);
+                }
+                addRow(row, packed, 0);
+            }
+        }
+        Metrics.scanned((long) width * height);
+    }
+
+    /**
+     * Precompute the tables from a raster of any format PpmFile maps
+     * (see PpmFile.readSamples). A gray raster gets one-channel tables.
+     *
+     * @param raster samples, read from the current position
+     * @param channels samples per pixel, 3 or 1
+     * @param maxVal the raster's maxval
+     * @param lumaChroma also keep what lumaChromaVariance needs; gray
+     *     tables always can
+     */
+    public RegionStats(ByteBuffer raster, int width, int height, int channels, int maxVal,
+                       boolean lumaChroma) {
+        this(0, 0, width, height, channels, lumaChroma);
+        int[] samples = new int[width * channels];
+        byte[] bytes = new byte[samples.length * PpmFile.sampleBytes(maxVal)];
+        int[] packed = channels == 1 ? null : new int[width];
+
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.TABLES)) {
+            span.pixels((long) width * height);
+            for (int row = 0; row < height; row++) {
+                PpmFile.readSamples(raster, maxVal, bytes, samples, samples.length);
+                if (channels == 1) {
+                    addGrayRow(row, samples);
+                } else {
+                    for (int col = 0, c = 0; col < width; col++, c += 3) {
+                        packed[col] = PixelBuffer.pack(samples[c], samples[c + 1], samples[c + 2]);
+                    }
+                    addRow(row, packed, 0);
+                }
+            }
+        }
+        Metrics.scanned((long) width * height);
+    }
+
+    private RegionStats(int x0, int y0, int width, int height, int channels, boolean lumaChroma) {
+        if (channels != 1 && channels != 3) throw new IllegalArgumentException("channels " + channels);
+        this.x0 = x0;
+        this.y0 = y0;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        stride = channels == 1 ? GRAY_STRIDE : lumaChroma ? LUMA_CHROMA_STRIDE : RGB_STRIDE;
+        long entries = (long) (width + 1) * (height + 1) * stride;
+        if (entries > MAX_ENTRIES)
+            throw new IllegalArgumentException(width + "x" + height + " is too large for summed-area tables ("
+                    + entries * 8 + " bytes); use TiledCompressor or SegmentRaster");
+        table = new long[(int) entries];
+    }
+
+    /**
+     * Fill table row (row + 1) from the row above and this row's pixels.
+     * Rows must be added top to bottom.
+     */
+    private void addRow(int row, int[] pixels, int p) {
+        int rowLen = (width + 1) * stride;
+        int above = row * rowLen + stride;    // entry (row, 1)
+        int here = above + rowLen;            // entry (row + 1, 1)
+        long sr = 0, sg = 0, sb = 0, qr = 0, qg = 0, qb = 0; // running sums of this row
+        long qy = 0, qc = 0;
+        boolean lumaChroma = stride == LUMA_CHROMA_STRIDE;
+
+        for (int col = 0; col < width; col++, p++) {
+            int rgb = pixels[p];
+            int r = PixelBuffer.red(rgb), g = PixelBuffer.green(rgb), b = PixelBuffer.blue(rgb);
+            sr += r;
+            sg += g;
+            sb += b;
+            qr += r * r;
+            qg += g * g;
+            qb += b * b;
+
+            table[here] = table[above] + sr;
+            table[here + 1] = table[above + 1] + sg;
+            table[here + 2] = table[above + 2] + sb;
+            table[here + 3] = table[above + 3] + qr;
+            table[here + 4] = table[above + 4] + qg;
+            table[here + 5] = table[above + 5] + qb;
+            if (lumaChroma) {
+                long y = YR * r + YG * g + YB * b, cb = CBR * r + CBG * g + CBB * b, cr = CRR * r + CRG * g + CRB * b;
+                qy += y * y;
+                qc += cb * cb + cr * cr;
+                table[here + LUMA] = table[above + LUMA] + qy;
+                table[here + CHROMA] = table[above + CHROMA] + qc;
+            }
+            above += stride;
+            here += stride;
+        }
+    }
+
+    // addRow for gray tables, from 0..255 values
+    private void addGrayRow(int row, int[] values) {
+        int rowLen = (width + 1) * stride;
+        int above = row * rowLen + stride;
+        int here = above + rowLen;
+        long s = 0, q = 0;
+
+        for (int col = 0; col < width; col++) {
+            int v = values[col];
+            s += v;
+            q += v * v;
+            table[here] = table[above] + s;
+            table[here + 1] = table[above + 1] + q;
+            above += stride;
+            here += stride;
+        }
+    }
+
+    /**
+     * @return width of the tables, the image's unless built for a window
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return 3, or 1 for tables of a gray raster
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return true if lumaChromaVariance can be used
+     */
+    public boolean hasLumaChroma() {
+        return channels == 1 || stride == LUMA_CHROMA_STRIDE;
+    }
+
+    // table value of channel c's sum; channels + this for its squares
+    private int sumIndex(int c) {
+        return channels == 1 ? 0 : c;
+    }
+
+    /**
+     * Sum of value k (see the strides) over the region.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     */
+    private long sum(int[] region, int k) {
+        return sum(region[0], region[1], region[2], region[3], k);
+    }
+
+    private long sum(int xmin, int ymin, int xmax, int ymax, int k) {
+        int rowLen = (width + 1) * stride;
+        int top = (ymin - y0) * rowLen, bottom = (ymax - y0) * rowLen;
+        int left = (xmin - x0) * stride + k, right = (xmax - x0) * stride + k;
+
+        return table[bottom + right] - table[top + right]
+                - table[bottom + left] + table[top + left];
+    }
+
+    /**
+     * Per-channel pixel sums over the region.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @return {sumR, sumG, sumB}
+     */
+    public long[] sums(int[] region) {
+        return new long[]{sum(region, sumIndex(0)), sum(region, sumIndex(1)), sum(region, sumIndex(2))};
+    }
+
+    /**
+     * Per-channel sums of squared pixel values over the region.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @return {sumR^2, sumG^2, sumB^2}
+     */
+    public long[] squareSums(int[] region) {
+        return new long[]{sum(region, channels + sumIndex(0)), sum(region, channels + sumIndex(1)),
+                sum(region, channels + sumIndex(2))};
+    }
+
+    /**
+     * Image.avgColor(stats, region) of the region given by its
+     * coordinates, without allocating.
+     *
+     * @return truncated average color, packed 0xRRGGBB
+     */
+    public int avgColor(int xmin, int ymin, int xmax, int ymax) {
+        int size = Image.regionSize(xmin, ymin, xmax, ymax);
+        if (channels == 1) return (int) (sum(xmin, ymin, xmax, ymax, 0) / size) * 0x010101;
+        return PixelBuffer.pack((int) (sum(xmin, ymin, xmax, ymax, 0) / size),
+                (int) (sum(xmin, ymin, xmax, ymax, 1) / size), (int) (sum(xmin, ymin, xmax, ymax, 2) / size));
+    }
+
+    /**
+     * Image.regionVariance(stats, region) of the region given by its
+     * coordinates, without allocating.
+     *
+     * @return summed RGB variance about the truncated average; 0 under
+     *     4 pixels
+     */
+    public double variance(int xmin, int ymin, int xmax, int ymax) {
+        int size = Image.regionSize(xmin, ymin, xmax, ymax);
+        if (size < 4) return 0;
+        long n = (long) (xmax - xmin) * (ymax - ymin);
+        long total = 0;
+        for (int c = 0; c < channels; c++) {
+            long s = sum(xmin, ymin, xmax, ymax, c), a = s / size;
+            total += sum(xmin, ymin, xmax, ymax, c + channels) - 2 * a * s + n * a * a;
+        }
+        return (double) (channels == 1 ? 3 * total : total) / size;
+    }
+
+    /**
+     * Variance of the region in YCbCr, weighted: 3 Var(Y) + chromaWeight
+     * (Var(Cb) + Var(Cr)), about the exact means. On gray regions, where
+     * chroma is 0, it equals the summed RGB variance (about the exact
+     * mean), so the same thresholds apply; with chromaWeight below 3,
+     * color differences count for less than the RGB sum gives them.
+     * Needs hasLumaChroma().
+     *
+     * @param chromaWeight weight of the chroma variances; 0 for luma only
+     * @return weighted variance; 0 under 4 pixels
+     */
+    public double lumaChromaVariance(int xmin, int ymin, int xmax, int ymax, double chromaWeight) {
+        if (!hasLumaChroma()) throw new IllegalStateException("tables were built without luma and chroma");
+        long n = (long) (xmax - xmin) * (ymax - ymin);
+        if (Image.regionSize(xmin, ymin, xmax, ymax) < 4 || n == 0) return 0;
+        if (channels == 1) {
+            double s = sum(xmin, ymin, xmax, ymax, 0);
+            return 3 * (sum(xmin, ymin, xmax, ymax, 1) - s * s / n) / n;
+        }
+        double r = sum(xmin, ymin, xmax, ymax, 0), g = sum(xmin, ymin, xmax, ymax, 1),
+                b = sum(xmin, ymin, xmax, ymax, 2);
+        double y = YR * r + YG * g + YB * b, cb = CBR * r + CBG * g + CBB * b, cr = CRR * r + CRG * g + CRB * b;
+        double luma = sum(xmin, ymin, xmax, ymax, LUMA) - y * y / n;
+        double chroma = sum(xmin, ymin, xmax, ymax, CHROMA) - (cb * cb + cr * cr) / n;
+        return (3 * luma + chromaWeight * chroma) / n / (256.0 * 256.0);
+    }
+
+    /**
+     * Best split of the region on one axis: the position that minimizes
+     * the summed squared error of the two children, where a child's
+     * error is sum over channels of S2 - S1^2 / n (its variance about
+     * its exact mean, times its size). Every position strictly inside
+     * the region is tried; a position's child sums come from the
+     * tables in O(1), so the scan is linear in the region's extent.
+     * Equal errors go to the position nearest the middle.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param axis KdTree.X (split columns) or KdTree.Y (split rows)
+     * @param error receives the children's error at error[0]
+     * @return split position, or -1 if the region is one pixel thick
+     *     on that axis (error[0] is then +infinity)
+     */
+    public int bestSplit(int[] region, byte axis, double[] error) {
+        return bestSplit(region[0], region[1], region[2], region[3], axis, error);
+    }
+
+    /**
+     * bestSplit of the region given by its coordinates; allocates
+     * nothing, so error can be reused from call to call.
+     */
+    public int bestSplit(int xmin, int ymin, int xmax, int ymax, byte axis, double[] error) {
+        int rowLen = (width + 1) * stride;
+        // positions relative to the window; the result is shifted back
+        int lo, hi, step, low0, high0, origin; // table entries bounding the band [lo, c)
+        if (axis == KdTree.X) {
+            origin = x0;
+            lo = xmin - x0;
+            hi = xmax - x0;
+            step = stride;
+            low0 = (ymin - y0) * rowLen;     // entry (ymin, 0)
+            high0 = (ymax - y0) * rowLen;    // entry (ymax, 0)
+        } else {
+            origin = y0;
+            lo = ymin - y0;
+            hi = ymax - y0;
+            step = rowLen;
+            low0 = (xmin - x0) * stride;     // entry (0, xmin)
+            high0 = (xmax - x0) * stride;    // entry (0, xmax)
+        }
+        error[0] = Double.POSITIVE_INFINITY;
+        if (hi - lo < 2) return -1;
+
+        long across = axis == KdTree.X ? ymax - ymin : xmax - xmin;
+        // band sums are taken relative to the band's low edge
+        int base = lo * step, hb = high0 + base, lb = low0 + base;
+        int ht = high0 + hi * step, lt = low0 + hi * step, sq = channels;
+        long r1 = band(ht, lt, hb, lb), r2 = band(ht + sq, lt + sq, hb + sq, lb + sq);
+        long g1 = 0, g2 = 0, b1 = 0, b2 = 0;
+        if (channels == 3) {
+            g1 = band(ht + 1, lt + 1, hb + 1, lb + 1);
+            b1 = band(ht + 2, lt + 2, hb + 2, lb + 2);
+            g2 = band(ht + 4, lt + 4, hb + 4, lb + 4);
+            b2 = band(ht + 5, lt + 5, hb + 5, lb + 5);
+        }
+
+        int best = -1;
+        int mid2 = lo + hi; // twice the middle, kept integral
+        for (int c = lo + 1; c < hi; c++) {
+            int h = high0 + c * step, l = low0 + c * step;
+            long nFirst = (c - lo) * across, nSecond = (hi - c) * across;
+            double e;
+            if (channels == 1) {
+                // gray: the three equal channels of the RGB sum
+                double v = splitError(h, l, hb, lb, r1, r2, nFirst, nSecond);
+                e = v + v + v;
+            } else {
+                e = splitError(h, l, hb, lb, r1, r2, nFirst, nSecond)
+                        + splitError(h + 1, l + 1, hb + 1, lb + 1, g1, g2, nFirst, nSecond)
+                        + splitError(h + 2, l + 2, hb + 2, lb + 2, b1, b2, nFirst, nSecond);
+            }
+            if (e < error[0] || (e == error[0] && Math.abs(2 * c - mid2) < Math.abs(2 * best - mid2))) {
+                error[0] = e;
+                best = c;
+            }
+        }
+        return best + origin;
+    }
+
+    // one channel's error of both children of a split, given the
+    // channel's sum and sum of squares over the whole region
+    private double splitError(int h, int l, int hb, int lb, long total1, long total2, long nFirst, long nSecond) {
+        int sq = channels;
+        long s1 = band(h, l, hb, lb), s2 = band(h + sq, l + sq, hb + sq, lb + sq);
+        long t1 = total1 - s1, t2 = total2 - s2;
+        return s2 - (double) s1 * s1 / nFirst + t2 - (double) t1 * t1 / nSecond;
+    }
+
+    // sum over the band between two table columns (or rows)
+    private long band(int high, int low, int highBase, int lowBase) {
+        return table[high] - table[low] - table[highBase] + table[lowBase];
+    }
+
+    /**
+     * Summed RGB variance of the region about the (truncated) average
+     * color, i.e. the same quantity Image.IsRegionHomogeneous used to
+     * accumulate pixel by pixel:
+     *   sum (p - a)^2 = S2 - 2 a S1 + n a^2   for each channel.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param size   divisor, Image.regionSize(region)
+     * @param avg    truncated average {r,g,b} of the region
+     * @return variance as tested against the homogeneity threshold
+     */
+    public double variance(int[] region, int size, int[] avg) {
+        return (double) squaredError(region, avg) / size;
+    }
+
+    /**
+     * Squared distance of the region's pixels from a color, summed over
+     * pixels and channels, exactly.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param avg    color {r,g,b}
+     */
+    public long squaredError(int[] region, int[] avg) {
+        // actual pixel count; may be 0 for a degenerate region
+        long n = (long) (region[2] - region[0]) * (region[3] - region[1]);
+        long total = 0;
+
+        for (int c = 0; c < 3; c++) {
+            long a = avg[c];
+            int k = sumIndex(c);
+            total += sum(region, channels + k) - 2 * a * sum(region, k) + n * a * a;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,498 @@
+package kdt;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * RGB raster held off-heap in a MemorySegment: interleaved r,g,b bytes,
+ * row-major, one byte per channel, addressed with long offsets. Unlike
+ * PixelBuffer (an int per pixel, at most 2^31 pixels) it can hold
+ * images of several gigapixels, and the collector never sees it.
+ *
+ * The segment comes from an arena the caller owns: allocated (zeroed),
+ * read from a PPM file, mapped from one read-only, or mapped from a new
+ * one read-write so painting writes the file. The raster is
+ * usable until that arena is closed; a confined arena also keeps it to
+ * the owning thread. Several rasters may share one arena.
+ *
+ * Homogeneity tests and fills work on the segment directly, and build()
+ * grows a tree from it without summed-area tables (which take 48 bytes
+ * per pixel): every node scans its region once, as the original
+ * algorithm did. It tests homogeneity on RGB only, so results equal
+ * TreeBuilder's with the RGB metric on the same pixels; a YCBCR
+ * builder is refused.
+ *
+ * Uses java.lang.foreign, a preview API on JDK 21: compile with
+ * --release 21 --enable-preview and run with --enable-preview there.
+ *
+ * Usage:
+ *   java --enable-preview kdt.SegmentRaster [-depth N] [-thresh F] [-seed S]
+ *       [-split random|variance] in.ppm out.kdt [decoded.ppm]
+ */
+public class SegmentRaster {
+    private static final long CHUNK = 1 << 20; // bytes per file read or write
+
+    private final int width, height;
+    private final MemorySegment segment; // width * height * 3 bytes
+
+    private SegmentRaster(int width, int height, MemorySegment segment) {
+        if (segment.byteSize() != (long) width * height * 3)
+            throw new IllegalArgumentException("segment does not match " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.segment = segment;
+    }
+
+    /**
+     * Wrap an existing segment (no copy).
+     *
+     * @param segment interleaved r,g,b bytes, width * height * 3 long
+     */
+    public static SegmentRaster of(int width, int height, MemorySegment segment) {
+        return new SegmentRaster(width, height, segment);
+    }
+
+    /**
+     * New raster, all black. Counts against -XX:MaxDirectMemorySize
+     * (by default the heap size); see create() for rasters backed by a
+     * file instead.
+     */
+    public static SegmentRaster allocate(Arena arena, int width, int height) {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("bad dimensions " + width + "x" + height);
+        return new SegmentRaster(width, height, arena.allocate((long) width * height * 3));
+    }
+
+    /**
+     * Read a binary PPM into a new raster. The file may exceed 2 GB.
+     *
+     * @throws IOException if the file cannot be read or is not an 8-bit P6
+     */
+    public static SegmentRaster read(Path path, Arena arena) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            PpmFile.Header h = PpmFile.readHeader(ch, path.toString());
+            if (!h.isRgb8()) throw new IOException(path + ": not an 8-bit P6");
+            SegmentRaster raster = allocate(arena, h.width, h.height);
+            long size = raster.segment.byteSize();
+            for (long off = 0; off < size; off += CHUNK) {
+                ByteBuffer buf = raster.segment.asSlice(off, Math.min(CHUNK, size - off)).asByteBuffer();
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, h.rasterOffset + off + buf.position()) < 0)
+                        throw new IOException(path + ": truncated raster");
+                }
+            }
+            return raster;
+        }
+    }
+
+    /**
+     * Map the raster of a binary PPM read-only, without copying it.
+     * The file may exceed 2 GB; fill and set throw on the result.
+     *
+     * @throws IOException if the file cannot be read or is not an 8-bit P6
+     */
+    public static SegmentRaster map(Path path, Arena arena) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            PpmFile.Header h = PpmFile.readHeader(ch, path.toString());
+            if (!h.isRgb8()) throw new IOException(path + ": not an 8-bit P6");
+            return new SegmentRaster(h.width, h.height,
+                    ch.map(FileChannel.MapMode.READ_ONLY, h.rasterOffset, h.rasterLength(), arena));
+        }
+    }
+
+    /**
+     * Create a binary PPM of the given size, all black, and map its
+     * raster read-write: what is painted goes to the file, paged out by
+     * the OS as needed. Replaces the file.
+     */
+    public static SegmentRaster create(Path path, int width, int height, Arena arena) throws IOException {
+        if (width <= 0 || height <= 0) throw new IllegalArgumentException("bad dimensions " + width + "x" + height);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PpmFile.writeHeader(ch, width, height);
+            long start = ch.position(), length = (long) width * height * 3;
+            return new SegmentRaster(width, height, ch.map(FileChannel.MapMode.READ_WRITE, start, length, arena));
+        }
+    }
+
+    /**
+     * Write the raster as a binary PPM (P6, maxval 255), replacing the file.
+     */
+    public void write(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            PpmFile.writeHeader(ch, width, height);
+            long size = segment.byteSize();
+            for (long off = 0; off < size; off += CHUNK) {
+                ByteBuffer buf = segment.asSlice(off, Math.min(CHUNK, size - off)).asByteBuffer();
+                while (buf.hasRemaining()) ch.write(buf);
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the backing segment, interleaved r,g,b bytes, row-major
+     */
+    public MemorySegment getSegment() {
+        return segment;
+    }
+
+    private long offset(int row, int col) {
+        return ((long) row * width + col) * 3;
+    }
+
+    public int get(int row, int col) {
+        long p = offset(row, col);
+        return PixelBuffer.pack(segment.get(ValueLayout.JAVA_BYTE, p) & 0xFF,
+                segment.get(ValueLayout.JAVA_BYTE, p + 1) & 0xFF, segment.get(ValueLayout.JAVA_BYTE, p + 2) & 0xFF);
+    }
+
+    public void set(int row, int col, int rgb) {
+        long p = offset(row, col);
+        segment.set(ValueLayout.JAVA_BYTE, p, (byte) (rgb >> 16));
+        segment.set(ValueLayout.JAVA_BYTE, p + 1, (byte) (rgb >> 8));
+        segment.set(ValueLayout.JAVA_BYTE, p + 2, (byte) rgb);
+    }
+
+    /**
+     * Paint every pixel of the region.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param rgb packed color
+     */
+    public void fill(int[] region, int rgb) {
+        fill(region[0], region[1], region[2], region[3], rgb);
+    }
+
+    /**
+     * Paint every pixel of {xmin,ymin,xmax,ymax}. The first row is
+     * filled by doubling copies from one pixel, the others are copied
+     * from it, so the work is a few bulk copies per row.
+     */
+    public void fill(int xmin, int ymin, int xmax, int ymax, int rgb) {
+        if (xmin >= xmax || ymin >= ymax) return;
+        long first = offset(ymin, xmin), span = (xmax - xmin) * 3L, rowBytes = width * 3L;
+        set(ymin, xmin, rgb);
+        for (long done = 3; done < span; done *= 2) {
+            MemorySegment.copy(segment, first, segment, first + done, Math.min(done, span - done));
+        }
+        for (long p = first + rowBytes, end = offset(ymax, xmin); p < end; p += rowBytes) {
+            MemorySegment.copy(segment, first, segment, p, span);
+        }
+    }
+
+    /**
+     * Paint the leaves of a tree of this raster's size.
+     */
+    public void paint(KdTree tree) {
+        if (tree.getWidth() != width || tree.getHeight() != height)
+            throw new IllegalArgumentException("tree is not " + width + "x" + height);
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.RENDER)) {
+            span.pixels((long) width * height).nodes(tree.size());
+            paint(tree, 0, 0, 0, width, height);
+        }
+        Metrics.painted((long) width * height);
+    }
+
+    private void paint(KdTree tree, int node, int xmin, int ymin, int xmax, int ymax) {
+        if (tree.isLeaf(node)) {
+            fill(xmin, ymin, xmax, ymax, tree.color(node));
+        } else if (tree.axis(node) == KdTree.X) {
+            paint(tree, tree.left(node), xmin, ymin, tree.split(node), ymax);
+            paint(tree, tree.right(node), tree.split(node), ymin, xmax, ymax);
+        } else {
+            paint(tree, tree.left(node), xmin, ymin, xmax, tree.split(node));
+            paint(tree, tree.right(node), xmin, tree.split(node), xmax, ymax);
+        }
+    }
+
+    /**
+     * Copy a window into a new PixelBuffer, e.g. a tile for TreeBuilder.
+     *
+     * @param window {xmin,ymin,xmax,ymax}
+     */
+    public PixelBuffer toPixelBuffer(int[] window) {
+        int w = window[2] - window[0], h = window[3] - window[1];
+        int[] packed = new int[w * h];
+        byte[] row = new byte[w * 3];
+        for (int y = 0, i = 0; y < h; y++) {
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset(window[1] + y, window[0]), row, 0, row.length);
+            for (int c = 0; c < row.length; c += 3, i++) {
+                packed[i] = PixelBuffer.pack(row[c] & 0xFF, row[c + 1] & 0xFF, row[c + 2] & 0xFF);
+            }
+        }
+        return new PixelBuffer(w, h, packed);
+    }
+
+    // pixel count as Image.regionSize counts it, without int overflow
+    private static long regionSize(int[] region) {
+        return (long) Math.max(1, region[2] - region[0]) * Math.max(1, region[3] - region[1]);
+    }
+
+    /**
+     * Return avg RGB for the region, truncated, as Image.avgColor does
+     * for a PixelBuffer.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @return avg RGB, packed 0xRRGGBB
+     */
+    public int avgColor(int[] region) {
+        Scan s = new Scan(this, false);
+        s.scan(region);
+        return s.avg;
+    }
+
+    /**
+     * Test a region for homogeneity, with the same result as
+     * Image.IsRegionHomogeneous on the same pixels.
+     *
+     * @param region {xmin,ymin,xmax,ymax}
+     * @param thresh homogeneity threshold
+     * @return true iff homogenous
+     */
+    public boolean isRegionHomogeneous(int[] region, double thresh) {
+        if (regionSize(region) < 4) return true;
+        Scan s = new Scan(this, false);
+        s.scan(region);
+        return s.variance < thresh;
+    }
+
+    /**
+     * Build a tree with a builder's depth, threshold, seed and split
+     * mode, straight from the raster. The tree equals builder.build()
+     * on the same pixels; the builder's pool is not used.
+     *
+     * @throws IllegalArgumentException if the builder's metric is not RGB
+     */
+    public KdTree build(TreeBuilder builder) {
+        if (builder.getMetric() != TreeBuilder.Metric.RGB)
+            throw new IllegalArgumentException("raster builds test RGB only, not " + builder.getMetric());
+        int[] region = {0, 0, width, height};
+        KdTree tree = new KdTree(width, height);
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.BUILD).pixels((long) width * height)) {
+            Scan s = new Scan(this, builder.getSplit() == TreeBuilder.Split.VARIANCE);
+            build(builder, s, tree, region, 0, false, builder.getSeed());
+            tree.trim();
+            span.nodes(tree.size());
+        }
+        return tree;
+    }
+
+    // TreeBuilder.buildImageTree, with the scan in place of the tables
+    private void build(TreeBuilder builder, Scan s, KdTree tree, int[] region, int level,
+                       boolean dim_flag, long nodeSeed) {
+        long start = Metrics.nodeStart();
+        boolean split = level < builder.getMaxLevel();
+        s.scan(region, split);
+        int avg = s.avg;
+        double variance = regionSize(region) < 4 ? 0 : s.variance;
+        boolean homogeneous = regionSize(region) < 4 || variance < builder.getHomogeneityThresh();
+
+        if (!split || homogeneous) {
+            tree.setVariance(tree.addLeaf(avg), (float) variance);
+            Metrics.node(level, true, start);
+            return;
+        }
+
+        int partition;
+        if (builder.getSplit() == TreeBuilder.Split.VARIANCE) {
+            dim_flag = s.errY < s.errX || (s.errY == s.errX && dim_flag);
+            partition = dim_flag ? s.splitY : s.splitX;
+        } else {
+            partition = dim_flag ? TreeBuilder.genRandom(nodeSeed, region[1], region[3])
+                    : TreeBuilder.genRandom(nodeSeed, region[0], region[2]);
+        }
+
+        int[] first, second;
+        if (!dim_flag) {
+            first = new int[]{region[0], region[1], partition, region[3]};
+            second = new int[]{partition, region[1], region[2], region[3]};
+        } else {
+            first = new int[]{region[0], region[1], region[2], partition};
+            second = new int[]{region[0], partition, region[2], region[3]};
+        }
+        int node = tree.addInternal(dim_flag ? KdTree.Y : KdTree.X, partition, avg);
+        tree.setVariance(node, (float) variance);
+        Metrics.node(level, false, start);
+
+        build(builder, s, tree, first, level + 1, !dim_flag, TreeBuilder.childSeed(nodeSeed, 0));
+        tree.setRight(node, tree.size());
+        build(builder, s, tree, second, level + 1, !dim_flag, TreeBuilder.childSeed(nodeSeed, 1));
+    }
+
+    /**
+     * One pass over a region: its truncated mean and the variance about
+     * it, and optionally the best split on each axis. The split search
+     * is RegionStats.bestSplit's, on per-column and per-row sums taken
+     * during the pass instead of table lookups, so it picks the same
+     * positions. Scratch space is kept between scans.
+     */
+    private static class Scan {
+        private final SegmentRaster raster;
+        private final byte[] row;
+        private final long[] cols, rows; // sum R, G, B, R^2, G^2, B^2 per column / row
+
+        int avg;
+        double variance;
+        int splitX, splitY;
+        double errX, errY;
+
+        Scan(SegmentRaster raster, boolean splits) {
+            this.raster = raster;
+            row = new byte[raster.width * 3];
+            cols = splits ? new long[raster.width * 6] : null;
+            rows = splits ? new long[raster.height * 6] : null;
+        }
+
+        void scan(int[] region) {
+            scan(region, false);
+        }
+
+        void scan(int[] region, boolean splits) {
+            splits &= cols != null;
+            int w = region[2] - region[0], h = region[3] - region[1];
+            long[] total = new long[6];
+            if (splits) Arrays.fill(cols, 0, w * 6, 0);
+
+            for (int y = 0; y < h; y++) {
+                int n = w * 3;
+                MemorySegment.copy(raster.segment, ValueLayout.JAVA_BYTE, raster.offset(region[1] + y, region[0]),
+                        row, 0, n);
+                long sr = 0, sg = 0, sb = 0, qr = 0, qg = 0, qb = 0;
+                for (int c = 0, x = 0; c < n; c += 3, x += 6) {
+                    int r = row[c] & 0xFF, g = row[c + 1] & 0xFF, b = row[c + 2] & 0xFF;
+                    sr += r;
+                    sg += g;
+                    sb += b;
+                    qr += r * r;
+                    qg += g * g;
+                    qb += b * b;
+                    if (splits) {
+                        cols[x] += r;
+                        cols[x + 1] += g;
+                        cols[x + 2] += b;
+                        cols[x + 3] += r * r;
+                        cols[x + 4] += g * g;
+                        cols[x + 5] += b * b;
+                    }
+                }
+                total[0] += sr;
+                total[1] += sg;
+                total[2] += sb;
+                total[3] += qr;
+                total[4] += qg;
+                total[5] += qb;
+                if (splits) {
+                    int k = 6 * y;
+                    rows[k] = sr;
+                    rows[k + 1] = sg;
+                    rows[k + 2] = sb;
+                    rows[k + 3] = qr;
+                    rows[k + 4] = qg;
+                    rows[k + 5] = qb;
+                }
+            }
+            Metrics.scanned((long) w * h);
+
+            // truncated mean over Image.regionSize pixels, then the exact
+            // squared error about it (as RegionStats.squaredError)
+            long size = regionSize(region), n = (long) w * h, sse = 0;
+            int[] a = new int[3];
+            for (int c = 0; c < 3; c++) {
+                a[c] = (int) (total[c] / size);
+                sse += total[c + 3] - 2 * a[c] * total[c] + n * a[c] * a[c];
+            }
+            avg = PixelBuffer.pack(a[0], a[1], a[2]);
+            variance = (double) sse / size;
+
+            if (splits) {
+                double[] err = new double[1];
+                splitX = bestSplit(cols, region[0], region[2], h, total, err);
+                errX = err[0];
+                splitY = bestSplit(rows, region[1], region[3], w, total, err);
+                errY = err[0];
+            }
+        }
+
+        // RegionStats.bestSplit over per-line sums: line i is position lo + i
+        private static int bestSplit(long[] lines, int lo, int hi, long across, long[] total, double[] error) {
+            error[0] = Double.POSITIVE_INFINITY;
+            if (hi - lo < 2) return -1;
+
+            long[] s = new long[6];
+            int best = -1;
+            int mid2 = lo + hi;
+            for (int c = lo + 1; c < hi; c++) {
+                int k = 6 * (c - 1 - lo);
+                for (int j = 0; j < 6; j++) s[j] += lines[k + j];
+                long nFirst = (c - lo) * across, nSecond = (hi - c) * across;
+                double e = 0;
+                for (int j = 0; j < 3; j++) {
+                    long s1 = s[j], s2 = s[j + 3];
+                    long t1 = total[j] - s1, t2 = total[j + 3] - s2;
+                    e += s2 - (double) s1 * s1 / nFirst + t2 - (double) t1 * t1 / nSecond;
+                }
+                if (e < error[0] || (e == error[0] && Math.abs(2 * c - mid2) < Math.abs(2 * best - mid2))) {
+                    error[0] = e;
+                    best = c;
+                }
+            }
+            return best;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int depth = TreeBuilder.DEFAULT_MAX_LEVEL;
+        float thresh = TreeBuilder.DEFAULT_HOMOGENEITY_THRESH;
+        long seed = 0;
+        TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-thresh": thresh = Float.parseFloat(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-split": split = TreeBuilder.Split.valueOf(args[++i].toUpperCase()); break;
+                default: usage();
+            }
+        }
+        if (args.length - i != 2 && args.length - i != 3) usage();
+
+        try (Arena arena = Arena.ofConfined()) {
+            SegmentRaster in = map(Paths.get(args[i]), arena);
+            TreeBuilder builder = new TreeBuilder(depth, thresh, seed);
+            builder.setSplit(split);
+            KdTree tree = in.build(builder);
+
+            Path out = Paths.get(args[i + 1]);
+            long written = TreeCodec.write(out, new TreeCodec.Header(in.width, in.height, depth, thresh, seed), tree);
+            System.out.printf("%s: %dx%d, %d nodes, %d bytes%n", out, in.width, in.height, tree.size(), written);
+
+            if (args.length - i == 3) {
+                create(Paths.get(args[i + 2]), in.width, in.height, arena).paint(tree);
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: java --enable-preview kdt.SegmentRaster [-depth N] [-thresh F] [-seed S]"
+                + " [-split random|variance] in.ppm out.kdt [decoded.ppm]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,36 @@
+package kdt;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * One TreeCache entry held off-heap, in a segment of its own shared
+ * arena, so evicting it returns the memory at once. This class and
+ * SegmentRaster are the only users of java.lang.foreign (a preview API
+ * on JDK 21); the rest of the package loads without --enable-preview.
+ */
+class SegmentSlot implements TreeCache.Slot {
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment segment;
+
+    SegmentSlot(byte[] data) {
+        segment = arena.allocate(data.length);
+        MemorySegment.copy(data, 0, segment, ValueLayout.JAVA_BYTE, 0, data.length);
+    }
+
+    @Override
+    public byte[] read() {
+        return segment.toArray(ValueLayout.JAVA_BYTE);
+    }
+
+    @Override
+    public long size() {
+        return segment.byteSize();
+    }
+
+    @Override
+    public void free() {
+        arena.close();
+    }
+}
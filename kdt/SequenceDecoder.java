@@ -0,0 +1,209 @@
+package kdt;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Sequential decoder of SequenceEncoder streams. Keeps the previous
+ * frame's tree and applies each frame's differences to it.
+ *
+ * Usage: java kdt.SequenceDecoder in.kdts outdir
+ * (writes outdir/frame-00000.ppm, frame-00001.ppm, ...)
+ */
+public class SequenceDecoder implements Closeable {
+    private final ChannelInput in;
+    private final TreeCodec.Header header;
+    private KdTree prevTree;
+    private long frames;
+
+    /**
+     * Read the sequence header.
+     */
+    public SequenceDecoder(ChannelInput in) throws IOException {
+        this(in, TreeCodec.MAX_PIXELS);
+    }
+
+    /**
+     * Read the sequence header, accepting frames of at most maxPixels
+     * pixels. Frames are checked as TreeCodec.read checks containers.
+     */
+    public SequenceDecoder(ChannelInput in, long maxPixels) throws IOException {
+        this.in = in;
+        if (in.readInt() != SequenceEncoder.MAGIC) throw new IOException("not a KD tree sequence");
+        int version = in.readByte();
+        if (version != SequenceEncoder.VERSION) throw new IOException("unsupported sequence version " + version);
+        header = TreeCodec.readHeader(in, maxPixels);
+    }
+
+    public TreeCodec.Header getHeader() {
+        return header;
+    }
+
+    /**
+     * @return frames read so far
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Read the next frame.
+     *
+     * @return its tree (render with TreeDecoder.decode), or null at the
+     *     end of the sequence
+     */
+    public KdTree readFrame() throws IOException {
+        int type;
+        try {
+            type = in.readByte();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (type != SequenceEncoder.KEY && type != SequenceEncoder.DELTA)
+            throw new IOException("bad frame type " + type);
+        if (type == SequenceEncoder.DELTA && prevTree == null)
+            throw new IOException("delta frame before the first key frame");
+
+        KdTree tree = new KdTree(header.width, header.height,
+                prevTree == null ? 64 : prevTree.size());
+        new Reader(type == SequenceEncoder.KEY ? null : prevTree, tree).run(TreeCodec.maxNodes(header));
+        tree.trim();
+        prevTree = tree;
+        frames++;
+        return tree;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * Pre-order reader of one frame, mirror of SequenceEncoder.Writer.
+     * Iterative, as TreeCodec's reader: right children wait on an
+     * explicit stack.
+     */
+    private class Reader {
+        private static final int INTS = 6; // xmin, ymin, xmax, ymax, matched node, parent node
+
+        private final KdTree prev, tree;
+        private int bits, count = 4;
+
+        /**
+         * @param prev previous frame's tree, null for a key frame
+         */
+        Reader(KdTree prev, KdTree tree) {
+            this.prev = prev;
+            this.tree = tree;
+        }
+
+        void run(int maxNodes) throws IOException {
+            int[] pending = new int[32 * INTS];
+            int top = 0;
+            int xmin = 0, ymin = 0, xmax = header.width, ymax = header.height;
+            int p = prev == null ? -1 : 0; // matched node of the previous tree, -1 if none
+            while (true) {
+                if (count == 4) {
+                    bits = in.readByte();
+                    count = 0;
+                }
+                int code = (bits >> (2 * count++)) & 3;
+
+                if (code == SequenceEncoder.SAME_SPLIT || code == SequenceEncoder.SPLIT) {
+                    int axis;
+                    long offset;
+                    if (code == SequenceEncoder.SAME_SPLIT) {
+                        if (p < 0 || prev.isLeaf(p)) throw new IOException("same split without a previous split");
+                        axis = prev.axis(p);
+                        offset = prev.split(p) - (axis == KdTree.X ? xmin : ymin);
+                    } else {
+                        long v = in.readVarint();
+                        axis = (v & 1) != 0 ? KdTree.Y : KdTree.X;
+                        offset = v >>> 1;
+                    }
+                    int partition = TreeCodec.partition(xmin, ymin, xmax, ymax, axis, offset);
+
+                    int t = tree.addInternal(axis, partition, 0);
+                    TreeCodec.checkSize(tree, maxNodes);
+                    if (top == pending.length) pending = Arrays.copyOf(pending, 2 * top);
+                    pending[top] = axis == KdTree.X ? partition : xmin;
+                    pending[top + 1] = axis == KdTree.X ? ymin : partition;
+                    pending[top + 2] = xmax;
+                    pending[top + 3] = ymax;
+                    pending[top + 4] = code == SequenceEncoder.SAME_SPLIT ? prev.right(p) : -1;
+                    pending[top + 5] = t;
+                    top += INTS;
+                    if (axis == KdTree.X) {
+                        xmax = partition;
+                    } else {
+                        ymax = partition;
+                    }
+                    p = code == SequenceEncoder.SAME_SPLIT ? prev.left(p) : -1;
+                    continue;
+                }
+
+                if (code == SequenceEncoder.COPY) {
+                    if (p < 0) throw new IOException("copy without a previous node");
+                    tree.append(prev, p, prev.subtreeEnd(p));
+                } else {  // LEAF
+                    int r, g, b;
+                    if (p >= 0 && prev.isLeaf(p)) {
+                        int q = prev.color(p);
+                        r = PixelBuffer.red(q) + zigzag(in.readVarint32());
+                        g = PixelBuffer.green(q) + zigzag(in.readVarint32());
+                        b = PixelBuffer.blue(q) + zigzag(in.readVarint32());
+                        if (((r | g | b) & ~0xFF) != 0) throw new IOException("corrupt color delta");
+                    } else {
+                        r = in.readByte();
+                        g = in.readByte();
+                        b = in.readByte();
+                    }
+                    tree.addLeaf(PixelBuffer.pack(r, g, b));
+                }
+                TreeCodec.checkSize(tree, maxNodes);
+
+                // continue with the right child of the deepest open split
+                if (top == 0) break;
+                top -= INTS;
+                xmin = pending[top];
+                ymin = pending[top + 1];
+                xmax = pending[top + 2];
+                ymax = pending[top + 3];
+                p = pending[top + 4];
+                tree.setRight(pending[top + 5], tree.size());
+            }
+            // internal colors are not stored; copied subtrees keep theirs,
+            // which merging again leaves as they are
+            tree.mergeColors();
+        }
+    }
+
+    private static int zigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: java kdt.SequenceDecoder in.kdts outdir");
+            System.exit(2);
+        }
+        Path outDir = Paths.get(args[1]);
+        Files.createDirectories(outDir);
+        try (SequenceDecoder dec = new SequenceDecoder(new ChannelInput(
+                FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ)))) {
+            KdTree tree;
+            while ((tree = dec.readFrame()) != null) {
+                PpmFile.write(outDir.resolve(String.format("frame-%05d.ppm", dec.getFrameCount() - 1)),
+                        TreeDecoder.decode(tree));
+            }
+            System.out.println(dec.getFrameCount() + " frames");
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package kdt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Encoder for frame sequences (screen captures, timelapses) in which
+ * consecutive frames are nearly identical. Each frame's tree is the
+ * previous frame's tree updated where pixels changed (see
+ * TreeBuilder.update), and is written as a difference from it: whole
+ * subtrees that did not change cost two bits, and changed leaf colors
+ * are stored as small deltas. Every keyInterval frames a key frame is
+ * built from scratch, so decoding can start there.
+ *
+ * Layout (big-endian):
+ *   magic "KDTS", version byte,
+ *   varint width, varint height, varint maxLevel,
+ *   float homogeneityThresh, long seed,
+ *   then per frame: a type byte (0 key, 1 delta) and the frame's nodes
+ *   in pre-order, in groups of four: one code byte (2 bits per node,
+ *   node i in bits 2i..2i+1) followed by each node's payload in turn.
+ *   Each node is matched with the node in the same place of the
+ *   previous frame's tree, if any (never in a key frame):
+ *     COPY        whole subtree equals the matched one; no payload,
+ *                 its nodes are not coded
+ *     SAME_SPLIT  internal, same axis and partition as the matched
+ *                 node; no payload, children matched with its children
+ *     SPLIT       internal, new partition: varint (offset << 1 | axis)
+ *                 as in TreeCodec; children have no match
+ *     LEAF        leaf color: three zigzag varint channel deltas from
+ *                 the matched node if that is a leaf, else r,g,b bytes
+ *   Internal colors are not stored; decoders merge them from the
+ *   children, as TreeCodec.read does.
+ *
+ * Usage:
+ *   java kdt.SequenceEncoder [-depth N] [-thresh F] [-seed N]
+ *                            [-split random|variance] [-key N] out.kdts frames...
+ * (frames: .ppm files, directories of them, or @lists, in order)
+ */
+public class SequenceEncoder implements Closeable {
+    public static final int MAGIC = ('K' << 24) | ('D' << 16) | ('T' << 8) | 'S';
+    public static final int VERSION = 1;
+    public static final int KEY = 0, DELTA = 1;
+    static final int COPY = 0, SAME_SPLIT = 1, SPLIT = 2, LEAF = 3;
+    public static final int DEFAULT_KEY_INTERVAL = 300;
+
+    private final ChannelOutput out;
+    private final TreeBuilder builder;
+    private final int width, height;
+    private final int keyInterval;
+
+    private KdTree prevTree;      // tree of the last frame
+    private PixelBuffer prevPixels; // copy of the last frame
+    private long frames, keyFrames;
+
+    /**
+     * Write the sequence header.
+     *
+     * @param builder depth, threshold, seed and split strategy of every frame
+     * @param keyInterval frames from one key frame to the next, 1 or more
+     * @throws IllegalArgumentException if keyInterval is below 1
+     */
+    public SequenceEncoder(ChannelOutput out, TreeBuilder builder, int width, int height,
+                           int keyInterval) throws IOException {
+        if (keyInterval < 1) throw new IllegalArgumentException("key interval must be >= 1");
+        this.out = out;
+        this.builder = builder;
+        this.width = width;
+        this.height = height;
+        this.keyInterval = keyInterval;
+
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeVarint(width);
+        out.writeVarint(height);
+        out.writeVarint(builder.getMaxLevel());
+        out.writeFloat(builder.getHomogeneityThresh());
+        out.writeLong(builder.getSeed());
+    }
+
+    /**
+     * Encode and write the next frame.
+     *
+     * @param frame pixels, same size as the sequence; not kept
+     * @return the frame's tree
+     */
+    public KdTree encode(PixelBuffer frame) throws IOException {
+        if (frame.getWidth() != width || frame.getHeight() != height)
+            throw new IllegalArgumentException("frame size differs from sequence");
+
+        KdTree tree;
+        boolean key = prevTree == null || frames % keyInterval == 0;
+        if (key) {
+            tree = builder.build(frame);
+            keyFrames++;
+        } else {
+            List<int[]> dirty = frame.changedRegions(prevPixels, 64);
+            tree = dirty.isEmpty() ? prevTree : builder.update(prevTree, new RegionStats(frame), dirty);
+        }
+
+        out.writeByte(key ? KEY : DELTA);
+        Writer w = new Writer(key ? null : prevTree, tree);
+        w.node(0, key ? -1 : 0, 0, 0);
+        w.finish();
+
+        prevTree = tree;
+        prevPixels = frame.copy();
+        frames++;
+        return tree;
+    }
+
+    /**
+     * @return frames written so far
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    public long getKeyFrameCount() {
+        return keyFrames;
+    }
+
+    /**
+     * Flush buffered output; the channel stays open.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Pre-order writer of one frame; buffers at most one group of four
+     * nodes.
+     */
+    private class Writer {
+        private final KdTree prev, tree;
+        private final int[] codes = new int[4];
+        private final int[][] values = new int[4][3];
+        private final boolean[] deltas = new boolean[4];
+        private int count;
+
+        Writer(KdTree prev, KdTree tree) {
+            this.prev = prev;
+            this.tree = tree;
+        }
+
+        /**
+         * @param t node of this frame's tree
+         * @param p matched node of the previous tree, -1 if none
+         * @param xmin low edges of the node's region, for split offsets
+         */
+        void node(int t, int p, int xmin, int ymin) throws IOException {
+            if (p >= 0 && tree.sameSubtree(t, prev, p)) {
+                add(COPY, false, 0, 0, 0);
+            } else if (tree.isLeaf(t)) {
+                int c = tree.color(t);
+                if (p >= 0 && prev.isLeaf(p)) {
+                    int q = prev.color(p);
+                    add(LEAF, true, PixelBuffer.red(c) - PixelBuffer.red(q),
+                            PixelBuffer.green(c) - PixelBuffer.green(q), PixelBuffer.blue(c) - PixelBuffer.blue(q));
+                } else {
+                    add(LEAF, false, PixelBuffer.red(c), PixelBuffer.green(c), PixelBuffer.blue(c));
+                }
+            } else {
+                int partition = tree.split(t);
+                boolean same = p >= 0 && !prev.isLeaf(p) && prev.axis(p) == tree.axis(t)
+                        && prev.split(p) == partition;
+                if (same) {
+                    add(SAME_SPLIT, false, 0, 0, 0);
+                } else if (tree.axis(t) == KdTree.X) {
+                    add(SPLIT, false, (partition - xmin) << 1, 0, 0);
+                } else {
+                    add(SPLIT, false, (partition - ymin) << 1 | 1, 0, 0);
+                }
+
+                int pl = same ? prev.left(p) : -1, pr = same ? prev.right(p) : -1;
+                if (tree.axis(t) == KdTree.X) {
+                    node(tree.left(t), pl, xmin, ymin);
+                    node(tree.right(t), pr, partition, ymin);
+                } else {
+                    node(tree.left(t), pl, xmin, ymin);
+                    node(tree.right(t), pr, xmin, partition);
+                }
+            }
+        }
+
+        private void add(int code, boolean delta, int a, int b, int c) throws IOException {
+            codes[count] = code;
+            deltas[count] = delta;
+            values[count][0] = a;
+            values[count][1] = b;
+            values[count][2] = c;
+            if (++count == 4) finish();
+        }
+
+        void finish() throws IOException {
+            if (count == 0) return;
+            int bits = 0;
+            for (int i = 0; i < count; i++) bits |= codes[i] << (2 * i);
+            out.writeByte(bits);
+            for (int i = 0; i < count; i++) {
+                if (codes[i] == SPLIT) {
+                    out.writeVarint(values[i][0]);
+                } else if (codes[i] == LEAF) {
+                    for (int v : values[i]) {
+                        if (deltas[i]) out.writeVarint((v << 1) ^ (v >> 31)); // zigzag
+                        else out.writeByte(v);
+                    }
+                }
+            }
+            count = 0;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int depth = TreeBuilder.DEFAULT_MAX_LEVEL, key = DEFAULT_KEY_INTERVAL;
+        float thresh = TreeBuilder.DEFAULT_HOMOGENEITY_THRESH;
+        long seed = new Random().nextLong();
+        TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-thresh": thresh = Float.parseFloat(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-split": split = TreeBuilder.Split.valueOf(args[++i].toUpperCase()); break;
+                case "-key": key = Integer.parseInt(args[++i]); break;
+                default: usage();
+            }
+        }
+        if (args.length - i < 2) usage();
+
+        List<Path> files = BatchCompress.collect(List.of(args).subList(i + 1, args.length));
+        if (files.isEmpty()) usage();
+        TreeBuilder builder = new TreeBuilder(depth, thresh, seed);
+        builder.setSplit(split);
+
+        long start = System.nanoTime(), raw = 0;
+        SequenceEncoder enc = null;
+        try {
+            for (Path f : files) {
+                PixelBuffer frame = new Image(f.toString()).toPixelBuffer();
+                if (enc == null) {
+                    enc = new SequenceEncoder(new ChannelOutput(FileChannel.open(Paths.get(args[i]),
+                            StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING)), builder,
+                            frame.getWidth(), frame.getHeight(), key);
+                }
+                long before = enc.out.size();
+                KdTree tree = enc.encode(frame);
+                raw += (long) frame.getWidth() * frame.getHeight() * 3;
+                System.out.printf("%-40s %8d bytes %8d nodes%n", f.getFileName(), enc.out.size() - before,
+                        tree.size());
+            }
+        } finally {
+            if (enc != null) enc.close();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d frames (%d key), %d bytes, %.2f s, %.1f frames/s, ratio %.1f%n",
+                enc.getFrameCount(), enc.getKeyFrameCount(), enc.out.size(), secs,
+                enc.getFrameCount() / secs, (double) raw / enc.out.size());
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.SequenceEncoder [-depth N] [-thresh F] [-seed N]"
+                + " [-split random|variance] [-key N] out.kdts frames...");
+        System.exit(2);
+    }
+}
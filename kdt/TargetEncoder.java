@@ -0,0 +1,327 @@
+package kdt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Encodes an image to a target size or quality in a single pass,
+ * instead of rebuilding with hand-tuned thresholds until a file fits.
+ *
+ * The tree is grown greedily from the root. Every leaf is a candidate
+ * with its best split (as in TreeBuilder's VARIANCE mode); candidates
+ * wait in a priority queue ordered by the squared error the split
+ * removes per byte it adds to the container. The best candidate is
+ * split and its children become candidates, until the container would
+ * exceed the byte budget or the image's mean squared error reaches the
+ * target. Sizes are counted exactly as TreeCodec writes them, and the
+ * error exactly as the decoder reproduces it, so the result reports
+ * what the file will hold.
+ *
+ * Leaves get their rounded mean color, not TreeBuilder's truncated
+ * one: it minimizes their error, and in large flat regions truncation
+ * alone can cost more than a split saves.
+ *
+ * Usage:
+ *   java kdt.TargetEncoder [-depth N] (-size BYTES | -psnr DB | -mse F) in.ppm out.kdt
+ */
+public class TargetEncoder {
+    public static final int DEFAULT_MAX_LEVEL = 32;
+
+    private final int MaxLevel;
+
+    // nodes grown so far, by id; the root is 0
+    private int count;
+    private int[] region = new int[4 * 64]; // {xmin,ymin,xmax,ymax} of each node
+    private long[] error = new long[64];    // summed squared error as a leaf
+    private int[] color = new int[64];
+    private float[] variance = new float[64];
+    private byte[] axis = new byte[64];     // LEAF until split
+    private int[] split = new int[64];
+    private int[] left = new int[64];       // right child is left + 1
+    private byte[] level = new byte[64];
+    private byte[] prefer = new byte[64];   // axis taken when both split equally well
+
+    // best split of each leaf, and the max-heap of leaves by priority
+    private byte[] candAxis = new byte[64];
+    private int[] candSplit = new int[64];
+    private double[] priority = new double[64];
+    private int[] heap = new int[64];
+    private int heapSize;
+
+    /**
+     * The tree and what it achieves.
+     */
+    public static class Result {
+        public final KdTree tree;
+        public final TreeCodec.Header header;
+        public final long bytes;  // container size, as TreeCodec.write returns
+        public final double mse;  // mean squared error per channel sample
+
+        Result(KdTree tree, TreeCodec.Header header, long bytes, double mse) {
+            this.tree = tree;
+            this.header = header;
+            this.bytes = bytes;
+            this.mse = mse;
+        }
+
+        /**
+         * @return peak signal-to-noise ratio in dB, infinite if lossless
+         */
+        public double psnr() {
+            return TargetEncoder.psnr(mse);
+        }
+    }
+
+    /**
+     * @param maxLevel maximum depth of the tree
+     */
+    public TargetEncoder(int maxLevel) {
+        if (maxLevel < 0 || maxLevel > Byte.MAX_VALUE) throw new IllegalArgumentException("bad depth " + maxLevel);
+        MaxLevel = maxLevel;
+    }
+
+    public static double psnr(double mse) {
+        return 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    public static double mse(double psnr) {
+        return 255.0 * 255.0 / Math.pow(10, psnr / 10);
+    }
+
+    /**
+     * Best tree whose container fits in maxBytes.
+     */
+    public Result encodeToSize(RegionStats stats, long maxBytes) {
+        return encode(stats, maxBytes, 0);
+    }
+
+    /**
+     * Smallest tree with at most the given mean squared error.
+     */
+    public Result encodeToMse(RegionStats stats, double mse) {
+        return encode(stats, Long.MAX_VALUE, mse);
+    }
+
+    /**
+     * Smallest tree with at least the given PSNR.
+     */
+    public Result encodeToPsnr(RegionStats stats, double psnr) {
+        return encodeToMse(stats, mse(psnr));
+    }
+
+    /**
+     * Grow the tree until either target is met, or no split is left.
+     *
+     * @param stats tables of the image
+     * @param maxBytes container size limit
+     * @param maxMse stop once the mean squared error per channel sample
+     *     is at most this; 0 to go by size alone
+     * @throws IllegalArgumentException if even a single leaf exceeds maxBytes
+     */
+    public synchronized Result encode(RegionStats stats, long maxBytes, double maxMse) {
+        int width = stats.getWidth(), height = stats.getHeight();
+        TreeCodec.Header header = new TreeCodec.Header(width, height, MaxLevel, 0f, 0L);
+        count = heapSize = 0;
+
+        // container size: header, one structure bit per node (rounded up
+        // to groups of eight), a varint per internal node, r,g,b per leaf
+        long headerBytes = TreeCodec.headerSize(header);
+        int nodes = 1, leaves = 1;
+        long offsetBytes = 0;
+        if (headerBytes + 1 + 3 > maxBytes)
+            throw new IllegalArgumentException(maxBytes + " bytes is too small for any tree");
+
+        double samples = 3.0 * width * height;
+        KdTree tree;
+        long sse;
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.BUILD).pixels((long) width * height)) {
+            int root = addNode(stats, new int[]{0, 0, width, height}, 0, KdTree.X);
+            sse = error[root];
+            offer(stats, root);
+
+            while (heapSize > 0 && sse > maxMse * samples) {
+                int n = poll();
+                long offset = candSplit[n] - region[4 * n + candAxis[n]];
+                int varint = ChannelOutput.varintSize(offset << 1 | candAxis[n]);
+                long bytes = headerBytes + (nodes + 2 + 7) / 8 + offsetBytes + varint + 3L * (leaves + 1);
+                // a later candidate may still fit: keep going
+                if (bytes > maxBytes) continue;
+
+                splitNode(stats, n);
+                nodes += 2;
+                leaves++;
+                offsetBytes += varint;
+                sse += error[left[n]] + error[left[n] + 1] - error[n];
+                offer(stats, left[n]);
+                offer(stats, left[n] + 1);
+            }
+
+            tree = new KdTree(width, height, nodes);
+            emit(tree, 0);
+            span.nodes(nodes);
+        }
+        return new Result(tree, header, headerBytes + (nodes + 7) / 8 + offsetBytes + 3L * leaves,
+                sse / samples);
+    }
+
+    private int addNode(RegionStats stats, int[] r, int depth, byte tieAxis) {
+        int n = count++;
+        if (n == error.length) grow();
+        System.arraycopy(r, 0, region, 4 * n, 4);
+        int[] avg = mean(stats, r);
+        color[n] = PixelBuffer.pack(avg[0], avg[1], avg[2]);
+        error[n] = stats.squaredError(r, avg);
+        variance[n] = (float) Image.regionVariance(stats, r);
+        axis[n] = KdTree.LEAF;
+        level[n] = (byte) depth;
+        prefer[n] = tieAxis;
+        return n;
+    }
+
+    /**
+     * Make a leaf a candidate, if splitting it is allowed and helps.
+     */
+    private void offer(RegionStats stats, int n) {
+        if (level[n] >= MaxLevel || error[n] == 0) return;
+
+        int[] r = Arrays.copyOfRange(region, 4 * n, 4 * n + 4);
+        double[] errX = new double[1], errY = new double[1];
+        int px = stats.bestSplit(r, KdTree.X, errX);
+        int py = stats.bestSplit(r, KdTree.Y, errY);
+        if (px < 0 && py < 0) return;
+        byte a = errY[0] < errX[0] || (errY[0] == errX[0] && prefer[n] == KdTree.Y) ? KdTree.Y : KdTree.X;
+        int partition = a == KdTree.Y ? py : px;
+
+        int[] first = r.clone(), second = r.clone();
+        first[2 + a] = partition;
+        second[a] = partition;
+        long gain = error[n] - stats.squaredError(first, mean(stats, first))
+                - stats.squaredError(second, mean(stats, second));
+        if (gain <= 0) return;
+
+        // bytes the split adds: its offset varint, one more leaf's
+        // r,g,b and two structure bits
+        long offset = partition - r[a];
+        double cost = ChannelOutput.varintSize(offset << 1 | a) + 3 + 0.25;
+        candAxis[n] = a;
+        candSplit[n] = partition;
+        priority[n] = gain / cost;
+        push(n);
+    }
+
+    private void splitNode(RegionStats stats, int n) {
+        byte a = candAxis[n];
+        int partition = candSplit[n];
+        int[] first = Arrays.copyOfRange(region, 4 * n, 4 * n + 4), second = first.clone();
+        first[2 + a] = partition;
+        second[a] = partition;
+
+        axis[n] = a;
+        split[n] = partition;
+        byte other = a == KdTree.X ? KdTree.Y : KdTree.X;
+        left[n] = addNode(stats, first, level[n] + 1, other);
+        addNode(stats, second, level[n] + 1, other);
+    }
+
+    // rounded mean {r,g,b} of a non-empty region
+    private static int[] mean(RegionStats stats, int[] r) {
+        long[] sums = stats.sums(r);
+        long n = (long) (r[2] - r[0]) * (r[3] - r[1]);
+        return new int[]{(int) ((sums[0] + n / 2) / n), (int) ((sums[1] + n / 2) / n),
+                (int) ((sums[2] + n / 2) / n)};
+    }
+
+    // pre-order, as KdTree stores it
+    private void emit(KdTree tree, int n) {
+        int t;
+        if (axis[n] == KdTree.LEAF) {
+            t = tree.addLeaf(color[n]);
+        } else {
+            t = tree.addInternal(axis[n], split[n], color[n]);
+            emit(tree, left[n]);
+            tree.setRight(t, tree.size());
+            emit(tree, left[n] + 1);
+        }
+        tree.setVariance(t, variance[n]);
+    }
+
+    private void grow() {
+        int cap = error.length * 2;
+        region = Arrays.copyOf(region, 4 * cap);
+        error = Arrays.copyOf(error, cap);
+        color = Arrays.copyOf(color, cap);
+        variance = Arrays.copyOf(variance, cap);
+        axis = Arrays.copyOf(axis, cap);
+        split = Arrays.copyOf(split, cap);
+        left = Arrays.copyOf(left, cap);
+        level = Arrays.copyOf(level, cap);
+        prefer = Arrays.copyOf(prefer, cap);
+        candAxis = Arrays.copyOf(candAxis, cap);
+        candSplit = Arrays.copyOf(candSplit, cap);
+        priority = Arrays.copyOf(priority, cap);
+        heap = Arrays.copyOf(heap, cap);
+    }
+
+    // binary max-heap of node ids keyed by priority
+
+    private void push(int n) {
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (priority[heap[parent]] >= priority[n]) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = n;
+    }
+
+    private int poll() {
+        int top = heap[0], last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && priority[heap[child + 1]] > priority[heap[child]]) child++;
+            if (priority[last] >= priority[heap[child]]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int depth = DEFAULT_MAX_LEVEL;
+        long size = 0;
+        double mse = 0;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-size": size = Long.parseLong(args[++i]); break;
+                case "-psnr": mse = mse(Double.parseDouble(args[++i])); break;
+                case "-mse": mse = Double.parseDouble(args[++i]); break;
+                default: usage();
+            }
+        }
+        if (args.length - i != 2 || (size > 0) == (mse > 0)) usage();
+
+        Image image = new Image(args[i]);
+        RegionStats stats = image.toRegionStats(false);
+        TargetEncoder enc = new TargetEncoder(depth);
+        Result res = size > 0 ? enc.encodeToSize(stats, size) : enc.encodeToMse(stats, mse);
+
+        Path out = Paths.get(args[i + 1]);
+        long written = TreeCodec.write(out, res.header, res.tree);
+        System.out.printf("%s: %d bytes, %d nodes, MSE %.2f, PSNR %.2f dB%n",
+                out, written, res.tree.size(), res.mse, res.psnr());
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.TargetEncoder [-depth N] (-size BYTES | -psnr DB | -mse F) in.ppm out.kdt");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,331 @@
+package kdt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Compresses images too large to hold in memory, one band of tiles at
+ * a time. The PPM raster is read band by band (never mapped whole),
+ * every tile gets its own independent KD tree, and the trees are
+ * streamed into one container as soon as their band is done. Memory
+ * use is bounded by the budget, not by the image size.
+ *
+ * Container layout (big-endian):
+ *   magic "KDTT", version byte,
+ *   varint width, varint height, varint tileSize, varint maxLevel,
+ *   float homogeneityThresh, long seed,
+ *   then every tile in row-major order as a varint length followed by
+ *   a TreeCodec container of that tile (edge tiles may be smaller).
+ *
+ * Usage:
+ *   java kdt.TiledCompressor [-tile N] [-mem MB] [-depth N] [-thresh F]
+ *                            [-seed N] [-split random|variance] [-threads N]
+ *                            in.ppm out.kdtt
+ *   java kdt.TiledCompressor -decode in.kdtt out.ppm
+ */
+public class TiledCompressor {
+    public static final int MAGIC = ('K' << 24) | ('D' << 16) | ('T' << 8) | 'T';
+    public static final int VERSION = 1;
+    public static final int DEFAULT_TILE_SIZE = 1024;
+    public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+    private static final int MIN_TILE_SIZE = 64;
+    // working bytes per tile pixel: PixelBuffer int, summed-area tables, tree slack
+    private static final int BYTES_PER_TILE_PIXEL = 4 + 48 + 8;
+    private static final int READ_CHUNK = 1 << 20;
+
+    private final int MaxLevel;
+    private final float HomogeneityThresh;
+    private final long seed;
+    private TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private ForkJoinPool pool; // null: tiles are built one after another
+    private long nodeCount; // nodes written by the last compress
+
+    /**
+     * @param maxLevel maximum depth of each tile's tree
+     * @param homogeneityThresh variance below which a region is a leaf
+     * @param seed partition seed; each tile derives its own from it
+     */
+    public TiledCompressor(int maxLevel, float homogeneityThresh, long seed) {
+        MaxLevel = maxLevel;
+        HomogeneityThresh = homogeneityThresh;
+        this.seed = seed;
+    }
+
+    /**
+     * @param tileSize largest tile edge to use; smaller if the budget needs it
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize < MIN_TILE_SIZE) throw new IllegalArgumentException("tile size < " + MIN_TILE_SIZE);
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * @param bytes heap to use for pixels, tables and trees of one band
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * @param split split strategy of the tile trees
+     */
+    public void setSplit(TreeBuilder.Split split) {
+        this.split = split;
+    }
+
+    /**
+     * @param pool pool to build the tiles of a band on, null for serial
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return total tree nodes of all tiles written by the last compress
+     */
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Largest tile edge (halving from tileSize) whose band fits the budget:
+     * one band of pixels plus the tables of the tiles built concurrently.
+     */
+    int tileSizeFor(int width) {
+        int workers = pool == null ? 1 : pool.getParallelism();
+        int t = tileSize;
+        while (t > MIN_TILE_SIZE) {
+            long band = (long) width * t * 4 + READ_CHUNK;
+            long tiles = (long) workers * t * t * BYTES_PER_TILE_PIXEL;
+            if (band + tiles <= memoryBudget) break;
+            t /= 2;
+        }
+        return Math.max(t, MIN_TILE_SIZE);
+    }
+
+    /**
+     * Compress a PPM file of any size.
+     *
+     * @param ppm binary PPM to read
+     * @param out container to write, replaced
+     * @return bytes written
+     */
+    public long compress(Path ppm, Path out) throws IOException {
+        try (FileChannel in = FileChannel.open(ppm, StandardOpenOption.READ);
+             ChannelOutput co = new ChannelOutput(FileChannel.open(out, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            PpmFile.Header h = PpmFile.readHeader(in, ppm.toString());
+            if (!h.isRgb8()) throw new IOException(ppm + ": tiled compression reads 8-bit P6 only");
+            int t = tileSizeFor(h.width);
+
+            co.writeInt(MAGIC);
+            co.writeByte(VERSION);
+            co.writeVarint(h.width);
+            co.writeVarint(h.height);
+            co.writeVarint(t);
+            co.writeVarint(MaxLevel);
+            co.writeFloat(HomogeneityThresh);
+            co.writeLong(seed);
+
+            int across = (h.width + t - 1) / t;
+            long rowBytes = (long) h.width * 3;
+            int rowsPerRead = (int) Math.max(1, Math.min(t, READ_CHUNK / rowBytes));
+            ByteBuffer rows = ByteBuffer.allocateDirect((int) (rowsPerRead * rowBytes));
+            byte[] row = new byte[(int) rowBytes];
+            long tileIndex = 0;
+            nodeCount = 0;
+
+            for (int y0 = 0; y0 < h.height; y0 += t) {
+                int th = Math.min(t, h.height - y0);
+                PixelBuffer[] tiles = new PixelBuffer[across];
+                for (int tx = 0; tx < across; tx++) {
+                    tiles[tx] = new PixelBuffer(Math.min(t, h.width - tx * t), th);
+                }
+
+                // read the band, a chunk of whole rows at a time
+                for (int y = 0; y < th; ) {
+                    int n = Math.min(rowsPerRead, th - y);
+                    rows.clear().limit((int) (n * rowBytes));
+                    long pos = h.rasterOffset + (y0 + y) * rowBytes;
+                    while (rows.hasRemaining()) {
+                        if (in.read(rows, pos + rows.position()) < 0) throw new IOException(ppm + ": truncated raster");
+                    }
+                    rows.flip();
+                    for (int k = 0; k < n; k++, y++) {
+                        rows.get(row);
+                        splitRow(row, y, tiles, t);
+                    }
+                }
+
+                KdTree[] trees = buildBand(tiles, tileIndex);
+                for (int tx = 0; tx < across; tx++) {
+                    writeTile(co, trees[tx], tileSeed(tileIndex + tx));
+                    nodeCount += trees[tx].size();
+                }
+                tileIndex += across;
+            }
+            co.flush();
+            return co.size();
+        }
+    }
+
+    // scatter one raster row into the tiles of the band
+    private static void splitRow(byte[] row, int y, PixelBuffer[] tiles, int t) {
+        for (int tx = 0, c = 0; tx < tiles.length; tx++) {
+            PixelBuffer tile = tiles[tx];
+            int[] pixels = tile.getPixels();
+            for (int p = y * tile.getWidth(), end = p + tile.getWidth(); p < end; p++, c += 3) {
+                pixels[p] = PixelBuffer.pack(row[c] & 0xFF, row[c + 1] & 0xFF, row[c + 2] & 0xFF);
+            }
+        }
+    }
+
+    private KdTree[] buildBand(PixelBuffer[] tiles, long firstIndex) {
+        KdTree[] trees = new KdTree[tiles.length];
+        if (pool == null) {
+            for (int tx = 0; tx < tiles.length; tx++) {
+                trees[tx] = tileBuilder(firstIndex + tx).build(tiles[tx]);
+                tiles[tx] = null; // release pixels as we go
+            }
+            return trees;
+        }
+
+        List<ForkJoinTask<KdTree>> tasks = new ArrayList<>();
+        for (int tx = 0; tx < tiles.length; tx++) {
+            PixelBuffer tile = tiles[tx];
+            TreeBuilder b = tileBuilder(firstIndex + tx);
+            tasks.add(pool.submit(() -> b.build(tile)));
+        }
+        for (int tx = 0; tx < tiles.length; tx++) trees[tx] = tasks.get(tx).join();
+        return trees;
+    }
+
+    private TreeBuilder tileBuilder(long index) {
+        TreeBuilder b = new TreeBuilder(MaxLevel, HomogeneityThresh, tileSeed(index));
+        b.setSplit(split);
+        return b;
+    }
+
+    private long tileSeed(long index) {
+        return TreeBuilder.childSeed(seed, 0) ^ TreeBuilder.childSeed(index, 1);
+    }
+
+    private void writeTile(ChannelOutput co, KdTree tree, long tileSeed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChannelOutput tile = new ChannelOutput(Channels.newChannel(bytes));
+        TreeCodec.write(tile, new TreeCodec.Header(tree.getWidth(), tree.getHeight(),
+                MaxLevel, HomogeneityThresh, tileSeed), tree);
+        tile.flush();
+
+        co.writeVarint(bytes.size());
+        co.write(bytes.toByteArray(), 0, bytes.size());
+    }
+
+    /**
+     * Decode a tiled container to a PPM file, one band at a time. The
+     * header is checked before a band is allocated, and each tile is read
+     * by TreeCodec.read, so a damaged container gets an IOException.
+     *
+     * @param in container written by compress
+     * @param ppm file to write, replaced
+     */
+    public static void decompress(Path in, Path ppm) throws IOException {
+        try (ChannelInput ci = new ChannelInput(FileChannel.open(in, StandardOpenOption.READ));
+             FileChannel out = FileChannel.open(ppm, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (ci.readInt() != MAGIC) throw new IOException(in + ": not a tiled KD tree container");
+            int version = ci.readByte();
+            if (version != VERSION) throw new IOException(in + ": unsupported version " + version);
+
+            int width = ci.readVarint32(), height = ci.readVarint32(), t = ci.readVarint32();
+            ci.readVarint(); // maxLevel
+            ci.readFloat();  // homogeneityThresh
+            ci.readLong();   // seed
+            if (width < 1 || height < 1) throw new IOException(in + ": empty image " + width + "x" + height);
+            if (t < MIN_TILE_SIZE) throw new IOException(in + ": tile size " + t + " < " + MIN_TILE_SIZE);
+            if ((long) width * Math.min(t, height) > TreeCodec.MAX_PIXELS)
+                throw new IOException(in + ": band of " + width + "x" + Math.min(t, height) + " has more than "
+                        + TreeCodec.MAX_PIXELS + " pixels");
+
+            PpmFile.writeHeader(out, width, height);
+            int across = (width - 1) / t + 1;
+
+            for (int y0 = 0, th; y0 < height; y0 += th) {
+                th = Math.min(t, height - y0);
+                PixelBuffer band = new PixelBuffer(width, th);
+
+                for (int tx = 0; tx < across; tx++) {
+                    long length = ci.readVarint();
+                    long start = ci.position();
+                    TreeCodec.Saved saved = TreeCodec.read(ci);
+                    if (ci.position() - start != length) throw new IOException(in + ": corrupt tile " + tx);
+
+                    PixelBuffer tile = TreeDecoder.decode(saved.tree);
+                    int x0 = tx * t, tw = tile.getWidth();
+                    if (tw != Math.min(t, width - x0) || tile.getHeight() != th)
+                        throw new IOException(in + ": tile " + tx + " has the wrong size");
+                    for (int y = 0; y < th; y++) {
+                        System.arraycopy(tile.getPixels(), y * tw, band.getPixels(), y * width + x0, tw);
+                    }
+                }
+                PpmFile.writeRows(out, band, th);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int depth = TreeBuilder.DEFAULT_MAX_LEVEL, tile = DEFAULT_TILE_SIZE, threads = 1;
+        float thresh = TreeBuilder.DEFAULT_HOMOGENEITY_THRESH;
+        long mem = DEFAULT_MEMORY_BUDGET, seed = new Random().nextLong();
+        boolean decode = false;
+        TreeBuilder.Split split = TreeBuilder.Split.VARIANCE;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-decode": decode = true; break;
+                case "-tile": tile = Integer.parseInt(args[++i]); break;
+                case "-mem": mem = Long.parseLong(args[++i]) << 20; break;
+                case "-depth": depth = Integer.parseInt(args[++i]); break;
+                case "-thresh": thresh = Float.parseFloat(args[++i]); break;
+                case "-seed": seed = Long.parseLong(args[++i]); break;
+                case "-split": split = TreeBuilder.Split.valueOf(args[++i].toUpperCase()); break;
+                case "-threads": threads = Integer.parseInt(args[++i]); break;
+                default: usage();
+            }
+        }
+        if (args.length - i != 2) usage();
+
+        if (decode) {
+            decompress(Paths.get(args[i]), Paths.get(args[i + 1]));
+            return;
+        }
+        TiledCompressor tc = new TiledCompressor(depth, thresh, seed);
+        tc.setTileSize(tile);
+        tc.setMemoryBudget(mem);
+        tc.setSplit(split);
+        if (threads > 1) tc.setPool(new ForkJoinPool(threads));
+        long bytes = tc.compress(Paths.get(args[i]), Paths.get(args[i + 1]));
+        System.out.println(args[i + 1] + ": " + bytes + " bytes");
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.TiledCompressor [-tile N] [-mem MB] [-depth N] [-thresh F]"
+                + " [-seed N] [-split random|variance] [-threads N] in.ppm out.kdtt");
+        System.err.println("       java kdt.TiledCompressor -decode in.kdtt out.ppm");
+        System.exit(2);
+    }
+}
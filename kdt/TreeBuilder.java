@@ -0,0 +1,527 @@
+package kdt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds the KD tree representation of an image.
+ * Recursively partitions the image into smaller and smaller regions
+ * and tests its pixel colors until they are deemed to be homogeneous (or
+ * pass a homogeneity criteria, or the tree reaches a maximum height).
+ *
+ * Holds the per-build state (depth limit, threshold, split strategy,
+ * partition seed, optional fork/join pool), so builders can be used
+ * concurrently.
+ */
+public class TreeBuilder {
+    public static final int DEFAULT_MAX_LEVEL = 12;
+    public static final float DEFAULT_HOMOGENEITY_THRESH = 2000.0f;
+    // regions of at least this many pixels have their subtrees forked
+    public static final int DEFAULT_PARALLEL_CUTOFF = 128 * 128;
+    // weight of chroma variance under Metric.YCBCR; luma has 3
+    public static final double CHROMA_WEIGHT = 1.0;
+    // under Metric.YCBCR, by default the deepest levels test luma alone
+    public static final int DEFAULT_LUMA_ONLY_LEVELS = 4;
+
+    /**
+     * Where regions are split.
+     */
+    public enum Split {
+        /** random position between 1/3 and 2/3, axes alternating X, Y, ... */
+        RANDOM,
+        /** axis and position that minimize the children's summed squared error */
+        VARIANCE
+    }
+
+    /**
+     * What the homogeneity threshold is tested against.
+     */
+    public enum Metric {
+        /** summed variance of R, G and B */
+        RGB,
+        /**
+         * variance in YCbCr, luma weighted 3 and chroma CHROMA_WEIGHT
+         * (RegionStats.lumaChromaVariance); from the chroma depth down,
+         * luma alone, so color noise stops splitting regions sooner
+         */
+        YCBCR
+    }
+
+    private final int MaxLevel;
+    private final float HomogeneityThresh;
+    private final long seed; // root of the per-node partition seeds
+    private Split split = Split.VARIANCE;
+    private Metric metric = Metric.RGB;
+    private int chromaDepth = Integer.MAX_VALUE; // levels at which chroma counts, YCBCR only
+    private ForkJoinPool pool; // null for a serial build
+    private int parallelCutoff = DEFAULT_PARALLEL_CUTOFF;
+
+    public TreeBuilder() {
+        this(DEFAULT_MAX_LEVEL, DEFAULT_HOMOGENEITY_THRESH, new Random().nextLong());
+    }
+
+    /**
+     * @param maxLevel maximum depth of the tree
+     * @param homogeneityThresh variance below which a region is a leaf
+     * @param seed partition seed; equal seeds give equal trees
+     */
+    public TreeBuilder(int maxLevel, float homogeneityThresh, long seed) {
+        MaxLevel = maxLevel;
+        HomogeneityThresh = homogeneityThresh;
+        this.seed = seed;
+    }
+
+    public int getMaxLevel() {
+        return MaxLevel;
+    }
+
+    public float getHomogeneityThresh() {
+        return HomogeneityThresh;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Split getSplit() {
+        return split;
+    }
+
+    /**
+     * @param split split strategy; RANDOM reproduces the original
+     *     partitioning (and its trees, for a given seed)
+     */
+    public void setSplit(Split split) {
+        this.split = split;
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public int getChromaDepth() {
+        return chromaDepth;
+    }
+
+    /**
+     * Set the metric; under YCBCR the last DEFAULT_LUMA_ONLY_LEVELS
+     * levels above MaxLevel test luma alone.
+     */
+    public void setMetric(Metric metric) {
+        setMetric(metric, Math.max(0, MaxLevel - DEFAULT_LUMA_ONLY_LEVELS));
+    }
+
+    /**
+     * @param metric homogeneity metric; YCBCR needs tables built with
+     *     lumaChroma (build(PixelBuffer) takes care of that)
+     * @param chromaDepth YCBCR: regions at this level or deeper are
+     *     tested on luma alone; Integer.MAX_VALUE never
+     */
+    public void setMetric(Metric metric, int chromaDepth) {
+        this.metric = metric;
+        this.chromaDepth = chromaDepth;
+    }
+
+    /**
+     * Build in parallel: sibling subtrees of regions with at least
+     * cutoff pixels are built as separate fork/join tasks. The tree is
+     * the same as the serial build for the same seed.
+     *
+     * @param pool pool to run on, null to build serially
+     * @param cutoff minimum region size (pixels) to fork at
+     */
+    public void setParallel(ForkJoinPool pool, int cutoff) {
+        this.pool = pool;
+        this.parallelCutoff = cutoff;
+    }
+
+    /**
+     * Build the tree of a whole image. Leaves carry the average color
+     * of their region; nothing is painted (see TreeRenderer).
+     *
+     * @param pb pixels to compress
+     * @return the kdtree
+     */
+    public KdTree build(PixelBuffer pb) {
+        return build(new RegionStats(pb, metric == Metric.YCBCR));
+    }
+
+    /**
+     * Build from precomputed tables; the pixels themselves are not needed.
+     *
+     * @param stats tables of the image
+     * @return the kdtree
+     */
+    public KdTree build(RegionStats stats) {
+        checkTables(stats);
+        KdTree tree;
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.BUILD)
+                .pixels((long) stats.getWidth() * stats.getHeight())) {
+            if (pool == null) {
+                tree = new KdTree(stats.getWidth(), stats.getHeight());
+                buildImageTree(tree, 0, 0, stats.getWidth(), stats.getHeight(), 0, stats, false, seed);
+            } else {
+                tree = pool.invoke(new BuildTask(stats.getWidth(), stats.getHeight(),
+                        0, 0, stats.getWidth(), stats.getHeight(), 0, stats, false, seed));
+            }
+            tree.trim();
+            span.nodes(tree.size());
+        }
+        return tree;
+    }
+
+    /**
+     * Append the subtree of one region to tree, in pre-order.
+     *
+     * Iterative: the left child of a split is built next, and its right
+     * sibling waits on an explicit stack. Regions are plain coordinates,
+     * so nothing is allocated per node beyond the tree's own storage,
+     * and the depth of the tree is not limited by the thread's stack.
+     *
+     * @param level level of tree
+     * @param dim_flag false to partition on X, true on Y
+     */
+    private void buildImageTree(KdTree tree, int xmin, int ymin, int xmax, int ymax, int level,
+                                RegionStats stats, boolean dim_flag, long nodeSeed) {
+        Pending pending = new Pending();
+        double[] err = new double[1];
+        while (true) {
+            long start = Metrics.nodeStart();
+            int avg = stats.avgColor(xmin, ymin, xmax, ymax);
+
+            // check the region's homogeneity; the variance is kept so the
+            // tree can be pruned to other thresholds later
+            double variance = variance(stats, xmin, ymin, xmax, ymax, level);
+            int size = Image.regionSize(xmin, ymin, xmax, ymax);
+            boolean homogeneous = size < 4 || variance < HomogeneityThresh;
+
+            if ((level < MaxLevel) && !homogeneous) {
+                // partition the region on one of two dimensions
+                // in RANDOM mode the dimension alternates between X and Y,
+                // controlled by a boolean flag; in VARIANCE mode the flag
+                // only breaks ties between the axes
+                int partition;
+                if (split == Split.VARIANCE) {
+                    int px = stats.bestSplit(xmin, ymin, xmax, ymax, KdTree.X, err);
+                    double errX = err[0];
+                    int py = stats.bestSplit(xmin, ymin, xmax, ymax, KdTree.Y, err);
+                    dim_flag = err[0] < errX || (err[0] == errX && dim_flag);
+                    partition = dim_flag ? py : px;
+                } else {
+                    // locate between 1/3 and 2/3 of the partition interval
+                    partition = dim_flag ? genRandom(nodeSeed, ymin, ymax) : genRandom(nodeSeed, xmin, xmax);
+                }
+
+                int node = tree.addInternal(dim_flag ? KdTree.Y : KdTree.X, partition, avg);
+                tree.setVariance(node, (float) variance);
+                Metrics.node(level, false, start);
+
+                // the first subregion ends, and the second starts, at the
+                // partition: {xmin, ymin, endX, endY}, {startX, startY, xmax, ymax}
+                int endX = dim_flag ? xmax : partition, endY = dim_flag ? partition : ymax;
+                int startX = dim_flag ? xmin : partition, startY = dim_flag ? partition : ymin;
+                long leftSeed = childSeed(nodeSeed, 0), rightSeed = childSeed(nodeSeed, 1);
+                if (pool == null || size < parallelCutoff) {
+                    pending.push(startX, startY, xmax, ymax, level + 1, !dim_flag, rightSeed, node);
+                    xmax = endX;
+                    ymax = endY;
+                    level++;
+                    dim_flag = !dim_flag;
+                    nodeSeed = leftSeed;
+                    continue;
+                }
+
+                // the two subregions are disjoint, so large ones are built
+                // concurrently, each into its own tree, and appended in order
+                BuildTask left = new BuildTask(tree.getWidth(), tree.getHeight(), xmin, ymin, endX, endY,
+                        level + 1, stats, !dim_flag, leftSeed);
+                left.fork();
+                KdTree rightTree = new BuildTask(tree.getWidth(), tree.getHeight(), startX, startY, xmax, ymax,
+                        level + 1, stats, !dim_flag, rightSeed).compute();
+                tree.append(left.join());
+                tree.setRight(node, tree.size());
+                tree.append(rightTree);
+            } else {
+                // BASE: this is a homogeneous region, so it keeps its average color
+                tree.setVariance(tree.addLeaf(avg), (float) variance);
+                Metrics.node(level, true, start);
+            }
+
+            // continue with the right child of the deepest open split
+            if (pending.size == 0) return;
+            int i = --pending.size * Pending.INTS;
+            xmin = pending.ints[i];
+            ymin = pending.ints[i + 1];
+            xmax = pending.ints[i + 2];
+            ymax = pending.ints[i + 3];
+            level = pending.ints[i + 4];
+            tree.setRight(pending.ints[i + 5], tree.size());
+            dim_flag = pending.flags[pending.size];
+            nodeSeed = pending.seeds[pending.size];
+        }
+    }
+
+    // the variance tested against the threshold, per the metric
+    private double variance(RegionStats stats, int xmin, int ymin, int xmax, int ymax, int level) {
+        if (metric == Metric.RGB) return stats.variance(xmin, ymin, xmax, ymax);
+        return stats.lumaChromaVariance(xmin, ymin, xmax, ymax, level < chromaDepth ? CHROMA_WEIGHT : 0);
+    }
+
+    private void checkTables(RegionStats stats) {
+        if (metric == Metric.YCBCR && !stats.hasLumaChroma())
+            throw new IllegalArgumentException("YCBCR metric needs tables built with lumaChroma");
+    }
+
+    /**
+     * Stack of right children still to build, as parallel arrays.
+     */
+    private static class Pending {
+        static final int INTS = 6; // xmin, ymin, xmax, ymax, level, parent node
+
+        int[] ints = new int[32 * INTS];
+        boolean[] flags = new boolean[32];
+        long[] seeds = new long[32];
+        int size;
+
+        void push(int xmin, int ymin, int xmax, int ymax, int level, boolean dim_flag, long nodeSeed,
+                  int parent) {
+            if (size == seeds.length) {
+                ints = Arrays.copyOf(ints, 2 * size * INTS);
+                flags = Arrays.copyOf(flags, 2 * size);
+                seeds = Arrays.copyOf(seeds, 2 * size);
+            }
+            int i = size * INTS;
+            ints[i] = xmin;
+            ints[i + 1] = ymin;
+            ints[i + 2] = xmax;
+            ints[i + 3] = ymax;
+            ints[i + 4] = level;
+            ints[i + 5] = parent;
+            flags[size] = dim_flag;
+            seeds[size++] = nodeSeed;
+        }
+    }
+
+    /**
+     * One subtree of a parallel build, built into its own tree.
+     */
+    @SuppressWarnings("serial") // never serialized
+    private class BuildTask extends RecursiveTask<KdTree> {
+        private final int width, height;
+        private final int xmin, ymin, xmax, ymax;
+        private final int level;
+        private final RegionStats stats;
+        private final boolean dim_flag;
+        private final long nodeSeed;
+
+        BuildTask(int width, int height, int xmin, int ymin, int xmax, int ymax, int level,
+                  RegionStats stats, boolean dim_flag, long nodeSeed) {
+            this.width = width;
+            this.height = height;
+            this.xmin = xmin;
+            this.ymin = ymin;
+            this.xmax = xmax;
+            this.ymax = ymax;
+            this.level = level;
+            this.stats = stats;
+            this.dim_flag = dim_flag;
+            this.nodeSeed = nodeSeed;
+        }
+
+        @Override
+        protected KdTree compute() {
+            KdTree tree = new KdTree(width, height);
+            buildImageTree(tree, xmin, ymin, xmax, ymax, level, stats, dim_flag, nodeSeed);
+            return tree;
+        }
+    }
+
+    /**
+     * Rebuild a tree for new pixels, reusing the partitions of an old
+     * tree instead of drawing new ones. Regions that are now homogeneous
+     * (or at MaxLevel) become leaves; leaf colors come from the new
+     * pixels.
+     *
+     * @param oldTree tree whose partitions to reuse
+     * @param pb pixels, same size as oldTree's image
+     * @return the new kdtree
+     */
+    public KdTree replay(KdTree oldTree, PixelBuffer pb) {
+        RegionStats stats = new RegionStats(pb, metric == Metric.YCBCR);
+        KdTree tree = new KdTree(pb.getWidth(), pb.getHeight(), oldTree.size());
+        replay(oldTree, 0, tree, new int[]{0, 0, pb.getWidth(), pb.getHeight()}, 0, stats);
+        tree.trim();
+        return tree;
+    }
+
+    private void replay(KdTree oldTree, int oldNode, KdTree tree, int[] region, int level,
+                        RegionStats stats) {
+        int avg = Image.avgColor(stats, region);
+        boolean homogeneous = Image.regionSize(region) < 4
+                || variance(stats, region[0], region[1], region[2], region[3], level) < HomogeneityThresh;
+
+        if ((level < MaxLevel) && !homogeneous && !oldTree.isLeaf(oldNode)) {
+            int partition = oldTree.split(oldNode);
+            int[] first, second;
+            if (oldTree.axis(oldNode) == KdTree.X) {
+                first = new int[]{region[0], region[1], partition, region[3]};
+                second = new int[]{partition, region[1], region[2], region[3]};
+            } else {
+                first = new int[]{region[0], region[1], region[2], partition};
+                second = new int[]{region[0], partition, region[2], region[3]};
+            }
+            int node = tree.addInternal(oldTree.axis(oldNode), partition, avg);
+            replay(oldTree, oldTree.left(oldNode), tree, first, level + 1, stats);
+            tree.setRight(node, tree.size());
+            replay(oldTree, oldTree.right(oldNode), tree, second, level + 1, stats);
+            return;
+        }
+        tree.addLeaf(avg);
+    }
+
+    /**
+     * Update a tree after some pixels changed, doing work only where
+     * they did. Subtrees whose regions miss every dirty rectangle are
+     * copied verbatim. An old leaf that is touched, or a node entirely
+     * inside one rectangle, is rebuilt from the new pixels (tables are
+     * taken for its region alone). Any other touched node keeps its
+     * partition, its children are updated the same way, and its color
+     * is merged from theirs. Such a node is not re-tested for
+     * homogeneity, so an edit that flattens a large region can leave
+     * a few more nodes than a full build would.
+     *
+     * @param oldTree tree of the image before the edit
+     * @param pb pixels after the edit, same size
+     * @param dirty {xmin,ymin,xmax,ymax} rectangles covering every
+     *     changed pixel (see PixelBuffer.changedRegions)
+     * @return the updated tree
+     */
+    public KdTree update(KdTree oldTree, PixelBuffer pb, List<int[]> dirty) {
+        KdTree tree = new KdTree(pb.getWidth(), pb.getHeight(), oldTree.size());
+        update(oldTree, 0, tree, new int[]{0, 0, pb.getWidth(), pb.getHeight()}, 0, pb, null, dirty,
+                false, seed);
+        tree.trim();
+        return tree;
+    }
+
+    /**
+     * Update a tree given tables of the whole new image. Works as
+     * update(oldTree, pb, dirty), except that a touched node which keeps
+     * its partition is re-tested first: if it is now homogeneous it is
+     * merged into a leaf, and its color and variance are exact.
+     *
+     * @param stats tables of the whole image after the edit
+     */
+    public KdTree update(KdTree oldTree, RegionStats stats, List<int[]> dirty) {
+        checkTables(stats);
+        KdTree tree = new KdTree(stats.getWidth(), stats.getHeight(), oldTree.size());
+        update(oldTree, 0, tree, new int[]{0, 0, stats.getWidth(), stats.getHeight()}, 0, null, stats,
+                dirty, false, seed);
+        tree.trim();
+        return tree;
+    }
+
+    /**
+     * Update a tree, finding the changed pixels by comparing the old
+     * and new images in 64 x 64 blocks.
+     */
+    public KdTree update(KdTree oldTree, PixelBuffer oldPixels, PixelBuffer pb) {
+        return update(oldTree, pb, pb.changedRegions(oldPixels, 64));
+    }
+
+    /**
+     * @param pb new pixels, when stats is null
+     * @param stats tables of the whole new image, or null to take tables
+     *     of rebuilt regions only and keep touched partitions untested
+     */
+    private void update(KdTree oldTree, int oldNode, KdTree tree, int[] region, int level,
+                        PixelBuffer pb, RegionStats stats, List<int[]> dirty, boolean dim_flag,
+                        long nodeSeed) {
+        List<int[]> touching = new ArrayList<>();
+        boolean covered = false;
+        for (int[] d : dirty) {
+            if (d[0] < region[2] && region[0] < d[2] && d[1] < region[3] && region[1] < d[3]) {
+                touching.add(d);
+                covered |= d[0] <= region[0] && d[1] <= region[1] && region[2] <= d[2] && region[3] <= d[3];
+            }
+        }
+
+        if (touching.isEmpty()) {
+            tree.append(oldTree, oldNode, oldTree.subtreeEnd(oldNode));
+            return;
+        }
+        if (covered || oldTree.isLeaf(oldNode)) {
+            buildImageTree(tree, region[0], region[1], region[2], region[3], level,
+                    stats != null ? stats : new RegionStats(pb, region, metric == Metric.YCBCR), dim_flag, nodeSeed);
+            return;
+        }
+
+        double variance = 0;
+        if (stats != null) {
+            variance = variance(stats, region[0], region[1], region[2], region[3], level);
+            if (level >= MaxLevel || variance < HomogeneityThresh) {
+                // the edit made the region homogeneous: merge
+                tree.setVariance(tree.addLeaf(Image.avgColor(stats, region)), (float) variance);
+                return;
+            }
+        }
+
+        int partition = oldTree.split(oldNode);
+        int[] first, second;
+        if (oldTree.axis(oldNode) == KdTree.X) {
+            first = new int[]{region[0], region[1], partition, region[3]};
+            second = new int[]{partition, region[1], region[2], region[3]};
+        } else {
+            first = new int[]{region[0], region[1], region[2], partition};
+            second = new int[]{region[0], partition, region[2], region[3]};
+        }
+        boolean child_flag = oldTree.axis(oldNode) == KdTree.X;
+        int node = tree.addInternal(oldTree.axis(oldNode), partition, 0);
+        if (stats != null) {
+            tree.setVariance(node, (float) variance);
+        } else if (oldTree.hasVariance()) {
+            tree.setVariance(node, oldTree.variance(oldNode)); // not re-tested
+        }
+        update(oldTree, oldTree.left(oldNode), tree, first, level + 1, pb, stats, touching,
+                child_flag, childSeed(nodeSeed, 0));
+        tree.setRight(node, tree.size());
+        update(oldTree, oldTree.right(oldNode), tree, second, level + 1, pb, stats, touching,
+                child_flag, childSeed(nodeSeed, 1));
+        tree.setColor(node, stats != null ? Image.avgColor(stats, region)
+                : KdTree.mergeColor(tree.color(tree.left(node)), tree.color(tree.right(node)),
+                        Image.regionSize(first), Image.regionSize(region)));
+    }
+
+    /**
+     *     generate an integer between 1/3 and 2/3 of the min-max range
+     *     The draw depends only on the node's seed, not on the order in
+     *     which nodes are built.
+     */
+    public static int genRandom(long nodeSeed, double min, double max) {
+        if (min >= max) {throw new IllegalArgumentException("max must be > min");}
+
+        double onethird = ((max - min) / 3.0) + min;
+        double twothird = (((max - min) * 2.0) / 3.0) + min;
+        double u = (mix(nodeSeed) >>> 11) * 0x1.0p-53; // uniform in [0,1)
+
+        return (int) (onethird + u * (twothird - onethird));
+    }
+
+    /**
+     * Seed of the left (side 0) or right (side 1) child of a node.
+     */
+    static long childSeed(long nodeSeed, int side) {
+        return mix(nodeSeed + (side + 1) * 0x9E3779B97F4A7C15L);
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,213 @@
+package kdt;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of encoded results: containers and decoded
+ * rasters, as bytes, keyed by a hash of their input plus the
+ * parameters that produced them (see key). Bounded by total bytes;
+ * the least recently used entries are evicted first.
+ *
+ * Entries are kept on the heap, or off-heap in MemorySegments (see
+ * SegmentSlot), so a large cache adds nothing for the collector to
+ * trace or copy. Off-heap storage uses java.lang.foreign, a preview
+ * API on JDK 21: run with --enable-preview there. SegmentSlot is
+ * loaded by name, so without it (or on older JDKs) the heap cache
+ * still works.
+ *
+ * Thread safe. Counts hits, misses and evictions.
+ */
+public class TreeCache {
+
+    /**
+     * Storage of one entry's bytes.
+     */
+    interface Slot {
+        byte[] read();
+
+        long size();
+
+        /** release the storage; called once, after the last read */
+        void free();
+    }
+
+    private static class HeapSlot implements Slot {
+        private final byte[] data;
+
+        HeapSlot(byte[] data) {
+            this.data = data.clone();
+        }
+
+        @Override
+        public byte[] read() {
+            return data.clone();
+        }
+
+        @Override
+        public long size() {
+            return data.length;
+        }
+
+        @Override
+        public void free() {
+        }
+    }
+
+    private static final Constructor<? extends Slot> SEGMENT_SLOT = loadSegmentSlot();
+
+    private final long maxBytes;
+    private final boolean offHeap;
+    private final LinkedHashMap<String, Slot> entries = new LinkedHashMap<>(64, 0.75f, true); // LRU order
+    private long bytes;
+    private long hits, misses, evictions;
+
+    /**
+     * @param maxBytes total size of the entries kept
+     * @param offHeap keep entries in off-heap memory segments
+     * @throws UnsupportedOperationException if offHeap and this JVM
+     *     has no foreign memory API
+     */
+    public TreeCache(long maxBytes, boolean offHeap) {
+        if (offHeap && SEGMENT_SLOT == null)
+            throw new UnsupportedOperationException("off-heap cache needs JDK 21+ (with --enable-preview on 21)");
+        this.maxBytes = maxBytes;
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * @return whether off-heap entries are available in this JVM
+     */
+    public static boolean offHeapAvailable() {
+        return SEGMENT_SLOT != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Constructor<? extends Slot> loadSegmentSlot() {
+        try {
+            // loaded by name: this class must not link against java.lang.foreign
+            Constructor<? extends Slot> c = (Constructor<? extends Slot>)
+                    Class.forName("kdt.SegmentSlot").getDeclaredConstructor(byte[].class);
+            c.newInstance((Object) new byte[1]).free();
+            return c;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private Slot store(byte[] value) {
+        if (!offHeap) return new HeapSlot(value);
+        try {
+            return SEGMENT_SLOT.newInstance((Object) value);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * SHA-256 of input, in hex. A key is the hash of what a result was
+     * made from (a raster, a container, ...) followed by everything
+     * else it depends on, e.g. "kdt:" + hash + ":" + parameters.
+     *
+     * @param input bytes from position to limit; the position is kept
+     */
+    public static String hash(ByteBuffer input) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK has SHA-256
+        }
+        md.update(input.duplicate());
+        StringBuilder sb = new StringBuilder(64);
+        for (byte b : md.digest()) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * @return a copy of the cached bytes, null on a miss
+     */
+    public synchronized byte[] get(String key) {
+        Slot s = entries.get(key);
+        if (s == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        // read under the lock: an eviction frees the slot
+        return s.read();
+    }
+
+    /**
+     * Cache a copy of value, evicting least recently used entries to
+     * make room. Values larger than the whole cache are not kept.
+     */
+    public synchronized void put(String key, byte[] value) {
+        if (value.length > maxBytes) return;
+        Slot old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size();
+            old.free();
+        }
+        Slot s = store(value);
+        entries.put(key, s);
+        bytes += s.size();
+
+        Iterator<Map.Entry<String, Slot>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Slot eldest = it.next().getValue();
+            it.remove();
+            bytes -= eldest.size();
+            eldest.free();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop every entry (counters are kept).
+     */
+    public synchronized void clear() {
+        for (Slot s : entries.values()) s.free();
+        entries.clear();
+        bytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,395 @@
+package kdt;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Compact binary container for image KD trees.
+ *
+ * Layout (big-endian):
+ *   magic "KDTI", version byte,
+ *   varint width, varint height, varint maxLevel,
+ *   float homogeneityThresh, long seed,
+ *   then the nodes in pre-order, in groups of eight: one structure
+ *   byte (bit i set = node i of the group is internal, LSB first)
+ *   followed by each node of the group in turn: an internal node's
+ *   varint (partition offset << 1 | axis), or a leaf's r,g,b bytes.
+ *   An offset is relative to the low edge of the node's region on its
+ *   split axis; axis is 0 for X, 1 for Y.
+ *
+ * That is version 3, written with Coding.RAW. Version 4 (Coding.ENTROPY)
+ * has the same header followed by an entropy-coded body instead of the
+ * groups; see EntropyCodec. It is typically 1.5 to 2 times smaller, more
+ * after Palette.quantize, though a tree of a few hundred nodes can come
+ * out a little larger than raw.
+ *
+ * Older versions are still read: version 2 has no axis bit (axes
+ * alternate X, Y, ... from the root) and version 1 also lacks the leaf
+ * colors.
+ *
+ * Both directions are a single streaming pass over the tree, and a
+ * version 2 file holds everything needed to rebuild the image. Internal
+ * node colors are not stored; read() derives them from the leaves.
+ *
+ * read() takes nothing on trust, as containers may come from anywhere
+ * (see CompressionServer). The image must have at most maxPixels
+ * pixels. Every partition must fall inside its region with both
+ * children non-empty, except that the empty left child the original
+ * random split (TreeBuilder.Split.RANDOM) leaves on regions one or two
+ * pixels across is accepted; an empty region must be a leaf. A tree
+ * may have at most 4 nodes per pixel: with non-empty children it has
+ * fewer than 2. Trees are read without recursion, so no depth of tree
+ * can exhaust the thread's stack. A container that breaks these rules
+ * gets an IOException.
+ */
+public class TreeCodec {
+    public static final int MAGIC = ('K' << 24) | ('D' << 16) | ('T' << 8) | 'I';
+    public static final int VERSION = 4;     // newest version read and written
+    public static final int RAW_VERSION = 3; // what Coding.RAW writes
+    // largest image read() accepts unless told otherwise: what a PixelBuffer holds
+    public static final long MAX_PIXELS = Integer.MAX_VALUE - 8;
+
+    /**
+     * How the nodes are stored.
+     */
+    public enum Coding {
+        /** version 3: raw bytes, sizes as TargetEncoder predicts them */
+        RAW,
+        /** version 4: range-coded, see EntropyCodec */
+        ENTROPY
+    }
+
+    /**
+     * Image dimensions and build parameters stored with a tree.
+     */
+    public static class Header {
+        public final int width, height, maxLevel;
+        public final float homogeneityThresh;
+        public final long seed;
+
+        public Header(int width, int height, int maxLevel, float homogeneityThresh, long seed) {
+            this.width = width;
+            this.height = height;
+            this.maxLevel = maxLevel;
+            this.homogeneityThresh = homogeneityThresh;
+            this.seed = seed;
+        }
+    }
+
+    /**
+     * A tree as read back from a container.
+     */
+    public static class Saved {
+        public final int version;
+        public final Header header;
+        public final KdTree tree;
+
+        Saved(int version, Header header, KdTree tree) {
+            this.version = version;
+            this.header = header;
+            this.tree = tree;
+        }
+
+        /**
+         * @return true if leaves carry their colors (version 2 on)
+         */
+        public boolean hasColors() {
+            return version >= 2;
+        }
+    }
+
+    /**
+     * Write a tree to a file (Coding.RAW), replacing it.
+     *
+     * @return bytes written
+     */
+    public static long write(Path file, Header header, KdTree tree) throws IOException {
+        return write(file, header, tree, Coding.RAW);
+    }
+
+    /**
+     * Write a tree to a file, replacing it.
+     *
+     * @return bytes written
+     */
+    public static long write(Path file, Header header, KdTree tree, Coding coding) throws IOException {
+        try (ChannelOutput out = new ChannelOutput(FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            write(out, header, tree, coding);
+            out.flush();
+            return out.size();
+        }
+    }
+
+    public static void write(ChannelOutput out, Header header, KdTree tree) throws IOException {
+        write(out, header, tree, Coding.RAW);
+    }
+
+    public static void write(ChannelOutput out, Header header, KdTree tree, Coding coding) throws IOException {
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.ENCODE)) {
+            span.nodes(tree.size());
+            writeTree(out, header, tree, coding);
+        }
+    }
+
+    private static void writeTree(ChannelOutput out, Header header, KdTree tree, Coding coding)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(coding == Coding.ENTROPY ? VERSION : RAW_VERSION);
+        out.writeVarint(header.width);
+        out.writeVarint(header.height);
+        out.writeVarint(header.maxLevel);
+        out.writeFloat(header.homogeneityThresh);
+        out.writeLong(header.seed);
+
+        if (coding == Coding.ENTROPY) {
+            EntropyCodec.write(out, tree);
+            return;
+        }
+        Writer w = new Writer(out, tree);
+        w.node(0, 0, 0, header.width, header.height);
+        w.finish();
+    }
+
+    /**
+     * @return bytes write() takes before the first node
+     */
+    public static int headerSize(Header header) {
+        return 4 + 1 + ChannelOutput.varintSize(header.width) + ChannelOutput.varintSize(header.height)
+                + ChannelOutput.varintSize(header.maxLevel) + 4 + 8;
+    }
+
+    public static Saved read(Path file) throws IOException {
+        return read(file, MAX_PIXELS);
+    }
+
+    /**
+     * @param maxPixels largest width * height to accept
+     */
+    public static Saved read(Path file, long maxPixels) throws IOException {
+        try (ChannelInput in = new ChannelInput(FileChannel.open(file, StandardOpenOption.READ))) {
+            return read(in, maxPixels);
+        }
+    }
+
+    public static Saved read(ChannelInput in) throws IOException {
+        return read(in, MAX_PIXELS);
+    }
+
+    /**
+     * @param maxPixels largest width * height to accept; checked before
+     *     anything the size depends on is allocated
+     * @throws IOException if the container is malformed, or its image
+     *     larger than maxPixels
+     */
+    public static Saved read(ChannelInput in, long maxPixels) throws IOException {
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.DECODE)) {
+            Saved saved = readTree(in, maxPixels);
+            span.nodes(saved.tree.size());
+            return saved;
+        }
+    }
+
+    private static Saved readTree(ChannelInput in, long maxPixels) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("not a KD tree container");
+        int version = in.readByte();
+        if (version < 1 || version > VERSION) throw new IOException("unsupported container version " + version);
+
+        Header header = readHeader(in, maxPixels);
+        KdTree tree = new KdTree(header.width, header.height);
+        if (version == 4) {
+            EntropyCodec.read(in, tree, maxNodes(header));
+        } else {
+            new Reader(in, tree, version).run(maxNodes(header));
+        }
+        tree.trim();
+        return new Saved(version, header, tree);
+    }
+
+    /**
+     * @return the partition at offset from the region's low edge on the
+     *     axis, if read() accepts it
+     * @throws IOException if not
+     */
+    static int partition(int xmin, int ymin, int xmax, int ymax, int axis, long offset) throws IOException {
+        int lo = axis == KdTree.X ? xmin : ymin, hi = axis == KdTree.X ? xmax : ymax;
+        if (xmin == xmax || ymin == ymax) throw new IOException("split of an empty region");
+        // the random split puts an empty left child on regions 1 or 2 across
+        if (offset < 0 || offset >= hi - lo || (offset == 0 && hi - lo > 2))
+            throw new IOException("corrupt partition " + (lo + offset) + " in [" + lo + ", " + hi + ")");
+        return lo + (int) offset;
+    }
+
+    /**
+     * @return most nodes read() accepts in a tree of the image
+     */
+    static int maxNodes(Header header) {
+        return (int) Math.min(4L * header.width * header.height, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * @throws IOException if the tree has grown past maxNodes
+     */
+    static void checkSize(KdTree tree, int maxNodes) throws IOException {
+        if (tree.size() > maxNodes) throw new IOException("more than " + maxNodes + " nodes");
+    }
+
+    /**
+     * Read a header as write() lays it out after the version byte (as
+     * do ProgressiveCodec and SequenceEncoder), and check the size.
+     *
+     * @param maxPixels largest width * height to accept
+     * @throws IOException if the image is empty or has more pixels than
+     *     maxPixels or a PixelBuffer can hold
+     */
+    static Header readHeader(ChannelInput in, long maxPixels) throws IOException {
+        Header header = new Header(in.readVarint32(), in.readVarint32(), in.readVarint32(),
+                in.readFloat(), in.readLong());
+        long pixels = (long) header.width * header.height;
+        if (pixels == 0) throw new IOException("empty image " + header.width + "x" + header.height);
+        if (pixels > Math.min(maxPixels, MAX_PIXELS))
+            throw new IOException("image " + header.width + "x" + header.height + " has more than "
+                    + Math.min(maxPixels, MAX_PIXELS) + " pixels");
+        return header;
+    }
+
+    /**
+     * Pre-order writer; buffers at most one group of eight nodes.
+     */
+    private static class Writer {
+        private final ChannelOutput out;
+        private final KdTree tree;
+        private final int[] values = new int[8]; // offset or color of each node of the group
+        private int bits, count;
+
+        Writer(ChannelOutput out, KdTree tree) {
+            this.out = out;
+            this.tree = tree;
+        }
+
+        void node(int t, int xmin, int ymin, int xmax, int ymax) throws IOException {
+            if (tree.isLeaf(t)) {
+                add(false, tree.color(t));
+                return;
+            }
+
+            int partition = tree.split(t);
+            if (tree.axis(t) == KdTree.X) {
+                add(true, (partition - xmin) << 1);
+                node(tree.left(t), xmin, ymin, partition, ymax);
+                node(tree.right(t), partition, ymin, xmax, ymax);
+            } else {
+                add(true, (partition - ymin) << 1 | 1);
+                node(tree.left(t), xmin, ymin, xmax, partition);
+                node(tree.right(t), xmin, partition, xmax, ymax);
+            }
+        }
+
+        private void add(boolean isInternal, int value) throws IOException {
+            if (isInternal) bits |= 1 << count;
+            values[count] = value;
+            if (++count == 8) finish();
+        }
+
+        void finish() throws IOException {
+            if (count == 0) return;
+            out.writeByte(bits);
+            for (int i = 0; i < count; i++) {
+                if ((bits & (1 << i)) != 0) {
+                    out.writeVarint(values[i]);
+                } else {
+                    out.writeByte(PixelBuffer.red(values[i]));
+                    out.writeByte(PixelBuffer.green(values[i]));
+                    out.writeByte(PixelBuffer.blue(values[i]));
+                }
+            }
+            bits = count = 0;
+        }
+    }
+
+    /**
+     * Pre-order reader, mirror of Writer. Appends to the tree.
+     *
+     * Iterative, as TreeBuilder builds: the left child of a split is
+     * read next and its right sibling waits on an explicit stack.
+     */
+    private static class Reader {
+        private static final int INTS = 6; // xmin, ymin, xmax, ymax, dim_flag, parent node
+
+        private final ChannelInput in;
+        private final KdTree tree;
+        private final boolean colors; // leaves carry r,g,b
+        private final boolean axes;   // offsets carry the axis bit
+        private int bits, count = 8;
+
+        Reader(ChannelInput in, KdTree tree, int version) {
+            this.in = in;
+            this.tree = tree;
+            this.colors = version >= 2;
+            this.axes = version >= 3;
+        }
+
+        void run(int maxNodes) throws IOException {
+            int[] pending = new int[32 * INTS];
+            int top = 0;
+            int xmin = 0, ymin = 0, xmax = tree.getWidth(), ymax = tree.getHeight();
+            // axis of the node if it is internal and the file has no
+            // axis bits: false for X, true for Y
+            boolean dim_flag = false;
+            while (true) {
+                if (count == 8) {
+                    bits = in.readByte();
+                    count = 0;
+                }
+                boolean isInternal = (bits & (1 << count++)) != 0;
+                if (isInternal) {
+                    // offsets of a group follow its structure byte, and
+                    // children are only read after this node's offset
+                    long offset = in.readVarint();
+                    if (axes) {
+                        dim_flag = (offset & 1) != 0;
+                        offset >>>= 1;
+                    }
+                    int p = partition(xmin, ymin, xmax, ymax, dim_flag ? KdTree.Y : KdTree.X, offset);
+                    int t = tree.addInternal(dim_flag ? KdTree.Y : KdTree.X, p, 0);
+                    checkSize(tree, maxNodes);
+                    if (top == pending.length) pending = Arrays.copyOf(pending, 2 * top);
+                    pending[top] = dim_flag ? xmin : p;
+                    pending[top + 1] = dim_flag ? p : ymin;
+                    pending[top + 2] = xmax;
+                    pending[top + 3] = ymax;
+                    pending[top + 4] = dim_flag ? 0 : 1;
+                    pending[top + 5] = t;
+                    top += INTS;
+                    if (dim_flag) {
+                        ymax = p;
+                    } else {
+                        xmax = p;
+                    }
+                    dim_flag = !dim_flag;
+                    continue;
+                }
+
+                tree.addLeaf(colors ? PixelBuffer.pack(in.readByte(), in.readByte(), in.readByte()) : 0);
+                checkSize(tree, maxNodes);
+                // continue with the right child of the deepest open split
+                if (top == 0) break;
+                top -= INTS;
+                xmin = pending[top];
+                ymin = pending[top + 1];
+                xmax = pending[top + 2];
+                ymax = pending[top + 3];
+                dim_flag = pending[top + 4] != 0;
+                tree.setRight(pending[top + 5], tree.size());
+            }
+
+            // internal colors are not stored: give each internal node
+            // the area-weighted average of its children (used by
+            // ProgressiveCodec)
+            if (colors) tree.mergeColors();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package kdt;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Rebuilds images from compressed trees alone; the source image is
+ * never needed. Every leaf rectangle is one bulk fill per row into a
+ * primitive buffer, so decoding costs O(nodes + pixels).
+ *
+ * A window of the image can be decoded on its own, optionally
+ * downsampled; only the subtrees that reach into the window are
+ * visited, so the cost follows the window, not the image.
+ *
+ * Usage: java kdt.TreeDecoder [-roi xmin,ymin,xmax,ymax] [-scale N] in.kdt out.ppm
+ */
+public class TreeDecoder {
+
+    /**
+     * @param tree tree with leaf colors
+     * @return the decoded image
+     */
+    public static PixelBuffer decode(KdTree tree) {
+        PixelBuffer pb = new PixelBuffer(tree.getWidth(), tree.getHeight());
+        TreeRenderer.render(tree, pb, false);
+        return pb;
+    }
+
+    /**
+     * Decode only a window of the image.
+     *
+     * @param tree tree with colors at every node
+     * @param roi window {xmin,ymin,xmax,ymax}, non-empty and inside the image
+     * @param factor downsampling factor, 1 for full resolution
+     * @return ceil(roi width / factor) by ceil(roi height / factor) pixels
+     */
+    public static PixelBuffer decode(KdTree tree, int[] roi, int factor) {
+        if (factor < 1) throw new IllegalArgumentException("factor must be >= 1");
+        if (roi[0] < 0 || roi[1] < 0 || roi[2] > tree.getWidth() || roi[3] > tree.getHeight()
+                || roi[0] >= roi[2] || roi[1] >= roi[3])
+            throw new IllegalArgumentException("window " + Arrays.toString(roi) + " not inside "
+                    + tree.getWidth() + "x" + tree.getHeight());
+
+        PixelBuffer pb = new PixelBuffer((roi[2] - roi[0] + factor - 1) / factor,
+                (roi[3] - roi[1] + factor - 1) / factor);
+        TreeRenderer.render(tree, pb, roi, factor);
+        return pb;
+    }
+
+    /**
+     * @param container file written by TreeCodec (version 2 or later)
+     * @return the decoded image
+     */
+    public static PixelBuffer decode(Path container) throws IOException {
+        TreeCodec.Saved saved = TreeCodec.read(container);
+        if (!saved.hasColors()) throw new IOException(container + ": version 1 container has no leaf colors");
+        return decode(saved.tree);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] roi = null;
+        int factor = 1;
+
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("-"); i++) {
+            switch (args[i]) {
+                case "-roi": roi = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "-scale": factor = Integer.parseInt(args[++i]); break;
+                default: usage();
+            }
+        }
+        if (args.length - i != 2 || (roi != null && roi.length != 4)) usage();
+
+        Path in = Paths.get(args[i]);
+        PixelBuffer pb;
+        if (roi == null && factor == 1) {
+            pb = decode(in);
+        } else {
+            TreeCodec.Saved saved = TreeCodec.read(in);
+            if (!saved.hasColors()) throw new IOException(in + ": version 1 container has no leaf colors");
+            KdTree tree = saved.tree;
+            pb = decode(tree, roi != null ? roi : new int[]{0, 0, tree.getWidth(), tree.getHeight()}, factor);
+        }
+        PpmFile.write(Paths.get(args[i + 1]), pb);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java kdt.TreeDecoder [-roi xmin,ymin,xmax,ymax] [-scale N] in.kdt out.ppm");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,139 @@
+package kdt;
+
+import java.util.Arrays;
+
+/**
+ * Paints a KdTree into a PixelBuffer: every leaf region with its
+ * color, then (optionally) the partitioning lines on top. A window of
+ * the image can also be painted alone, optionally downsampled, visiting
+ * only the subtrees that reach into it.
+ */
+public class TreeRenderer {
+    public static final int LINE_COLOR = 0xFFFFFF; // white, for partition lines
+
+    /**
+     * @param tree tree to paint
+     * @param pb pixels to paint, same size as the tree's image
+     * @param draw_partitioners also draw the partitioning lines
+     */
+    public static void render(KdTree tree, PixelBuffer pb, boolean draw_partitioners) {
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.RENDER)) {
+            span.pixels((long) tree.getWidth() * tree.getHeight()).nodes(tree.size());
+            paint(tree, pb, false);
+            // lines go on top of the leaves they cross; a line lies
+            // inside its node's region, so only that node's leaves do
+            if (draw_partitioners) paint(tree, pb, true);
+        }
+        Metrics.painted((long) tree.getWidth() * tree.getHeight());
+    }
+
+    /**
+     * Paint every leaf, or every partitioning line. Iterative: right
+     * children wait on an explicit stack, so the depth of the tree (a
+     * decoded one may be deep) is not limited by the thread's stack.
+     */
+    private static void paint(KdTree tree, PixelBuffer pb, boolean lines) {
+        Regions pending = new Regions();
+        int node = 0, xmin = 0, ymin = 0, xmax = tree.getWidth(), ymax = tree.getHeight();
+        while (true) {
+            if (!tree.isLeaf(node)) {
+                int partition = tree.split(node);
+                if (tree.axis(node) == KdTree.X) {
+                    if (lines) Image.ColorLine(pb, new int[]{partition, ymin, partition, ymax}, LINE_COLOR);
+                    pending.push(tree.right(node), partition, ymin, xmax, ymax);
+                    xmax = partition;
+                } else {
+                    if (lines) Image.ColorLine(pb, new int[]{xmin, partition, xmax, partition}, LINE_COLOR);
+                    pending.push(tree.right(node), xmin, partition, xmax, ymax);
+                    ymax = partition;
+                }
+                node = tree.left(node);
+                continue;
+            }
+
+            if (!lines) pb.fill(xmin, ymin, xmax, ymax, tree.color(node));
+            if (pending.size == 0) return;
+            int i = --pending.size * Regions.INTS;
+            node = pending.ints[i];
+            xmin = pending.ints[i + 1];
+            ymin = pending.ints[i + 2];
+            xmax = pending.ints[i + 3];
+            ymax = pending.ints[i + 4];
+        }
+    }
+
+    /**
+     * Paint one window of the image, downsampled by an integer factor:
+     * output pixel (col, row) shows the node holding source pixel
+     * (roi[0] + col * factor, roi[1] + row * factor). Subtrees outside
+     * the window, or holding no such sample, are skipped; a node no
+     * larger than factor x factor is painted with its own (average)
+     * color instead of being descended into.
+     *
+     * @param tree tree with colors at every node
+     * @param out pixels to paint, at least ceil(roi width / factor) by
+     *     ceil(roi height / factor)
+     * @param roi window {xmin,ymin,xmax,ymax} inside the image
+     * @param factor source pixels per output pixel along each axis, 1 or more
+     */
+    public static void render(KdTree tree, PixelBuffer out, int[] roi, int factor) {
+        try (Metrics.Span span = Metrics.span(Metrics.Phase.RENDER)) {
+            span.pixels((long) out.getWidth() * out.getHeight());
+            Regions pending = new Regions();
+            pending.push(0, 0, 0, tree.getWidth(), tree.getHeight());
+            while (pending.size > 0) {
+                int i = --pending.size * Regions.INTS;
+                int node = pending.ints[i], xmin = pending.ints[i + 1], ymin = pending.ints[i + 2],
+                        xmax = pending.ints[i + 3], ymax = pending.ints[i + 4];
+
+                // output pixels whose sample lies in this region and the window
+                int c0 = samples(Math.max(xmin, roi[0]), roi[0], factor),
+                        c1 = samples(Math.min(xmax, roi[2]), roi[0], factor);
+                int r0 = samples(Math.max(ymin, roi[1]), roi[1], factor),
+                        r1 = samples(Math.min(ymax, roi[3]), roi[1], factor);
+                if (c0 >= c1 || r0 >= r1) continue;
+
+                if (tree.isLeaf(node) || (xmax - xmin <= factor && ymax - ymin <= factor)) {
+                    out.fill(c0, r0, c1, r1, tree.color(node));
+                    continue;
+                }
+
+                // children paint disjoint pixels, so their order does not matter
+                int partition = tree.split(node);
+                if (tree.axis(node) == KdTree.X) {
+                    pending.push(tree.right(node), partition, ymin, xmax, ymax);
+                    pending.push(tree.left(node), xmin, ymin, partition, ymax);
+                } else {
+                    pending.push(tree.right(node), xmin, partition, xmax, ymax);
+                    pending.push(tree.left(node), xmin, ymin, xmax, partition);
+                }
+            }
+        }
+        Metrics.painted((long) out.getWidth() * out.getHeight());
+    }
+
+    /**
+     * Stack of nodes still to visit with their regions, as one int array.
+     */
+    private static class Regions {
+        static final int INTS = 5; // node, xmin, ymin, xmax, ymax
+
+        int[] ints = new int[64 * INTS];
+        int size;
+
+        void push(int node, int xmin, int ymin, int xmax, int ymax) {
+            if ((size + 1) * INTS > ints.length) ints = Arrays.copyOf(ints, 2 * ints.length);
+            int i = size++ * INTS;
+            ints[i] = node;
+            ints[i + 1] = xmin;
+            ints[i + 2] = ymin;
+            ints[i + 3] = xmax;
+            ints[i + 4] = ymax;
+        }
+    }
+
+    // number of samples origin, origin + factor, ... below x
+    private static int samples(int x, int origin, int factor) {
+        return x <= origin ? 0 : (x - origin + factor - 1) / factor;
+    }
+}
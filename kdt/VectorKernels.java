@@ -0,0 +1,106 @@
+package kdt;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * RegionKernels on the jdk.incubator.vector API: each step loads one
+ * SIMD register of packed pixels (8 with AVX2, 16 with AVX-512),
+ * splits out the channels with shifts and masks and accumulates per
+ * lane in int. Lane totals are added into longs before their sum
+ * could overflow, and row tails shorter than a register go through the
+ * scalar loops, so results match the scalar kernels exactly. Like
+ * RegionKernels, these serve the PixelBuffer scans only, not builds.
+ *
+ * Only RegionKernels may refer to this class, and only by name, so the
+ * rest of the code loads without the incubator module.
+ */
+class VectorKernels extends RegionKernels {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    // vector steps before the lanes must be flushed: reduceLanesToLong
+    // adds the lanes up in int, and a lane gains at most 255 per step in
+    // sums, 3 * 255^2 in squaredError
+    private static final int SUM_STEPS = Integer.MAX_VALUE / (255 * SPECIES.length());
+    private static final int ERROR_STEPS = Integer.MAX_VALUE / (3 * 255 * 255 * SPECIES.length());
+
+    VectorKernels() {
+        // narrower registers: the scalar loop is as fast
+        if (SPECIES.length() < 4) throw new UnsupportedOperationException("no SIMD registers");
+    }
+
+    @Override
+    public String name() {
+        return "vector" + SPECIES.vectorBitSize();
+    }
+
+    @Override
+    public void sums(int[] pixels, int width, int[] region, long[] rgb) {
+        rgb[0] = rgb[1] = rgb[2] = 0;
+        int lanes = SPECIES.length();
+        IntVector r = IntVector.zero(SPECIES), g = r, b = r;
+        int steps = 0;
+
+        for (int row = region[1]; row < region[3]; row++) {
+            int from = row * width + region[0], to = row * width + region[2];
+            int bound = from + SPECIES.loopBound(to - from);
+            for (int p = from; p < bound; ) {
+                if (steps == SUM_STEPS) {
+                    flush(r, g, b, rgb);
+                    r = g = b = IntVector.zero(SPECIES);
+                    steps = 0;
+                }
+                // no branch in the hot loop, so the vectors stay in registers
+                int end = Math.min(bound, p + (SUM_STEPS - steps) * lanes);
+                steps += (end - p) / lanes;
+                for (; p < end; p += lanes) {
+                    IntVector v = IntVector.fromArray(SPECIES, pixels, p);
+                    r = r.add(v.lanewise(VectorOperators.LSHR, 16).and(0xFF));
+                    g = g.add(v.lanewise(VectorOperators.LSHR, 8).and(0xFF));
+                    b = b.add(v.and(0xFF));
+                }
+            }
+            sumRow(pixels, bound, to, rgb);
+        }
+        flush(r, g, b, rgb);
+    }
+
+    private static void flush(IntVector r, IntVector g, IntVector b, long[] rgb) {
+        rgb[0] += r.reduceLanesToLong(VectorOperators.ADD);
+        rgb[1] += g.reduceLanesToLong(VectorOperators.ADD);
+        rgb[2] += b.reduceLanesToLong(VectorOperators.ADD);
+    }
+
+    @Override
+    public long squaredError(int[] pixels, int width, int[] region, int rgb) {
+        int ar = PixelBuffer.red(rgb), ag = PixelBuffer.green(rgb), ab = PixelBuffer.blue(rgb);
+        int lanes = SPECIES.length();
+        IntVector acc = IntVector.zero(SPECIES);
+        long total = 0;
+        int steps = 0;
+
+        for (int row = region[1]; row < region[3]; row++) {
+            int from = row * width + region[0], to = row * width + region[2];
+            int bound = from + SPECIES.loopBound(to - from);
+            for (int p = from; p < bound; ) {
+                if (steps == ERROR_STEPS) {
+                    total += acc.reduceLanesToLong(VectorOperators.ADD);
+                    acc = IntVector.zero(SPECIES);
+                    steps = 0;
+                }
+                int end = Math.min(bound, p + (ERROR_STEPS - steps) * lanes);
+                steps += (end - p) / lanes;
+                for (; p < end; p += lanes) {
+                    IntVector v = IntVector.fromArray(SPECIES, pixels, p);
+                    IntVector dr = v.lanewise(VectorOperators.LSHR, 16).and(0xFF).sub(ar);
+                    IntVector dg = v.lanewise(VectorOperators.LSHR, 8).and(0xFF).sub(ag);
+                    IntVector db = v.and(0xFF).sub(ab);
+                    acc = acc.add(dr.mul(dr)).add(dg.mul(dg)).add(db.mul(db));
+                }
+            }
+            total += squaredErrorRow(pixels, bound, to, ar, ag, ab);
+        }
+        return total + acc.reduceLanesToLong(VectorOperators.ADD);
+    }
+}